@@ -0,0 +1,71 @@
+package com.example.ad;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Версия содержимого ячейки растет с каждым сохранением рисунка и не меняется
+ * от перемещения ячейки и достроенной миниатюры; миниатюра к устаревшей версии
+ * не записывается.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CellContentVersionTest {
+    private static final String DATABASE_NAME = "comics_versions.db";
+
+    private Context context;
+    private DatabaseHelper helper;
+    private long cell;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = new DatabaseHelper(context, DATABASE_NAME);
+        long userId = helper.registerUser("artist", "artist@example.com", "secret");
+        long comic = helper.insertComic(userId, "Версии", "");
+        long page = helper.getPagesForComic(comic).get(0).getId();
+        cell = helper.insertCell(page, 0, 0, 300, 300, null);
+    }
+
+    @After
+    public void cleanUp() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void versionGrowsWithEachSave() {
+        assertEquals(0, helper.getCell(cell).getContentVersion());
+        assertEquals(1, helper.setCellDrawingBlob(cell, "cell.png", new CellDrawing("00aa", 10, null, 0, 0, null)));
+        assertEquals(2, helper.setCellDrawingBlob(cell, "cell.png", new CellDrawing("00aa", 10, null, 0, 0, null)));
+
+        helper.updateCell(cell, 300, 300, 300, 300, "cell.png");
+        assertEquals(2, helper.getCell(cell).getContentVersion());
+
+        helper.clearCellDrawing(cell);
+        assertEquals(3, helper.getCell(cell).getContentVersion());
+        assertEquals(-1, helper.setCellDrawingBlob(cell + 1, "none.png", new CellDrawing("00aa", 10, null, 0, 0, null)));
+    }
+
+    @Test
+    public void thumbnailIsWrittenOnlyForCurrentVersion() {
+        long version = helper.setCellDrawingBlob(cell, "cell.png", new CellDrawing("00aa", 10, null, 0, 0, null));
+        assertFalse(helper.setCellThumbnail(cell, version - 1, "00cc", 5, 0xFF102030));
+        assertNull(helper.getCell(cell).getThumbnailBlob());
+
+        assertTrue(helper.setCellThumbnail(cell, version, "00cc", 5, 0xFF102030));
+        Cell updated = helper.getCell(cell);
+        assertEquals("00cc", updated.getThumbnailBlob());
+        assertEquals(0xFF102030, updated.getPlaceholderColor());
+        assertEquals(version, updated.getContentVersion());
+    }
+}
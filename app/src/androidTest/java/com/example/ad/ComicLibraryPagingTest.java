@@ -0,0 +1,120 @@
+package com.example.ad;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Постраничная библиотека: обход всех страниц без пропусков и повторов (в том
+ * числе при одинаковых датах) и время первой страницы у маленькой и большой
+ * библиотеки.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ComicLibraryPagingTest {
+    private static final String TAG = "LibraryPaging";
+    private static final String DATABASE_NAME = "comics_paging.db";
+    private static final int PAGE_SIZE = 30;
+    private static final int SMALL_LIBRARY = 20;
+    private static final int LARGE_LIBRARY = 20_000;
+    private static final int RUNS = 50;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private long smallUser, largeUser;
+
+    @Before
+    public void populate() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = new DatabaseHelper(context, DATABASE_NAME);
+        smallUser = helper.registerUser("small", "small@example.com", "secret");
+        largeUser = helper.registerUser("large", "large@example.com", "secret");
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement comic = db.compileStatement(
+                "INSERT INTO comics (user_id, title, cover_image_path, created_date) VALUES (?, ?, '', ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < LARGE_LIBRARY; i++) {
+                comic.bindLong(1, largeUser);
+                comic.bindString(2, "Комикс " + i);
+                // По десять комиксов с одной датой: порядок внутри даты задает id
+                comic.bindString(3, String.valueOf(1_700_000_000_000L + i / 10));
+                comic.executeInsert();
+            }
+            for (int i = 0; i < SMALL_LIBRARY; i++) {
+                comic.bindLong(1, smallUser);
+                comic.bindString(2, "Комикс " + i);
+                comic.bindString(3, String.valueOf(1_700_000_000_000L + i));
+                comic.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void pagesCoverLibraryInOrderWithoutDuplicates() {
+        Set<Long> seen = new HashSet<>();
+        String lastDate = null;
+        long lastId = 0;
+        while (true) {
+            List<Comic> page = helper.getComicsPage(largeUser, lastDate, lastId, PAGE_SIZE);
+            for (Comic comic : page) {
+                assertTrue("повтор " + comic.getId(), seen.add(comic.getId()));
+                if (lastDate != null) {
+                    int order = comic.getCreatedDate().compareTo(lastDate);
+                    assertTrue(order > 0 || order == 0 && comic.getId() > lastId);
+                }
+                lastDate = comic.getCreatedDate();
+                lastId = comic.getId();
+            }
+            if (page.size() < PAGE_SIZE) break;
+        }
+        assertEquals(LARGE_LIBRARY, seen.size());
+    }
+
+    @Test
+    public void firstPageTimeDoesNotGrowWithLibrary() {
+        long small = medianFirstPage(smallUser);
+        long large = medianFirstPage(largeUser);
+        Log.i(TAG, "Первая страница: " + SMALL_LIBRARY + " комиксов - " + small / 1000 + " мкс, "
+                + LARGE_LIBRARY + " - " + large / 1000 + " мкс");
+        // Запас на шум: полная выборка 20 000 строк медленнее в сотни раз
+        assertTrue(large < small * 5);
+    }
+
+    private long medianFirstPage(long userId) {
+        helper.getComicsPage(userId, null, 0, PAGE_SIZE);
+        long[] samples = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            helper.getComicsPage(userId, null, 0, PAGE_SIZE);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[RUNS / 2];
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.ad;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Поисковый индекс: триггеры держат его в согласии с названиями, текстом
+ * реплик и удалением комиксов, а поиск по большой библиотеке укладывается в
+ * миллисекунды.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ComicSearchIndexTest {
+    private static final String TAG = "ComicSearch";
+    private static final String DATABASE_NAME = "comics_search.db";
+    private static final int LIBRARY_SIZE = 2_000;
+    private static final int RUNS = 50;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private long userId;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = new DatabaseHelper(context, DATABASE_NAME);
+        userId = helper.registerUser("reader", "reader@example.com", "secret");
+    }
+
+    @After
+    public void cleanUp() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void indexFollowsTitlesBalloonsAndDeletes() {
+        long cat = helper.insertComic(userId, "Кот в сапогах", "");
+        long dog = helper.insertComic(userId, "Собака", "");
+        long otherUser = helper.registerUser("other", "other@example.com", "secret");
+        helper.insertComic(otherUser, "Кот чужой", "");
+
+        long page = helper.getPagesForComic(dog).get(0).getId();
+        long cell = helper.insertCell(page, 0, 0, 300, 300, null);
+        helper.setCellDrawingBlob(cell, "cell_" + cell + ".png", new CellDrawing("00aa", 10, null, 0, 0, "Где мой кот?"));
+
+        // Совпадение в названии выше совпадения в реплике, чужие комиксы не видны
+        assertEquals(Arrays.asList(cat, dog), ids(helper.searchComics(userId, "кот", 10)));
+        assertEquals(Arrays.asList(cat), ids(helper.searchComics(userId, "сап", 10)));
+        assertTrue(helper.searchComics(userId, "\" OR *", 10).isEmpty());
+
+        helper.setCellDrawingBlob(cell, "cell_" + cell + ".png", new CellDrawing("00bb", 10, null, 0, 0, "Гав"));
+        assertEquals(Arrays.asList(cat), ids(helper.searchComics(userId, "кот", 10)));
+        assertEquals(Arrays.asList(dog), ids(helper.searchComics(userId, "гав", 10)));
+
+        assertTrue(helper.deleteComic(cat));
+        assertTrue(helper.searchComics(userId, "кот", 10).isEmpty());
+    }
+
+    @Test
+    public void searchTimeInLargeLibrary() {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement comic = db.compileStatement(
+                "INSERT INTO comics (user_id, title, cover_image_path, created_date) VALUES (?, ?, '', '0')");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < LIBRARY_SIZE; i++) {
+                comic.bindLong(1, userId);
+                comic.bindString(2, (i % 100 == 0 ? "Дракон " : "Комикс ") + i);
+                comic.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        assertEquals(LIBRARY_SIZE / 100, helper.searchComics(userId, "дракон", 100).size());
+        long[] samples = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            helper.searchComics(userId, "дракон", 50);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        long median = samples[RUNS / 2];
+        Log.i(TAG, "Поиск среди " + LIBRARY_SIZE + " комиксов: " + median / 1000 + " мкс");
+        assertTrue(median < 20_000_000L);
+    }
+
+    private static List<Long> ids(List<Comic> comics) {
+        Long[] ids = new Long[comics.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = comics.get(i).getId();
+        return Arrays.asList(ids);
+    }
+}
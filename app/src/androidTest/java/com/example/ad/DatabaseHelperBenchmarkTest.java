@@ -0,0 +1,147 @@
+package com.example.ad;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Задержка одного вызова на заполненной базе: прежний способ (открыть базу,
+ * выполнить запрос, закрыть) против постоянного соединения с готовыми выражениями.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperBenchmarkTest {
+    private static final String TAG = "DbBenchmark";
+    private static final String DATABASE_NAME = "comics_benchmark.db";
+    private static final int COMICS = 300;
+    private static final int PAGES_PER_COMIC = 3;
+    private static final int CELLS_PER_PAGE = 6;
+    private static final int CALLS = 200;
+
+    private Context context;
+    private DatabaseHelper helper;
+    private long[] cellIds;
+    private long[] pageIds;
+
+    @Before
+    public void populate() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = new DatabaseHelper(context, DATABASE_NAME);
+        long userId = helper.registerUser("bench", "bench@example.com", "secret");
+        cellIds = new long[COMICS * PAGES_PER_COMIC * CELLS_PER_PAGE];
+        pageIds = new long[COMICS * PAGES_PER_COMIC];
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            int cell = 0, page = 0;
+            for (int c = 0; c < COMICS; c++) {
+                long comicId = helper.insertComic(userId, "Комикс " + c, "");
+                for (int p = 0; p < PAGES_PER_COMIC; p++) {
+                    long pageId = p == 0 ? firstPageId(db, comicId) : helper.insertPage(comicId, p + 1);
+                    pageIds[page++] = pageId;
+                    for (int i = 0; i < CELLS_PER_PAGE; i++) {
+                        cellIds[cell++] = helper.insertCell(pageId, i * 300, 0, 300, 300, "cell_" + i + ".png");
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    private static long firstPageId(SQLiteDatabase db, long comicId) {
+        try (Cursor cursor = db.rawQuery("SELECT id FROM pages WHERE comic_id = ?", new String[]{String.valueOf(comicId)})) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    @Test
+    public void updateCellDrawingPathIsFasterOnOpenConnection() {
+        long[] legacy = new long[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            long cellId = cellIds[i * 7 % cellIds.length];
+            long start = System.nanoTime();
+            // Прежний путь: свое соединение на каждый вызов
+            DatabaseHelper legacyHelper = new DatabaseHelper(context, DATABASE_NAME);
+            SQLiteDatabase db = legacyHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put("drawing_path", "legacy_" + i + ".png");
+            db.update("cells", values, "id = ?", new String[]{String.valueOf(cellId)});
+            db.close();
+            legacy[i] = System.nanoTime() - start;
+        }
+
+        long[] cached = new long[CALLS];
+        helper.updateCellDrawingPath(cellIds[0], "warm_up.png");
+        for (int i = 0; i < CALLS; i++) {
+            long cellId = cellIds[i * 7 % cellIds.length];
+            long start = System.nanoTime();
+            helper.updateCellDrawingPath(cellId, "cached_" + i + ".png");
+            cached[i] = System.nanoTime() - start;
+        }
+        report("updateCellDrawingPath", legacy, cached);
+    }
+
+    @Test
+    public void getCellsForPageIsFasterOnOpenConnection() {
+        long[] legacy = new long[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            long pageId = pageIds[i * 13 % pageIds.length];
+            long start = System.nanoTime();
+            DatabaseHelper legacyHelper = new DatabaseHelper(context, DATABASE_NAME);
+            SQLiteDatabase db = legacyHelper.getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT * FROM cells WHERE page_id = ?", new String[]{String.valueOf(pageId)});
+            while (cursor.moveToNext()) {
+                cursor.getString(6);
+            }
+            cursor.close();
+            db.close();
+            legacy[i] = System.nanoTime() - start;
+        }
+
+        long[] cached = new long[CALLS];
+        helper.getCellsForPage(pageIds[0]);
+        for (int i = 0; i < CALLS; i++) {
+            long pageId = pageIds[i * 13 % pageIds.length];
+            long start = System.nanoTime();
+            assertEquals(CELLS_PER_PAGE, helper.getCellsForPage(pageId).size());
+            cached[i] = System.nanoTime() - start;
+        }
+        report("getCellsForPage", legacy, cached);
+    }
+
+    private static void report(String name, long[] legacy, long[] cached) {
+        long legacyMedian = median(legacy);
+        long cachedMedian = median(cached);
+        Log.i(TAG, name + ": медиана " + legacyMedian / 1000 + " мкс -> " + cachedMedian / 1000 + " мкс");
+        assertTrue(name + " не стал быстрее", cachedMedian < legacyMedian);
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.ad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Синтетическая база v2 на 10 000 комиксов: выборки до миграции (полный
+ * просмотр таблиц) и после нее (индексы v3), плюс проверка сохранности данных
+ * и каскадного удаления.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SchemaMigrationBenchmarkTest {
+    private static final String TAG = "SchemaBenchmark";
+    private static final String DATABASE_NAME = "comics_schema_benchmark.db";
+    private static final int USERS = 100;
+    private static final int COMICS_PER_USER = 100;
+    private static final int PAGES_PER_COMIC = 3;
+    private static final int CELLS_PER_PAGE = 4;
+    private static final int LOOKUPS = 100;
+
+    private Context context;
+    private DatabaseHelper helper;
+
+    @Before
+    public void createVersion2Database() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(DATABASE_NAME), null);
+        db.execSQL("CREATE TABLE users (id INTEGER PRIMARY KEY AUTOINCREMENT, username TEXT UNIQUE, email TEXT UNIQUE, password TEXT)");
+        db.execSQL("CREATE TABLE comics (id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER, title TEXT, cover_image_path TEXT, created_date TEXT, FOREIGN KEY(user_id) REFERENCES users(id))");
+        db.execSQL("CREATE TABLE pages (id INTEGER PRIMARY KEY AUTOINCREMENT, comic_id INTEGER, page_number INTEGER, width INTEGER DEFAULT 1200, height INTEGER DEFAULT 1600, FOREIGN KEY(comic_id) REFERENCES comics(id))");
+        db.execSQL("CREATE TABLE cells (id INTEGER PRIMARY KEY AUTOINCREMENT, page_id INTEGER, x REAL, y REAL, width REAL, height REAL, drawing_path TEXT, FOREIGN KEY(page_id) REFERENCES pages(id))");
+        SQLiteStatement comic = db.compileStatement("INSERT INTO comics (user_id, title, cover_image_path, created_date) VALUES (?, ?, '', '0')");
+        SQLiteStatement page = db.compileStatement("INSERT INTO pages (comic_id, page_number) VALUES (?, ?)");
+        SQLiteStatement cell = db.compileStatement("INSERT INTO cells (page_id, x, y, width, height, drawing_path) VALUES (?, ?, 0, 300, 300, ?)");
+        db.beginTransaction();
+        try {
+            for (int u = 1; u <= USERS; u++) {
+                db.execSQL("INSERT INTO users (username, email, password) VALUES (?, ?, 'secret')",
+                        new Object[]{"user" + u, "user" + u + "@example.com"});
+            }
+            // Комиксы пользователей вперемешку, как при реальном использовании
+            for (int c = 0; c < USERS * COMICS_PER_USER; c++) {
+                comic.bindLong(1, c % USERS + 1);
+                comic.bindString(2, "Комикс " + c);
+                long comicId = comic.executeInsert();
+                for (int p = 1; p <= PAGES_PER_COMIC; p++) {
+                    page.bindLong(1, comicId);
+                    page.bindLong(2, p);
+                    long pageId = page.executeInsert();
+                    for (int i = 0; i < CELLS_PER_PAGE; i++) {
+                        cell.bindLong(1, pageId);
+                        cell.bindDouble(2, i * 300);
+                        cell.bindString(3, "cell_" + i + ".png");
+                        cell.executeInsert();
+                    }
+                }
+            }
+            db.setVersion(2);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+    }
+
+    @After
+    public void cleanUp() {
+        if (helper != null) helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void lookupsAreFasterAfterMigration() {
+        long[] userIds = new long[LOOKUPS];
+        long[] comicIds = new long[LOOKUPS];
+        long[] pageIds = new long[LOOKUPS];
+        Random random = new Random(1);
+        int comicCount = USERS * COMICS_PER_USER;
+        for (int i = 0; i < LOOKUPS; i++) {
+            userIds[i] = random.nextInt(USERS) + 1;
+            comicIds[i] = random.nextInt(comicCount) + 1;
+            pageIds[i] = random.nextInt(comicCount * PAGES_PER_COMIC) + 1;
+        }
+
+        SQLiteDatabase v2 = SQLiteDatabase.openDatabase(context.getDatabasePath(DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        long before = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            drain(v2.rawQuery("SELECT * FROM comics WHERE user_id = ?", new String[]{String.valueOf(userIds[i])}));
+            drain(v2.rawQuery("SELECT id, comic_id, page_number, width, height FROM pages WHERE comic_id = ?",
+                    new String[]{String.valueOf(comicIds[i])}));
+            drain(v2.rawQuery("SELECT * FROM cells WHERE page_id = ?", new String[]{String.valueOf(pageIds[i])}));
+        }
+        long beforeNanos = System.nanoTime() - before;
+        v2.close();
+
+        helper = new DatabaseHelper(context, DATABASE_NAME);
+        long migrationStart = System.nanoTime();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long migrationNanos = System.nanoTime() - migrationStart;
+        assertEquals(9, db.getVersion());
+        assertEquals(comicCount * PAGES_PER_COMIC * CELLS_PER_PAGE, DatabaseUtils.queryNumEntries(db, "cells"));
+
+        long after = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(COMICS_PER_USER, helper.getComicsForUser(userIds[i]).size());
+            assertEquals(PAGES_PER_COMIC, helper.getPagesForComic(comicIds[i]).size());
+            assertEquals(CELLS_PER_PAGE, helper.getCellsForPage(pageIds[i]).size());
+        }
+        long afterNanos = System.nanoTime() - after;
+
+        Log.i(TAG, "Миграция: " + migrationNanos / 1_000_000 + " мс; " + LOOKUPS + " x (комиксы, страницы, ячейки): "
+                + beforeNanos / 1_000_000 + " мс -> " + afterNanos / 1_000_000 + " мс");
+        assertTrue(afterNanos < beforeNanos);
+    }
+
+    @Test
+    public void migrationOrdersCellsAndCascadesDeletes() {
+        helper = new DatabaseHelper(context, DATABASE_NAME);
+        List<Cell> cells = helper.getCellsForPage(1);
+        assertEquals(CELLS_PER_PAGE, cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            assertEquals(i, cells.get(i).getPosition());
+            assertEquals(i * 300f, cells.get(i).getX(), 0f);
+        }
+        long newCell = helper.insertCell(1, 0, 300, 300, 300, null);
+        assertEquals(CELLS_PER_PAGE, helper.getCellsForPage(1).get(CELLS_PER_PAGE).getPosition());
+        assertTrue(newCell > 0);
+
+        assertTrue(helper.deleteComic(1));
+        assertFalse(helper.deleteComic(1));
+        SQLiteDatabase db = helper.getReadableDatabase();
+        // Помеченный комикс пропадает из выборок сразу, строки удаляет очистка
+        assertEquals(COMICS_PER_USER - 1, helper.getComicsForUser(1).size());
+        assertEquals(PAGES_PER_COMIC, DatabaseUtils.queryNumEntries(db, "pages", "comic_id = 1"));
+        File comicsDir = new File(context.getCacheDir(), "purge_test");
+        ComicPurger purger = new ComicPurger(helper, comicsDir,
+                new DrawingGarbageCollector(helper, new BlobStore(new File(comicsDir, "blobs")), comicsDir));
+        int steps = 0;
+        while (purger.runBatch()) steps++;
+        assertTrue(steps > 1);
+        assertEquals(1, purger.getPurgedCount());
+        assertEquals(-1, helper.getNextDeletedComic());
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "comics", "id = 1"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "pages", "comic_id = 1"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "cells", "page_id <= " + PAGES_PER_COMIC));
+    }
+
+    private static void drain(Cursor cursor) {
+        while (cursor.moveToNext()) {
+            cursor.getLong(0);
+        }
+        cursor.close();
+    }
+}
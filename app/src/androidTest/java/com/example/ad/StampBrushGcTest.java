@@ -0,0 +1,69 @@
+package com.example.ad;
+
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Каракули через кисть в плиточный холст: 1200 событий, столько дают 10 секунд
+ * ввода при 120 событиях в секунду, но подаются они подряд, без пауз. Горячий
+ * путь не должен выделять ни одного объекта в вызывающем потоке; счетчик
+ * сборок мусора общий на процесс и проверяется лишь вдобавок.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StampBrushGcTest {
+    private static final int EVENTS_PER_SECOND = 120;
+    private static final int SECONDS = 10;
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void scribbleAllocatesNothing() {
+        TiledCanvas canvas = new TiledCanvas(900, 900, 0);
+        StampBrush brush = new StampBrush();
+        brush.setColor(Color.BLACK);
+        brush.setSize(8f);
+        RectF dirty = new RectF();
+        // Прогрев: плитки выделены, буферы кисти выросли до нужного размера
+        scribble(brush, canvas, dirty, 1);
+
+        System.gc();
+        long gcBefore = Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            scribble(brush, canvas, dirty, SECONDS);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        long gcAfter = Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+        assertEquals("Выделения в потоке кисти", 0, Debug.getThreadAllocCount());
+        assertEquals(gcBefore, gcAfter);
+    }
+
+    private static void scribble(StampBrush brush, TiledCanvas canvas, RectF dirty, int seconds) {
+        BrushStroke stroke = brush.getStroke();
+        long time = 0;
+        int events = seconds * EVENTS_PER_SECOND;
+        for (int e = 0; e < events; e += 60) {
+            stroke.begin(50, 450, 0.5f, time);
+            brush.flush(canvas, null, dirty);
+            for (int i = 1; i < 60; i++) {
+                time += 1000 / EVENTS_PER_SECOND;
+                float x = 50 + i * 13;
+                float y = 450 + (float) Math.sin(i * 0.4) * 300;
+                stroke.add(x, y, 0.3f + (i % 10) / 15f, time);
+                brush.flush(canvas, null, dirty);
+            }
+            stroke.end(850, 450, 0.2f, time);
+            brush.flush(canvas, null, dirty);
+            dirty.setEmpty();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.ad;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Хранилище рисунков по содержимому: файл называется SHA-256 своих байтов и
+ * лежит в root/<первые два символа>/<хеш>. Одинаковые рисунки (пустые ячейки,
+ * скопированные кадры) хранятся одним файлом. Сколько ячеек ссылается на
+ * файл, считает база (таблица blobs); здесь - только файлы.
+ */
+public class BlobStore {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File root;
+    // Проверка "файл есть - освежить" в put и удаление сборщиком мусора идут под ним
+    private final Object deleteLock = new Object();
+
+    public BlobStore(File root) {
+        this.root = root;
+    }
+
+    public static String hashOf(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(data);
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public File fileFor(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Сохраняет данные и возвращает их хеш. Если такой файл уже есть, он не
+     * перезаписывается, а только помечается свежим, чтобы сборщик мусора не
+     * удалил его до того, как на него сошлется ячейка.
+     */
+    public String put(byte[] data) throws IOException {
+        String hash = hashOf(data);
+        File target = fileFor(hash);
+        synchronized (deleteLock) {
+            // Если время не удалось обновить, файл перезаписывается и становится свежим так
+            if (target.exists() && target.setLastModified(System.currentTimeMillis())) return hash;
+        }
+        File dir = target.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Не удалось создать директорию: " + dir.getAbsolutePath());
+        }
+        // Запись через временный файл: по имени-хешу всегда лежит целый файл
+        File temp = new File(dir, hash + ".tmp" + Thread.currentThread().getId());
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            os.write(data);
+            os.getFD().sync();
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            if (!target.exists()) throw new IOException("Не удалось сохранить рисунок " + hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Удаляет файл сборщиком мусора: только если он все еще не менялся с
+     * olderThan (put не отдал его заново) и canDelete подтверждает, что
+     * ссылок нет. Обе проверки и удаление идут под одной блокировкой с put.
+     * Возвращает число освобожденных байт, -1 - файл оставлен.
+     */
+    public long deleteIfOlderThan(String hash, long olderThan, BooleanSupplier canDelete) {
+        synchronized (deleteLock) {
+            File file = fileFor(hash);
+            if (file.lastModified() >= olderThan || !canDelete.getAsBoolean()) return -1;
+            long size = file.length();
+            return delete(hash) ? size : -1;
+        }
+    }
+
+    public boolean delete(String hash) {
+        File file = fileFor(hash);
+        return !file.exists() || file.delete();
+    }
+
+    /** Хеши файлов (и недописанные временные файлы), не менявшихся с момента olderThan. */
+    public List<String> listOlderThan(long olderThan) {
+        List<String> hashes = new ArrayList<>();
+        File[] dirs = root.listFiles();
+        if (dirs == null) return hashes;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (file.lastModified() >= olderThan) continue;
+                String name = file.getName();
+                if (name.contains(".tmp")) {
+                    file.delete(); // остаток прерванной записи
+                } else {
+                    hashes.add(name);
+                }
+            }
+        }
+        return hashes;
+    }
+}
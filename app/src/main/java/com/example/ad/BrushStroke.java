@@ -0,0 +1,232 @@
+package com.example.ad;
+
+import java.util.Arrays;
+
+/**
+ * Геометрия штампового мазка: по точкам ввода с нажимом и временем строит
+ * ряд отпечатков кисти (x, y, диаметр) с равным шагом вдоль сглаженной кривой.
+ * Толщина зависит от нажима и скорости, поэтому линия сужается на быстрых
+ * участках и при легком нажатии. Все буферы переиспользуются между событиями
+ * и мазками: после первых мазков обработка события ничего не выделяет.
+ */
+public class BrushStroke {
+    public static final float DEFAULT_MIN_RATIO = 0.25f;
+    public static final float DEFAULT_SPACING = 0.15f;
+    public static final float DEFAULT_VELOCITY_TAPER = 0.5f;
+
+    private static final float MIN_WIDTH = 0.5f;
+    private static final float MIN_STEP = 0.5f;         // минимальный шаг между отпечатками, px
+    private static final float VELOCITY_REFERENCE = 3f; // px/мс, при которой сужение максимально
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+    private static final float WIDTH_SMOOTHING = 0.4f;
+
+    private float size = 5f;
+    private float minRatio = DEFAULT_MIN_RATIO;
+    private float spacing = DEFAULT_SPACING;
+    private float velocityTaper = DEFAULT_VELOCITY_TAPER;
+
+    // Отпечатки, накопленные с последнего clearStamps(): тройки x, y, диаметр
+    private float[] stamps = new float[3 * 256];
+    private int stampCount;
+    private float dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+
+    // Точки мазка с итоговой толщиной - для журнала и точного воспроизведения
+    private float[] samples = new float[3 * 256];
+    private int sampleCount;
+
+    private float lastX, lastY, lastWidth;
+    private float midX, midY, midWidth;
+    private long lastTime;
+    private float velocity;
+    private float distanceToNext;
+    private boolean moved;
+
+    public void setSize(float size) {
+        this.size = Math.max(MIN_WIDTH, size);
+    }
+
+    public float getSize() { return size; }
+
+    /** Доля диаметра при нулевом нажиме и максимальной скорости сужения (0..1). */
+    public void setMinRatio(float minRatio) {
+        this.minRatio = Math.max(0f, Math.min(1f, minRatio));
+    }
+
+    public void setSpacing(float spacing) {
+        this.spacing = Math.max(0.01f, spacing);
+    }
+
+    public void setVelocityTaper(float velocityTaper) {
+        this.velocityTaper = Math.max(0f, Math.min(1f, velocityTaper));
+    }
+
+    /** Толщина для нажима 0..1 и скорости в px/мс. */
+    public float widthFor(float pressure, float velocity) {
+        float p = Math.max(0f, Math.min(1f, pressure));
+        float pressureFactor = minRatio + (1f - minRatio) * p;
+        float velocityFactor = 1f - velocityTaper * Math.min(1f, velocity / VELOCITY_REFERENCE);
+        return Math.max(MIN_WIDTH, size * pressureFactor * velocityFactor);
+    }
+
+    public void begin(float x, float y, float pressure, long timeMs) {
+        lastTime = timeMs;
+        velocity = 0;
+        beginWithWidth(x, y, widthFor(pressure, 0));
+    }
+
+    public void add(float x, float y, float pressure, long timeMs) {
+        float dx = x - lastX;
+        float dy = y - lastY;
+        long dt = timeMs - lastTime;
+        if (dt > 0) {
+            float instant = (float) Math.sqrt(dx * dx + dy * dy) / dt;
+            velocity += (instant - velocity) * VELOCITY_SMOOTHING;
+            lastTime = timeMs;
+        }
+        // Сглаживание толщины убирает ступеньки от дискретного нажима
+        float target = widthFor(pressure, velocity);
+        addWithWidth(x, y, lastWidth + (target - lastWidth) * WIDTH_SMOOTHING);
+    }
+
+    public void end(float x, float y, float pressure, long timeMs) {
+        if (x != lastX || y != lastY) add(x, y, pressure, timeMs);
+        finish();
+    }
+
+    /** Начинает мазок с уже известной толщиной (воспроизведение журнала). */
+    public void beginWithWidth(float x, float y, float width) {
+        sampleCount = 0;
+        stampCount = 0;
+        moved = false;
+        lastX = midX = x;
+        lastY = midY = y;
+        lastWidth = midWidth = width;
+        distanceToNext = stepFor(width);
+        recordSample(x, y, width);
+        addStamp(x, y, width);
+    }
+
+    public void addWithWidth(float x, float y, float width) {
+        if (x == lastX && y == lastY) return;
+        float newMidX = (lastX + x) / 2;
+        float newMidY = (lastY + y) / 2;
+        float newMidWidth = (lastWidth + width) / 2;
+        // Сглаживание по средним точкам, как у обычного штриха
+        stampQuad(midX, midY, midWidth, lastX, lastY, lastWidth, newMidX, newMidY, newMidWidth);
+        midX = newMidX;
+        midY = newMidY;
+        midWidth = newMidWidth;
+        lastX = x;
+        lastY = y;
+        lastWidth = width;
+        moved = true;
+        recordSample(x, y, width);
+    }
+
+    /** Дотягивает мазок от последней средней точки до последней точки ввода. */
+    public void finish() {
+        if (moved) {
+            stampQuad(midX, midY, midWidth, (midX + lastX) / 2, (midY + lastY) / 2, (midWidth + lastWidth) / 2,
+                    lastX, lastY, lastWidth);
+        }
+    }
+
+    private float stepFor(float width) {
+        return Math.max(MIN_STEP, width * spacing);
+    }
+
+    private void stampQuad(float x0, float y0, float w0, float cx, float cy, float cw, float x1, float y1, float w1) {
+        float length = distance(x0, y0, cx, cy) + distance(cx, cy, x1, y1);
+        int steps = Math.max(1, (int) Math.ceil(length));
+        float px = x0, py = y0;
+        for (int i = 1; i <= steps; i++) {
+            float t = (float) i / steps;
+            float u = 1 - t;
+            float a = u * u, b = 2 * u * t, c = t * t;
+            float x = a * x0 + b * cx + c * x1;
+            float y = a * y0 + b * cy + c * y1;
+            float w = a * w0 + b * cw + c * w1;
+            float d = distance(px, py, x, y);
+            distanceToNext -= d;
+            while (distanceToNext <= 0 && d > 0) {
+                // Отпечаток ложится точно на нужном расстоянии внутри подшага
+                float f = 1 + distanceToNext / d;
+                addStamp(px + (x - px) * f, py + (y - py) * f, w);
+                distanceToNext += stepFor(w);
+            }
+            px = x;
+            py = y;
+        }
+    }
+
+    private static float distance(float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private void addStamp(float x, float y, float width) {
+        if (stampCount + 3 > stamps.length) {
+            stamps = Arrays.copyOf(stamps, stamps.length * 2);
+        }
+        float r = width / 2;
+        if (stampCount == 0) {
+            dirtyLeft = x - r;
+            dirtyTop = y - r;
+            dirtyRight = x + r;
+            dirtyBottom = y + r;
+        } else {
+            dirtyLeft = Math.min(dirtyLeft, x - r);
+            dirtyTop = Math.min(dirtyTop, y - r);
+            dirtyRight = Math.max(dirtyRight, x + r);
+            dirtyBottom = Math.max(dirtyBottom, y + r);
+        }
+        stamps[stampCount++] = x;
+        stamps[stampCount++] = y;
+        stamps[stampCount++] = width;
+    }
+
+    private void recordSample(float x, float y, float width) {
+        if (sampleCount + 3 > samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[sampleCount++] = x;
+        samples[sampleCount++] = y;
+        samples[sampleCount++] = width;
+    }
+
+    /** Число отпечатков, ожидающих отрисовки. */
+    public int getStampCount() { return stampCount / 3; }
+
+    /** Буфер отпечатков (x, y, диаметр); действителен до clearStamps(). */
+    public float[] getStamps() { return stamps; }
+
+    public void clearStamps() { stampCount = 0; }
+
+    // Границы ожидающих отпечатков с учетом радиуса
+    public float getDirtyLeft() { return dirtyLeft; }
+    public float getDirtyTop() { return dirtyTop; }
+    public float getDirtyRight() { return dirtyRight; }
+    public float getDirtyBottom() { return dirtyBottom; }
+
+    public int getSampleCount() { return sampleCount / 3; }
+
+    /** Точки мазка x, y для журнала (новый массив). */
+    public float[] copyPoints() {
+        float[] points = new float[sampleCount / 3 * 2];
+        for (int i = 0, j = 0; i < sampleCount; i += 3, j += 2) {
+            points[j] = samples[i];
+            points[j + 1] = samples[i + 1];
+        }
+        return points;
+    }
+
+    /** Толщины в точках мазка для журнала (новый массив). */
+    public float[] copyWidths() {
+        float[] widths = new float[sampleCount / 3];
+        for (int i = 0, j = 0; i < sampleCount; i += 3, j++) {
+            widths[j] = samples[i + 2];
+        }
+        return widths;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.ad;
+
+/**
+ * Видимая область холста: равномерный масштаб и сдвиг (матрица [s 0 tx; 0 s ty]).
+ * Прямое и обратное преобразования считаются по одним и тем же числам,
+ * поэтому точка касания попадает в тот же пиксель холста при любом масштабе.
+ */
+public class CanvasViewport {
+    public static final float MIN_SCALE = 0.5f;
+    public static final float MAX_SCALE = 3.0f;
+    public static final int MAX_MIP_LEVEL = 2;
+
+    private float scale = 1f;
+    private float translateX, translateY;
+    private float minScale = MIN_SCALE;
+    private float maxScale = MAX_SCALE;
+
+    public float getScale() { return scale; }
+    public float getTranslateX() { return translateX; }
+    public float getTranslateY() { return translateY; }
+    public float getMinScale() { return minScale; }
+
+    public float toCanvasX(float viewX) {
+        return (viewX - translateX) / scale;
+    }
+
+    public float toCanvasY(float viewY) {
+        return (viewY - translateY) / scale;
+    }
+
+    public float toViewX(float canvasX) {
+        return canvasX * scale + translateX;
+    }
+
+    public float toViewY(float canvasY) {
+        return canvasY * scale + translateY;
+    }
+
+    /** Вписывает холст в вид по центру; меньший масштаб вписывания становится минимальным. */
+    public void fit(int contentWidth, int contentHeight, int viewWidth, int viewHeight) {
+        if (contentWidth <= 0 || contentHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) return;
+        float fitScale = Math.min((float) viewWidth / contentWidth, (float) viewHeight / contentHeight);
+        minScale = Math.min(MIN_SCALE, fitScale);
+        scale = Math.max(minScale, Math.min(maxScale, fitScale));
+        translateX = (viewWidth - contentWidth * scale) / 2f;
+        translateY = (viewHeight - contentHeight * scale) / 2f;
+    }
+
+    /** Масштабирует вокруг точки вида, которая остается на месте. */
+    public boolean zoomBy(float factor, float focusX, float focusY) {
+        float newScale = Math.max(minScale, Math.min(maxScale, scale * factor));
+        if (newScale == scale) return false;
+        translateX = focusX - (focusX - translateX) * newScale / scale;
+        translateY = focusY - (focusY - translateY) * newScale / scale;
+        scale = newScale;
+        return true;
+    }
+
+    public void panBy(float dx, float dy) {
+        translateX += dx;
+        translateY += dy;
+    }
+
+    /**
+     * Уровень заранее уменьшенной копии для текущего масштаба: 0 - оригинал,
+     * 1 - половина, 2 - четверть. Копия берется, только пока она не мельче экрана.
+     */
+    public int getMipLevel() {
+        int level = 0;
+        float levelScale = scale;
+        while (level < MAX_MIP_LEVEL && levelScale <= 0.5f) {
+            levelScale *= 2;
+            level++;
+        }
+        return level;
+    }
+}
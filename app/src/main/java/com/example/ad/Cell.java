@@ -5,6 +5,11 @@ public class Cell {
     private long pageId;
     private float x, y, width, height;
     private String drawingPath;
+    private int position; // порядок ячейки на странице
+    private String drawingBlob; // хеш превью рисунка в BlobStore
+    private String thumbnailBlob; // хеш миниатюры размером с ячейку на странице
+    private int placeholderColor; // 0 - цвет еще не известен
+    private long contentVersion; // растет с каждым сохранением рисунка
 
     // Getters and setters
     public long getId() { return id; }
@@ -21,4 +26,28 @@ public class Cell {
     public void setHeight(float height) { this.height = height; }
     public String getDrawingPath() { return drawingPath; }
     public void setDrawingPath(String drawingPath) { this.drawingPath = drawingPath; }
+    public int getPosition() { return position; }
+    public void setPosition(int position) { this.position = position; }
+    public String getDrawingBlob() { return drawingBlob; }
+    public void setDrawingBlob(String drawingBlob) { this.drawingBlob = drawingBlob; }
+    public String getThumbnailBlob() { return thumbnailBlob; }
+    public void setThumbnailBlob(String thumbnailBlob) { this.thumbnailBlob = thumbnailBlob; }
+    public int getPlaceholderColor() { return placeholderColor; }
+    public void setPlaceholderColor(int placeholderColor) { this.placeholderColor = placeholderColor; }
+    public long getContentVersion() { return contentVersion; }
+    public void setContentVersion(long contentVersion) { this.contentVersion = contentVersion; }
+
+    // Холст новой ячейки: пропорции ячейки, вписанные в разрешение страницы,
+    // иначе миниатюра размером с ячейку сплющит рисунок
+    public int getCanvasWidth(int pageWidth, int pageHeight) {
+        return Math.max(1, Math.round(width * canvasScale(pageWidth, pageHeight)));
+    }
+
+    public int getCanvasHeight(int pageWidth, int pageHeight) {
+        return Math.max(1, Math.round(height * canvasScale(pageWidth, pageHeight)));
+    }
+
+    private float canvasScale(int pageWidth, int pageHeight) {
+        return Math.min(pageWidth / width, pageHeight / height);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package com.example.ad;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Общий для всех страниц кэш миниатюр ячеек по id ячейки и версии рисунка,
+ * так что перелистывание страниц туда и обратно не декодирует их заново.
+ * Вытесненные битмапы, которые уже не показаны ни одной ячейкой, уходят в
+ * пул и служат inBitmap при следующих декодированиях: миниатюры одного
+ * размера, и промах кэша обходится без новой аллокации.
+ * Показанный битмап удерживается acquire/release, иначе пул отдал бы его
+ * под чужой рисунок прямо на экране.
+ */
+public class CellBitmapCache {
+    private static final int MEMORY_CACHE_FRACTION = 8; // доля кучи под миниатюры
+    private static final int POOL_FRACTION = 4;        // пул - доля от размера кэша
+
+    private static CellBitmapCache instance;
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final Map<Bitmap, Integer> references = new IdentityHashMap<>();
+    private final Set<Bitmap> cached = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Свободные битмапы по размеру и формату
+    private final Map<String, ArrayDeque<Bitmap>> pool = new HashMap<>();
+    private final long poolMaxBytes;
+    private long poolBytes;
+
+    public static synchronized CellBitmapCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new CellBitmapCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CellBitmapCache(Context appContext) {
+        int cacheKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / MEMORY_CACHE_FRACTION);
+        poolMaxBytes = (long) cacheKb * 1024 / POOL_FRACTION;
+        memoryCache = new LruCache<String, Bitmap>(cacheKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount() / 1024;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) onUncached(oldValue);
+            }
+        };
+        // Система просит память - отдаем кэш и пул
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_MODERATE) {
+                    clear();
+                } else if (level >= TRIM_MEMORY_BACKGROUND) {
+                    memoryCache.trimToSize(memoryCache.maxSize() / 2);
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * Ключ миниатюры: id ячейки и версия ее содержимого. Достроенная миниатюра
+     * версию не меняет и попадает под тот же ключ, что и до записи в базу.
+     */
+    static String keyOf(Cell cell) {
+        return cell.getId() + ":" + cell.getContentVersion();
+    }
+
+    /** Битмап из кэша, удержанный до release; null - его нет. */
+    public synchronized Bitmap acquire(String key) {
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) retain(bitmap);
+        return bitmap;
+    }
+
+    /** Кладет битмап в кэш, удержанным вызывающим до release. */
+    public synchronized void put(String key, Bitmap bitmap) {
+        retain(bitmap);
+        cached.add(bitmap);
+        memoryCache.put(key, bitmap);
+    }
+
+    /** Ячейка больше не показывает битмап. */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = references.get(bitmap);
+        if (count == null) return;
+        if (count > 1) {
+            references.put(bitmap, count - 1);
+            return;
+        }
+        references.remove(bitmap);
+        if (!cached.contains(bitmap)) offer(bitmap);
+    }
+
+    /** Декодирует файл миниатюры, по возможности в битмап из пула. */
+    public Bitmap decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inMutable = true; // иначе битмап не вернется в пул
+        options.inBitmap = take(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // Битмап из пула не подошел декодеру - декодируем в новый
+            Bitmap unused = options.inBitmap;
+            options.inBitmap = null;
+            synchronized (this) {
+                offer(unused);
+            }
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    private void retain(Bitmap bitmap) {
+        Integer count = references.get(bitmap);
+        references.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    // LruCache вызывает это вне своей блокировки
+    private synchronized void onUncached(Bitmap bitmap) {
+        cached.remove(bitmap);
+        if (!references.containsKey(bitmap)) offer(bitmap);
+    }
+
+    private void offer(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) return;
+        long size = bitmap.getAllocationByteCount();
+        if (poolBytes + size > poolMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        String key = poolKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> free = pool.get(key);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            pool.put(key, free);
+        }
+        free.push(bitmap);
+        poolBytes += size;
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> free = pool.get(poolKey(width, height, config));
+        if (free == null || free.isEmpty()) return null;
+        Bitmap bitmap = free.pop();
+        poolBytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    private static String poolKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    private synchronized void clear() {
+        memoryCache.evictAll();
+        for (ArrayDeque<Bitmap> free : pool.values()) {
+            for (Bitmap bitmap : free) bitmap.recycle();
+        }
+        pool.clear();
+        poolBytes = 0;
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.ad;
+
+/**
+ * Сохраненный рисунок ячейки: превью и миниатюра лежат в BlobStore, база
+ * хранит их хеши, цвет-заглушку и текст реплик для поиска.
+ */
+public class CellDrawing {
+    public final String previewHash;
+    public final long previewSize;
+    public final String thumbnailHash;
+    public final long thumbnailSize;
+    public final int placeholderColor; // средний цвет рисунка, виден до загрузки миниатюры
+    public final String balloonText;   // null - реплик нет
+
+    public CellDrawing(String previewHash, long previewSize, String thumbnailHash, long thumbnailSize,
+                       int placeholderColor, String balloonText) {
+        this.previewHash = previewHash;
+        this.previewSize = previewSize;
+        this.thumbnailHash = thumbnailHash;
+        this.thumbnailSize = thumbnailSize;
+        this.placeholderColor = placeholderColor;
+        this.balloonText = balloonText;
+    }
+}
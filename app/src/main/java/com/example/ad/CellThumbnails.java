@@ -0,0 +1,72 @@
+package com.example.ad;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Миниатюры ячеек для страницы: превью рисунка, ужатое до размера ячейки на
+ * листе, лежит в BlobStore в WEBP, и средний цвет рисунка, который
+ * показывается, пока миниатюра грузится. Пишутся при сохранении рисунка, у
+ * старых ячеек - при первом показе.
+ */
+final class CellThumbnails {
+    static final int SIZE = 300; // сторона ячейки на листе, см. PageFragment
+    private static final int WEBP_QUALITY = 80;
+
+    static final class Thumbnail {
+        final Bitmap bitmap;
+        final String hash;
+        final long size;
+        final int placeholderColor;
+
+        Thumbnail(Bitmap bitmap, String hash, long size, int placeholderColor) {
+            this.bitmap = bitmap;
+            this.hash = hash;
+            this.size = size;
+            this.placeholderColor = placeholderColor;
+        }
+    }
+
+    private CellThumbnails() {
+    }
+
+    /** Ужимает превью до SIZE x SIZE, как его растягивала страница, и кладет результат в BlobStore. */
+    static Thumbnail store(BlobStore blobStore, Bitmap preview) throws IOException {
+        Bitmap bitmap = Bitmap.createScaledBitmap(preview, SIZE, SIZE, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!bitmap.compress(webp(), WEBP_QUALITY, bytes)) {
+            throw new IOException("Не удалось сжать миниатюру");
+        }
+        byte[] data = bytes.toByteArray();
+        return new Thumbnail(bitmap, blobStore.put(data), data.length, placeholderColorOf(bitmap));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webp() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    // Средний цвет без прозрачности; 0 в базе означает "еще не посчитан"
+    private static int placeholderColorOf(Bitmap bitmap) {
+        Bitmap pixel = Bitmap.createScaledBitmap(bitmap, 1, 1, true);
+        int color = pixel.getPixel(0, 0) | 0xFF000000;
+        if (pixel != bitmap) pixel.recycle();
+        return color;
+    }
+
+    /** Превью старой ячейки, декодированное с inSampleSize не крупнее нужного для миниатюры. */
+    static Bitmap decodePreview(File file) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageSampling.sampleSizeFor(bounds.outWidth, bounds.outHeight, SIZE, SIZE);
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.ad;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Отложенная запись положения, размера и пути рисунка ячеек. Изменения
+ * копятся в памяти, от каждой ячейки остается только последнее значение.
+ * flush() пишет их одним пакетом в фоновом потоке. Значение, совпадающее с
+ * уже записанным в базу, в пакет не попадает. Пока изменения не записаны,
+ * чтение ячеек накладывает их поверх строк из базы (applyPending).
+ */
+public class CellWriteQueue {
+    static final int MAX_PERSISTED = 512; // больше десятка страниц по 36 ячеек
+
+    public static final class Update {
+        public final long cellId;
+        public final float x, y, width, height;
+        public final String drawingPath;
+
+        public Update(long cellId, float x, float y, float width, float height, String drawingPath) {
+            this.cellId = cellId;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.drawingPath = drawingPath;
+        }
+
+        boolean sameValues(Update other) {
+            return x == other.x && y == other.y && width == other.width && height == other.height
+                    && (drawingPath == null ? other.drawingPath == null : drawingPath.equals(other.drawingPath));
+        }
+    }
+
+    /** Записывает пакет целиком (одной транзакцией) или бросает исключение. */
+    public interface Writer {
+        void writeCells(List<Update> updates) throws Exception;
+    }
+
+    private final Writer writer;
+    private final ExecutorService executor;
+    private Map<Long, Update> pending = new LinkedHashMap<>();
+    private Map<Long, Update> inFlight = new LinkedHashMap<>();
+    // Значения, которые точно лежат в базе, для недавно прочитанных и записанных ячеек.
+    // Забытая ячейка лишь не отсеется как неизмененная и запишется повторно
+    private final Map<Long, Update> persisted = new LinkedHashMap<Long, Update>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Update> eldest) {
+            return size() > MAX_PERSISTED;
+        }
+    };
+
+    public CellWriteQueue(Writer writer, ExecutorService executor) {
+        this.writer = writer;
+        this.executor = executor;
+    }
+
+    /** Ставит значения ячейки в очередь, заменяя прежние незаписанные. */
+    public synchronized void put(long cellId, float x, float y, float width, float height, String drawingPath) {
+        Update update = new Update(cellId, x, y, width, height, drawingPath);
+        Update written = inFlight.containsKey(cellId) ? inFlight.get(cellId) : persisted.get(cellId);
+        if (written != null && written.sameValues(update)) {
+            pending.remove(cellId); // вернулись к записанному: писать нечего
+        } else {
+            pending.put(cellId, update);
+        }
+    }
+
+    /** Запоминает значения строки, прочитанной из базы. */
+    public void remember(Cell cell) {
+        remember(cell.getId(), cell.getX(), cell.getY(), cell.getWidth(), cell.getHeight(), cell.getDrawingPath());
+    }
+
+    public synchronized void remember(long cellId, float x, float y, float width, float height, String drawingPath) {
+        persisted.put(cellId, new Update(cellId, x, y, width, height, drawingPath));
+    }
+
+    /** Строку изменили в обход очереди: ее значения в базе больше не известны. */
+    public synchronized void forget(long cellId) {
+        persisted.remove(cellId);
+    }
+
+    /** Накладывает незаписанные значения на ячейку, прочитанную из базы. */
+    public void applyPending(Cell cell) {
+        Update update = getPending(cell.getId());
+        if (update == null) return;
+        cell.setX(update.x);
+        cell.setY(update.y);
+        cell.setWidth(update.width);
+        cell.setHeight(update.height);
+        cell.setDrawingPath(update.drawingPath);
+    }
+
+    /** Последнее незаписанное значение ячейки или null. */
+    public synchronized Update getPending(long cellId) {
+        Update update = pending.get(cellId);
+        return update != null ? update : inFlight.get(cellId);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Отправляет накопленные изменения на запись. Пакеты пишутся по очереди
+     * в одном фоновом потоке. Если запись не удалась, изменения возвращаются
+     * в очередь, если их еще не заменили более новые.
+     */
+    public Future<Integer> flush() {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                List<Update> batch;
+                synchronized (CellWriteQueue.this) {
+                    if (pending.isEmpty()) return 0;
+                    inFlight = pending;
+                    pending = new LinkedHashMap<>();
+                    batch = new ArrayList<>(inFlight.values());
+                }
+                try {
+                    writer.writeCells(batch);
+                } catch (Exception e) {
+                    synchronized (CellWriteQueue.this) {
+                        for (Update update : batch) {
+                            if (!pending.containsKey(update.cellId)) pending.put(update.cellId, update);
+                        }
+                        inFlight = new LinkedHashMap<>();
+                    }
+                    throw e;
+                }
+                synchronized (CellWriteQueue.this) {
+                    for (Update update : batch) persisted.put(update.cellId, update);
+                    inFlight = new LinkedHashMap<>();
+                }
+                return batch.size();
+            }
+        });
+    }
+}
@@ -5,6 +5,7 @@ public class Comic {
     private long userId; // New field
     private String title;
     private String coverImagePath;
+    private String createdDate; // вместе с id - ключ страниц библиотеки
 
     public long getId() { return id; }
     public void setId(long id) { this.id = id; }
@@ -14,4 +15,6 @@ public class Comic {
     public void setTitle(String title) { this.title = title; }
     public String getCoverImagePath() { return coverImagePath; }
     public void setCoverImagePath(String coverImagePath) { this.coverImagePath = coverImagePath; }
+    public String getCreatedDate() { return createdDate; }
+    public void setCreatedDate(String createdDate) { this.createdDate = createdDate; }
 }
\ No newline at end of file
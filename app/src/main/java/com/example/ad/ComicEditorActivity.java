@@ -12,17 +12,14 @@ import androidx.fragment.app.Fragment;
 import androidx.viewpager2.adapter.FragmentStateAdapter;
 import androidx.viewpager2.widget.ViewPager2;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class ComicEditorActivity extends AppCompatActivity {
     private ViewPager2 viewPager;
 
     private ImageButton prevPageButton, nextPageButton,addPageButton;
-    private DatabaseHelper dbHelper;
+    private ComicRepository repository;
     private long comicId;
     private PageAdapter pageAdapter;
-    private List<Page> pages;
+    private ComicGraph graph; // общий для всех страниц, null до загрузки
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -33,7 +30,7 @@ public class ComicEditorActivity extends AppCompatActivity {
         addPageButton = findViewById(R.id.addPageButton);
         prevPageButton = findViewById(R.id.prevPageButton);
         nextPageButton = findViewById(R.id.nextPageButton);
-        dbHelper = new DatabaseHelper(this);
+        repository = ComicRepository.getInstance(this);
         comicId = getIntent().getLongExtra("comic_id", -1);
 
         if (comicId == -1) {
@@ -42,45 +39,44 @@ public class ComicEditorActivity extends AppCompatActivity {
             return;
         }
 
-        pages = new ArrayList<>();
-        try {
-            pages.addAll(dbHelper.getPagesForComic(comicId));
-            if (pages.isEmpty()) {
-                Toast.makeText(this, "No pages found for this comic", Toast.LENGTH_SHORT).show();
-                long newPageId = dbHelper.insertPage(comicId, 1);
-                if (newPageId != -1) {
-                    Page newPage = new Page();
-                    newPage.setId(newPageId);
-                    newPage.setComicId(comicId);
-                    newPage.setPageNumber(1);
-                    pages.add(newPage);
-                }
-            }
-        } catch (Exception e) {
-            Toast.makeText(this, "Failed to load pages: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
-
-        pageAdapter = new PageAdapter(this, pages);
+        // Пейджер пуст, пока страницы и ячейки не прочитаны одним запросом;
+        // добавлять страницы до этого нельзя
+        pageAdapter = new PageAdapter(this);
         viewPager.setAdapter(pageAdapter);
+        addPageButton.setEnabled(false);
         updateNavigationButtons();
+        repository.loadComicGraph(comicId, loaded -> {
+            if (isFinishing() || isDestroyed()) return;
+            graph = loaded;
+            pageAdapter.notifyItemRangeInserted(0, graph.getPageCount());
+            addPageButton.setEnabled(true);
+            updateNavigationButtons();
+        }, e -> {
+            if (isFinishing() || isDestroyed()) return;
+            Toast.makeText(this, "Failed to load pages: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            finish();
+        });
 
         addPageButton.setOnClickListener(v -> {
-            int newPageNumber = pages.size() + 1;
-            long newPageId = dbHelper.insertPage(comicId, newPageNumber);
-            if (newPageId != -1) {
-                Page newPage = new Page();
-                newPage.setId(newPageId);
-                newPage.setComicId(comicId);
-                newPage.setPageNumber(newPageNumber);
-                pages.add(newPage);
-                pageAdapter.notifyItemInserted(pages.size() - 1);
-                viewPager.setCurrentItem(pages.size() - 1, true);
-                updateNavigationButtons();
-            } else {
+            int newPageNumber = graph.getPageCount() + 1;
+            addPageButton.setEnabled(false);
+            repository.addPage(comicId, newPageNumber, newPageId -> {
+                if (isFinishing() || isDestroyed()) return;
+                addPageButton.setEnabled(true);
+                if (newPageId != -1) {
+                    Page newPage = new Page();
+                    int index = graph.addPage(newPageId, newPageNumber, newPage.getWidth(), newPage.getHeight());
+                    pageAdapter.notifyItemInserted(index);
+                    viewPager.setCurrentItem(index, true);
+                    updateNavigationButtons();
+                } else {
+                    Toast.makeText(this, "Failed to add page", Toast.LENGTH_SHORT).show();
+                }
+            }, e -> {
+                if (isFinishing() || isDestroyed()) return;
+                addPageButton.setEnabled(true);
                 Toast.makeText(this, "Failed to add page", Toast.LENGTH_SHORT).show();
-            }
+            });
         });
 
         prevPageButton.setOnClickListener(v -> {
@@ -93,7 +89,7 @@ public class ComicEditorActivity extends AppCompatActivity {
 
         nextPageButton.setOnClickListener(v -> {
             int current = viewPager.getCurrentItem();
-            if (current < pages.size() - 1) {
+            if (current < pageAdapter.getItemCount() - 1) {
                 viewPager.setCurrentItem(current + 1, true);
                 updateNavigationButtons();
             }
@@ -123,30 +119,35 @@ public class ComicEditorActivity extends AppCompatActivity {
     private void updateNavigationButtons() {
         int current = viewPager.getCurrentItem();
         prevPageButton.setEnabled(current > 0);
-        nextPageButton.setEnabled(current < pages.size() - 1);
+        nextPageButton.setEnabled(current < pageAdapter.getItemCount() - 1);
+    }
+
+    /** Граф комикса для фрагментов страниц; null, пока он не загружен. */
+    public ComicGraph getComicGraph() {
+        return graph;
     }
 
     private class PageAdapter extends FragmentStateAdapter {
-        private List<Page> pages;
 
-        public PageAdapter(ComicEditorActivity activity, List<Page> pages) {
+        public PageAdapter(ComicEditorActivity activity) {
             super(activity);
-            this.pages = pages;
         }
 
         @Override
         public Fragment createFragment(int position) {
             PageFragment fragment = new PageFragment();
             Bundle args = new Bundle();
-            args.putLong("page_id", pages.get(position).getId());
+            args.putLong("page_id", graph.getPageId(position));
             args.putLong("comic_id", comicId);
+            args.putInt("page_width", graph.getPageWidth(position));
+            args.putInt("page_height", graph.getPageHeight(position));
             fragment.setArguments(args);
             return fragment;
         }
 
         @Override
         public int getItemCount() {
-            return pages.size();
+            return graph != null ? graph.getPageCount() : 0;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package com.example.ad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Страницы комикса со всеми ячейками, прочитанные одним запросом
+ * (DatabaseHelper.loadComicGraph). Данные лежат в массивах примитивов по
+ * страницам; объекты Page и Cell создаются только по запросу экрана.
+ * Редактор держит один граф на комикс, фрагменты страниц берут ячейки из него
+ * и сообщают ему о своих изменениях. Все обращения - из главного потока.
+ */
+public class ComicGraph {
+
+    // Ячейки одной страницы в порядке position
+    private static final class PageCells {
+        long[] ids = new long[8];
+        float[] x = new float[8];
+        float[] y = new float[8];
+        float[] width = new float[8];
+        float[] height = new float[8];
+        String[] paths = new String[8];
+        String[] blobs = new String[8];
+        String[] thumbnails = new String[8];
+        int[] colors = new int[8];
+        long[] versions = new long[8];
+        int count;
+
+        void add(long id, float cx, float cy, float cw, float ch, String path, String blob,
+                 String thumbnail, int color, long version) {
+            if (count == ids.length) {
+                int capacity = count * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                width = Arrays.copyOf(width, capacity);
+                height = Arrays.copyOf(height, capacity);
+                paths = Arrays.copyOf(paths, capacity);
+                blobs = Arrays.copyOf(blobs, capacity);
+                thumbnails = Arrays.copyOf(thumbnails, capacity);
+                colors = Arrays.copyOf(colors, capacity);
+                versions = Arrays.copyOf(versions, capacity);
+            }
+            ids[count] = id;
+            blobs[count] = blob;
+            thumbnails[count] = thumbnail;
+            colors[count] = color;
+            versions[count] = version;
+            set(count, cx, cy, cw, ch, path);
+            count++;
+        }
+
+        void set(int index, float cx, float cy, float cw, float ch, String path) {
+            x[index] = cx;
+            y[index] = cy;
+            width[index] = cw;
+            height[index] = ch;
+            paths[index] = path;
+        }
+
+        int indexOf(long id) {
+            for (int i = 0; i < count; i++) {
+                if (ids[i] == id) return i;
+            }
+            return -1;
+        }
+    }
+
+    private final long comicId;
+    private long[] pageIds = new long[4];
+    private int[] pageNumbers = new int[4];
+    private int[] pageWidths = new int[4];
+    private int[] pageHeights = new int[4];
+    private PageCells[] pageCells = new PageCells[4];
+    private int pageCount;
+
+    public ComicGraph(long comicId) {
+        this.comicId = comicId;
+    }
+
+    public long getComicId() { return comicId; }
+
+    public int getPageCount() { return pageCount; }
+
+    public long getPageId(int index) { return pageIds[index]; }
+    public int getPageNumber(int index) { return pageNumbers[index]; }
+    public int getPageWidth(int index) { return pageWidths[index]; }
+    public int getPageHeight(int index) { return pageHeights[index]; }
+
+    public int indexOfPage(long pageId) {
+        for (int i = 0; i < pageCount; i++) {
+            if (pageIds[i] == pageId) return i;
+        }
+        return -1;
+    }
+
+    /** Добавляет страницу в конец; возвращает ее индекс. */
+    public int addPage(long pageId, int pageNumber, int width, int height) {
+        if (pageCount == pageIds.length) {
+            int capacity = pageCount * 2;
+            pageIds = Arrays.copyOf(pageIds, capacity);
+            pageNumbers = Arrays.copyOf(pageNumbers, capacity);
+            pageWidths = Arrays.copyOf(pageWidths, capacity);
+            pageHeights = Arrays.copyOf(pageHeights, capacity);
+            pageCells = Arrays.copyOf(pageCells, capacity);
+        }
+        pageIds[pageCount] = pageId;
+        pageNumbers[pageCount] = pageNumber;
+        pageWidths[pageCount] = width;
+        pageHeights[pageCount] = height;
+        pageCells[pageCount] = new PageCells();
+        return pageCount++;
+    }
+
+    private PageCells cellsOf(long pageId) {
+        int index = indexOfPage(pageId);
+        return index >= 0 ? pageCells[index] : null;
+    }
+
+    public boolean containsPage(long pageId) {
+        return indexOfPage(pageId) >= 0;
+    }
+
+    public int getCellCount(long pageId) {
+        PageCells cells = cellsOf(pageId);
+        return cells != null ? cells.count : 0;
+    }
+
+    /** Ячейки страницы новыми объектами Cell; position - порядок на странице. */
+    public List<Cell> getCells(long pageId) {
+        PageCells cells = cellsOf(pageId);
+        if (cells == null) return new ArrayList<>();
+        List<Cell> result = new ArrayList<>(cells.count);
+        for (int i = 0; i < cells.count; i++) {
+            Cell cell = new Cell();
+            cell.setId(cells.ids[i]);
+            cell.setPageId(pageId);
+            cell.setX(cells.x[i]);
+            cell.setY(cells.y[i]);
+            cell.setWidth(cells.width[i]);
+            cell.setHeight(cells.height[i]);
+            cell.setDrawingPath(cells.paths[i]);
+            cell.setDrawingBlob(cells.blobs[i]);
+            cell.setThumbnailBlob(cells.thumbnails[i]);
+            cell.setPlaceholderColor(cells.colors[i]);
+            cell.setContentVersion(cells.versions[i]);
+            cell.setPosition(i);
+            result.add(cell);
+        }
+        return result;
+    }
+
+    /** Добавляет ячейку в конец страницы; false, если страницы нет в графе. */
+    public boolean addCell(long pageId, long cellId, float x, float y, float width, float height, String drawingPath) {
+        return addCell(pageId, cellId, x, y, width, height, drawingPath, null, null, 0, 0);
+    }
+
+    public boolean addCell(long pageId, long cellId, float x, float y, float width, float height,
+                           String drawingPath, String drawingBlob, String thumbnailBlob, int placeholderColor,
+                           long contentVersion) {
+        PageCells cells = cellsOf(pageId);
+        if (cells == null) return false;
+        cells.add(cellId, x, y, width, height, drawingPath, drawingBlob, thumbnailBlob, placeholderColor, contentVersion);
+        return true;
+    }
+
+    /** Обновляет геометрию и путь ячейки; false, если такой ячейки нет. */
+    public boolean updateCell(long pageId, long cellId, float x, float y, float width, float height, String drawingPath) {
+        PageCells cells = cellsOf(pageId);
+        int index = cells != null ? cells.indexOf(cellId) : -1;
+        if (index < 0) return false;
+        cells.set(index, x, y, width, height, drawingPath);
+        return true;
+    }
+
+    /** Заменяет ячейки страницы (например, перечитанные после рисования). */
+    public void setCells(long pageId, List<Cell> cells) {
+        int index = indexOfPage(pageId);
+        if (index < 0) return;
+        PageCells page = new PageCells();
+        for (Cell cell : cells) {
+            page.add(cell.getId(), cell.getX(), cell.getY(), cell.getWidth(), cell.getHeight(),
+                    cell.getDrawingPath(), cell.getDrawingBlob(), cell.getThumbnailBlob(), cell.getPlaceholderColor(),
+                    cell.getContentVersion());
+        }
+        pageCells[index] = page;
+    }
+}
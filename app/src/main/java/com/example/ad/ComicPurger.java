@@ -0,0 +1,68 @@
+package com.example.ad;
+
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Очистка комиксов, помеченных удаленными (DatabaseHelper.deleteComic). Каждый
+ * шаг удаляет порцию ячеек или страниц одного комикса; когда строк не осталось,
+ * удаляется каталог комикса и только потом сама строка, поэтому после
+ * перезапуска процесса очистка продолжается с того же места. В конце
+ * DrawingGarbageCollector убирает освободившиеся рисунки.
+ */
+class ComicPurger {
+    private static final String TAG = "ComicPurger";
+    static final int CHUNK_SIZE = 500;
+
+    private final DatabaseHelper db;
+    private final File comicsDir;
+    private final DrawingGarbageCollector collector;
+    private int purgedCount;
+    private long reclaimedBytes;
+
+    ComicPurger(DatabaseHelper db, File comicsDir, DrawingGarbageCollector collector) {
+        this.db = db;
+        this.comicsDir = comicsDir;
+        this.collector = collector;
+    }
+
+    /** Один шаг очистки; true, если работа еще осталась. */
+    boolean runBatch() {
+        long comicId = db.getNextDeletedComic();
+        if (comicId == -1) {
+            return collector.runBatch();
+        }
+        if (db.purgeComicRows(comicId, CHUNK_SIZE) > 0) {
+            return true;
+        }
+        reclaimedBytes += deleteDirectory(new File(comicsDir, "comic_" + comicId));
+        if (db.deleteComicRow(comicId)) {
+            purgedCount++;
+            Log.d(TAG, "Комикс " + comicId + " удален окончательно");
+        }
+        return true;
+    }
+
+    int getPurgedCount() {
+        return purgedCount;
+    }
+
+    /** Байты удаленных файлов: каталоги комиксов и собранные рисунки. */
+    long getReclaimedBytes() {
+        return reclaimedBytes + collector.getReclaimedBytes();
+    }
+
+    private static long deleteDirectory(File file) {
+        long freed = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                freed += deleteDirectory(child);
+            }
+        }
+        long size = file.isFile() ? file.length() : 0;
+        if (file.delete()) freed += size;
+        return freed;
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.ad;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронный доступ к данным для экранов. Запись в базу идет по очереди в
+ * единственном потоке записи DatabaseHelper, чтение и работа с файлами - в
+ * небольшом пуле. Результат приходит в главный поток, поэтому экран сначала
+ * показывает заглушки и заполняет их по мере прихода данных. Жив ли экран к
+ * моменту ответа, проверяет сам колбэк.
+ */
+public class ComicRepository {
+    private static final String TAG = "ComicRepository";
+    private static final int READER_COUNT = 2;
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    public interface ErrorCallback {
+        void onError(Exception e);
+    }
+
+    public interface Task<T> {
+        T run() throws Exception;
+    }
+
+    private static ComicRepository instance;
+
+    private final Context appContext;
+    private final DatabaseHelper db;
+    private final ExecutorService readers;
+    private final BlobStore blobStore;
+    private final CellBitmapCache cellBitmaps;
+    private final AtomicBoolean purging = new AtomicBoolean();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized ComicRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new ComicRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ComicRepository(Context appContext) {
+        this.appContext = appContext;
+        this.db = DatabaseHelper.getInstance(appContext);
+        AtomicInteger count = new AtomicInteger();
+        this.readers = Executors.newFixedThreadPool(READER_COUNT,
+                r -> new Thread(r, "db-reader-" + count.incrementAndGet()));
+        this.blobStore = new BlobStore(new File(appContext.getFilesDir(), "blobs"));
+        this.cellBitmaps = CellBitmapCache.getInstance(appContext);
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    public DatabaseHelper getDatabase() {
+        return db;
+    }
+
+    /** Чтение из базы или с диска в пуле чтения. */
+    public <T> void read(Task<T> task, Callback<T> onResult, ErrorCallback onError) {
+        readers.execute(() -> deliver(task, onResult, onError));
+    }
+
+    /** Изменение в потоке записи, после всех ранее поставленных изменений. */
+    public <T> void write(Task<T> task, Callback<T> onResult, ErrorCallback onError) {
+        db.getWriteExecutor().execute(() -> deliver(task, onResult, onError));
+    }
+
+    private <T> void deliver(Task<T> task, Callback<T> onResult, ErrorCallback onError) {
+        T result;
+        try {
+            result = task.run();
+        } catch (Exception e) {
+            Log.e(TAG, "Background task failed: " + e.getMessage(), e);
+            if (onError != null) mainHandler.post(() -> onError.onError(e));
+            return;
+        }
+        if (onResult != null) mainHandler.post(() -> onResult.onResult(result));
+    }
+
+    /** Следующая страница библиотеки после комикса after (null - первая страница). */
+    public void loadComicsPage(long userId, Comic after, int limit, Callback<List<Comic>> onResult, ErrorCallback onError) {
+        String afterCreatedDate = after != null ? after.getCreatedDate() : null;
+        long afterId = after != null ? after.getId() : 0;
+        read(() -> db.getComicsPage(userId, afterCreatedDate, afterId, limit), onResult, onError);
+    }
+
+    /**
+     * Записывает отчет QueryStats в files/query_stats.txt и отдает его текст:
+     * для отладочного экрана и для сбора отчетов с устройств.
+     */
+    public void dumpQueryStats(Callback<String> onResult, ErrorCallback onError) {
+        read(() -> {
+            String dump = db.getQueryStats().dump();
+            try (Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(new File(appContext.getFilesDir(), "query_stats.txt")), StandardCharsets.UTF_8)) {
+                writer.write(dump);
+            }
+            return dump;
+        }, onResult, onError);
+    }
+
+    /** Поиск по названиям и репликам; файлы не читаются. */
+    public void searchComics(long userId, String query, int limit, Callback<List<Comic>> onResult, ErrorCallback onError) {
+        read(() -> db.searchComics(userId, query, limit), onResult, onError);
+    }
+
+    /** Комикс сразу пропадает из библиотеки, его строки и файлы удаляются в фоне. */
+    public void deleteComic(long comicId, Callback<Boolean> onResult, ErrorCallback onError) {
+        write(() -> db.deleteComic(comicId), deleted -> {
+            if (deleted) purgeDeletedComics();
+            if (onResult != null) onResult.onResult(deleted);
+        }, onError);
+    }
+
+    /**
+     * Дочищает удаленные комиксы (в том числе не дочищенные до перезапуска) и
+     * собирает рисунки без ссылок. Работает порциями в потоке записи, между
+     * порциями проходят изменения экранов; повторный вызов во время очистки
+     * ничего не делает.
+     */
+    public void purgeDeletedComics() {
+        if (!purging.compareAndSet(false, true)) return;
+        File comicsDir = new File(appContext.getFilesDir(), "comics");
+        purgeBatch(new ComicPurger(db, comicsDir, new DrawingGarbageCollector(db, blobStore, comicsDir)));
+    }
+
+    private void purgeBatch(ComicPurger purger) {
+        write(purger::runBatch, more -> {
+            if (more) {
+                purgeBatch(purger);
+                return;
+            }
+            purging.set(false);
+            Log.i(TAG, "Очистка завершена: комиксов удалено " + purger.getPurgedCount()
+                    + ", освобождено " + purger.getReclaimedBytes() / 1024 + " КБ");
+        }, e -> purging.set(false));
+    }
+
+    /** Граф страниц и ячеек комикса; у комикса без страниц создается первая. */
+    public void loadComicGraph(long comicId, Callback<ComicGraph> onResult, ErrorCallback onError) {
+        write(() -> {
+            ComicGraph graph = db.loadComicGraph(comicId);
+            if (graph.getPageCount() == 0) {
+                long pageId = db.insertPage(comicId, 1);
+                if (pageId != -1) {
+                    Page page = new Page();
+                    graph.addPage(pageId, 1, page.getWidth(), page.getHeight());
+                }
+            }
+            return graph;
+        }, onResult, onError);
+    }
+
+    public void addPage(long comicId, int pageNumber, Callback<Long> onResult, ErrorCallback onError) {
+        write(() -> db.insertPage(comicId, pageNumber), onResult, onError);
+    }
+
+    public void loadCells(long pageId, Callback<List<Cell>> onResult, ErrorCallback onError) {
+        read(() -> db.getCellsForPage(pageId), onResult, onError);
+    }
+
+    public void loadCell(long cellId, Callback<Cell> onResult, ErrorCallback onError) {
+        read(() -> db.getCell(cellId), onResult, onError);
+    }
+
+    public void insertCell(long pageId, float x, float y, float width, float height, String drawingPath,
+                           Callback<Long> onResult, ErrorCallback onError) {
+        write(() -> db.insertCell(pageId, x, y, width, height, drawingPath), onResult, onError);
+    }
+
+    public void updateCellDrawingPath(long cellId, String drawingPath, Callback<Void> onResult, ErrorCallback onError) {
+        write(() -> {
+            db.updateCellDrawingPath(cellId, drawingPath);
+            return null;
+        }, onResult, onError);
+    }
+
+    /**
+     * Ставит ячейке сохраненный в BlobStore рисунок и отдает ее новую версию
+     * содержимого; прежний рисунок уходит сборщику мусора.
+     */
+    public void setCellDrawing(long cellId, String drawingPath, CellDrawing drawing,
+                               Callback<Long> onResult, ErrorCallback onError) {
+        write(() -> db.setCellDrawingBlob(cellId, drawingPath, drawing), onResult, onError);
+    }
+
+    public void clearCellDrawing(long cellId, Callback<Void> onResult, ErrorCallback onError) {
+        write(() -> {
+            db.clearCellDrawing(cellId);
+            return null;
+        }, onResult, onError);
+    }
+
+    /** Файл превью ячейки: из BlobStore, у старых ячеек - PNG по пути из базы. */
+    public File getDrawingFile(Cell cell) {
+        if (cell.getDrawingBlob() != null) return blobStore.fileFor(cell.getDrawingBlob());
+        String path = cell.getDrawingPath();
+        if (path == null || path.isEmpty()) return null;
+        File file = new File(path);
+        // DrawingActivity пишет в базу только имя файла в каталоге comics
+        return file.isAbsolute() ? file : new File(new File(appContext.getFilesDir(), "comics"), path);
+    }
+
+    /**
+     * Миниатюра ячейки для страницы (CellThumbnails.SIZE); null, если рисунка
+     * нет. Из общего кэша отдается сразу, иначе декодируется в битмап из пула.
+     * У ячейки без миниатюры она строится из превью и записывается в базу,
+     * чтобы следующий показ декодировал только маленький файл. Полученный
+     * битмап удерживается до releaseCellThumbnail.
+     */
+    public void loadCellThumbnail(Cell cell, Callback<Bitmap> onResult) {
+        String key = CellBitmapCache.keyOf(cell);
+        Bitmap cached = cellBitmaps.acquire(key);
+        if (cached != null) {
+            onResult.onResult(cached);
+            return;
+        }
+        String thumbnailBlob = cell.getThumbnailBlob();
+        long contentVersion = cell.getContentVersion();
+        File file = getDrawingFile(cell);
+        long cellId = cell.getId();
+        read(() -> {
+            Bitmap bitmap = buildCellThumbnail(cellId, contentVersion, thumbnailBlob, file);
+            if (bitmap != null) cellBitmaps.put(key, bitmap);
+            return bitmap;
+        }, onResult, null);
+    }
+
+    /** Ячейка больше не показывает миниатюру, полученную из loadCellThumbnail. */
+    public void releaseCellThumbnail(Bitmap bitmap) {
+        cellBitmaps.release(bitmap);
+    }
+
+    // Выполняется в пуле чтения
+    private Bitmap buildCellThumbnail(long cellId, long contentVersion, String thumbnailBlob, File file) {
+        if (thumbnailBlob != null) {
+            Bitmap bitmap = cellBitmaps.decode(blobStore.fileFor(thumbnailBlob));
+            if (bitmap != null) return bitmap;
+        }
+        if (file == null || !file.exists()) return null;
+        Bitmap preview = CellThumbnails.decodePreview(file);
+        if (preview == null) return null;
+        Bitmap bitmap;
+        try {
+            CellThumbnails.Thumbnail thumbnail = CellThumbnails.store(blobStore, preview);
+            write(() -> db.setCellThumbnail(cellId, contentVersion, thumbnail.hash, thumbnail.size,
+                    thumbnail.placeholderColor), null, null);
+            bitmap = thumbnail.bitmap;
+        } catch (IOException e) {
+            // Без записанной миниатюры ячейка все равно показывается, попытка повторится при следующем показе
+            Log.w(TAG, "Не удалось сохранить миниатюру ячейки " + cellId + ": " + e.getMessage(), e);
+            bitmap = Bitmap.createScaledBitmap(preview, CellThumbnails.SIZE, CellThumbnails.SIZE, true);
+        }
+        if (bitmap != preview) preview.recycle();
+        return bitmap;
+    }
+}
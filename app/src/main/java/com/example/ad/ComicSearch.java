@@ -0,0 +1,61 @@
+package com.example.ad;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Поиск по полнотекстовому индексу comic_search (название комикса и текст
+ * реплик его ячеек): разбор строки поиска в выражение MATCH и оценка
+ * найденной строки по matchinfo(comic_search, 'pcx').
+ */
+final class ComicSearch {
+    static final int MAX_TERMS = 8;
+    // Совпадение в названии весит больше совпадения в реплике
+    private static final double[] COLUMN_WEIGHTS = {4.0, 1.0};
+
+    private ComicSearch() {
+    }
+
+    /**
+     * Выражение MATCH для строки пользователя: каждое слово ищется как префикс,
+     * нужны все слова. Кавычки и операторы FTS из ввода не проходят. null -
+     * в строке нет ни одного слова.
+     */
+    static String toMatchQuery(String input) {
+        if (input == null) return null;
+        StringBuilder query = new StringBuilder();
+        int terms = 0;
+        for (String token : input.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (token.isEmpty()) continue;
+            if (query.length() > 0) query.append(' ');
+            query.append(token).append('*');
+            if (++terms == MAX_TERMS) break;
+        }
+        return terms > 0 ? query.toString() : null;
+    }
+
+    /**
+     * Оценка строки: для каждого слова и столбца доля совпадений этой строки
+     * среди совпадений во всем индексе, с весом столбца. Редкое слово весит
+     * больше частого.
+     */
+    static double score(byte[] matchinfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int offset = 4 * (2 + 3 * (phrase * columns + column));
+                int hits = buffer.getInt(offset);
+                int hitsInAllRows = buffer.getInt(offset + 4);
+                if (hits > 0) {
+                    double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1.0;
+                    score += weight * hits / hitsInAllRows;
+                }
+            }
+        }
+        return score;
+    }
+}
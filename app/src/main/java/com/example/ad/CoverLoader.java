@@ -0,0 +1,238 @@
+package com.example.ad;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Обложки библиотеки в размере карточки. Два уровня кэша: в памяти LruCache
+ * на долю кучи, на диске - готовые уменьшенные JPEG в cacheDir/covers, так что
+ * исходное фото декодируется один раз. Декодирование идет в своем пуле с
+ * inSampleSize, запрос переиспользованной карточки отменяется.
+ */
+public class CoverLoader {
+    private static final String TAG = "CoverLoader";
+    private static final int THREAD_COUNT = 2;
+    private static final int MEMORY_CACHE_FRACTION = 8; // доля кучи под обложки
+    private static final int JPEG_QUALITY = 85;
+    private static final long DISK_CACHE_BYTES = 20L * 1024 * 1024;
+    private static final int WRITES_PER_TRIM = 20;
+
+    private static CoverLoader instance;
+
+    // Запрос одной карточки; флаг проверяется между шагами уже начатой загрузки
+    private static final class Request {
+        final String key;
+        volatile boolean cancelled;
+        Future<?> future;
+
+        Request(String key) {
+            this.key = key;
+        }
+    }
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final File diskDir;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger writesSinceTrim = new AtomicInteger();
+
+    public static synchronized CoverLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new CoverLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CoverLoader(Context appContext) {
+        int cacheKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / MEMORY_CACHE_FRACTION);
+        memoryCache = new LruCache<String, Bitmap>(cacheKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+        diskDir = new File(appContext.getCacheDir(), "covers");
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREAD_COUNT,
+                r -> new Thread(r, "cover-loader-" + count.incrementAndGet()));
+        // Система просит память - отдаем кэш обложек первым
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_MODERATE) {
+                    memoryCache.evictAll();
+                } else if (level >= TRIM_MEMORY_BACKGROUND) {
+                    memoryCache.trimToSize(memoryCache.maxSize() / 2);
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                memoryCache.evictAll();
+            }
+        });
+    }
+
+    /**
+     * Показывает обложку coverPath в view размером width x height. Из памяти -
+     * сразу, иначе view очищается до прихода картинки; прежний запрос этой
+     * view отменяется.
+     */
+    public void load(String coverPath, ImageView view, int width, int height) {
+        cancel(view);
+        if (coverPath == null || coverPath.isEmpty()) {
+            view.setImageResource(android.R.drawable.ic_menu_gallery);
+            return;
+        }
+        String key = coverPath + '@' + width + 'x' + height;
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+        view.setImageDrawable(null);
+        Request request = new Request(key);
+        view.setTag(R.id.cover_request, request);
+        request.future = executor.submit(() -> {
+            if (request.cancelled) return;
+            Bitmap bitmap = loadThumbnail(coverPath, width, height, request);
+            if (bitmap != null) memoryCache.put(key, bitmap);
+            mainHandler.post(() -> {
+                if (request.cancelled || view.getTag(R.id.cover_request) != request) return;
+                view.setTag(R.id.cover_request, null);
+                if (bitmap != null) {
+                    view.setImageBitmap(bitmap);
+                } else {
+                    view.setImageResource(android.R.drawable.ic_menu_gallery);
+                }
+            });
+        });
+    }
+
+    /** Отменяет незавершенную загрузку для view (карточка ушла с экрана или получила другой комикс). */
+    public void cancel(ImageView view) {
+        Request request = (Request) view.getTag(R.id.cover_request);
+        if (request == null) return;
+        request.cancelled = true;
+        // Еще не начатая задача просто не запустится; начатую останавливает флаг
+        if (request.future != null) request.future.cancel(false);
+        view.setTag(R.id.cover_request, null);
+    }
+
+    // Выполняется в пуле обложек
+    private Bitmap loadThumbnail(String coverPath, int width, int height, Request request) {
+        File source = new File(coverPath);
+        if (!source.exists()) return null;
+        // Обложка комикса не перезаписывается, но время и размер в ключе защищают от чужой версии файла
+        File thumbnail = new File(diskDir, BlobStore.hashOf((coverPath + '|' + source.lastModified() + '|'
+                + source.length() + '|' + width + 'x' + height).getBytes(StandardCharsets.UTF_8)) + ".jpg");
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath(), rgb565());
+            if (bitmap != null) {
+                thumbnail.setLastModified(System.currentTimeMillis()); // для вытеснения старых
+                return bitmap;
+            }
+        }
+        if (request.cancelled) return null;
+        Bitmap bitmap = decodeScaled(coverPath, width, height);
+        if (bitmap == null || request.cancelled) return bitmap;
+        try {
+            writeThumbnail(bitmap, thumbnail);
+        } catch (IOException e) {
+            Log.w(TAG, "Не удалось сохранить миниатюру обложки " + coverPath + ": " + e.getMessage(), e);
+        }
+        return bitmap;
+    }
+
+    private static BitmapFactory.Options rgb565() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565; // у фото обложек нет прозрачности
+        return options;
+    }
+
+    /** Декодирует с inSampleSize и обрезает по центру до width x height, как centerCrop. */
+    static Bitmap decodeScaled(String path, int width, int height) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+        BitmapFactory.Options options = rgb565();
+        options.inSampleSize = ImageSampling.sampleSizeFor(bounds.outWidth, bounds.outHeight, width, height);
+        Bitmap sampled = BitmapFactory.decodeFile(path, options);
+        if (sampled == null) return null;
+        float scale = Math.min(1f, Math.max((float) width / sampled.getWidth(), (float) height / sampled.getHeight()));
+        int cropWidth = Math.min(sampled.getWidth(), Math.round(width / scale));
+        int cropHeight = Math.min(sampled.getHeight(), Math.round(height / scale));
+        if (scale == 1f && cropWidth == sampled.getWidth() && cropHeight == sampled.getHeight()) return sampled;
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        Bitmap cropped = Bitmap.createBitmap(sampled, (sampled.getWidth() - cropWidth) / 2,
+                (sampled.getHeight() - cropHeight) / 2, cropWidth, cropHeight, matrix, true);
+        if (cropped != sampled) sampled.recycle();
+        return cropped;
+    }
+
+    private void writeThumbnail(Bitmap bitmap, File thumbnail) throws IOException {
+        if (!diskDir.exists() && !diskDir.mkdirs() && !diskDir.isDirectory()) {
+            throw new IOException("Не удалось создать директорию: " + diskDir.getAbsolutePath());
+        }
+        File temp = new File(diskDir, thumbnail.getName() + ".tmp" + Thread.currentThread().getId());
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os)) {
+                throw new IOException("Не удалось сжать миниатюру");
+            }
+        }
+        if (!temp.renameTo(thumbnail)) {
+            temp.delete();
+            throw new IOException("Не удалось записать миниатюру " + thumbnail.getName());
+        }
+        if (writesSinceTrim.incrementAndGet() >= WRITES_PER_TRIM) {
+            writesSinceTrim.set(0);
+            trimDiskCache();
+        }
+    }
+
+    // Самые давно показанные миниатюры удаляются, пока кэш больше лимита
+    private void trimDiskCache() {
+        File[] files = diskDir.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= DISK_CACHE_BYTES) return;
+        long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+        for (Integer index : order) {
+            if (total <= DISK_CACHE_BYTES) break;
+            long size = files[index].length();
+            if (files[index].delete()) total -= size;
+        }
+    }
+}
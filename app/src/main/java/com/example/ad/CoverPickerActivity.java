@@ -1,8 +1,6 @@
 package com.example.ad;
 
-import android.content.ContentValues;
 import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
@@ -37,7 +35,7 @@ public class CoverPickerActivity extends AppCompatActivity {
         coverImageView = findViewById(R.id.coverImageView);
         pickImageButton = findViewById(R.id.pickImageButton);
         saveButton = findViewById(R.id.saveButton);
-        dbHelper = new DatabaseHelper(this);
+        dbHelper = DatabaseHelper.getInstance(this);
 
         userId = getIntent().getLongExtra("user_id", -1);
         if (userId == -1) {
@@ -88,7 +86,7 @@ public class CoverPickerActivity extends AppCompatActivity {
         File comicDir = new File(getFilesDir(), "comics/comic_" + comicId);
         if (!comicDir.mkdirs() && !comicDir.exists()) {
             Toast.makeText(this, "Failed to create comic directory", Toast.LENGTH_SHORT).show();
-            dbHelper.deleteComic(comicId, this);
+            dbHelper.deleteComic(comicId);
             return;
         }
 
@@ -105,11 +103,7 @@ public class CoverPickerActivity extends AppCompatActivity {
             os.flush();
             os.close();
 
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            ContentValues values = new ContentValues();
-            values.put("cover_image_path", coverFile.getAbsolutePath());
-            int rowsUpdated = db.update("comics", values, "id = ?", new String[]{String.valueOf(comicId)});
-            db.close();
+            int rowsUpdated = dbHelper.updateComicCover(comicId, coverFile.getAbsolutePath());
 
             if (rowsUpdated > 0) {
                 Toast.makeText(this, "Комикс создан успешно!", Toast.LENGTH_SHORT).show();
@@ -117,14 +111,14 @@ public class CoverPickerActivity extends AppCompatActivity {
                 finish();
             } else {
                 Toast.makeText(this, "Failed to update comic cover path", Toast.LENGTH_SHORT).show();
-                if (!dbHelper.deleteComic(comicId, this)) {
+                if (!dbHelper.deleteComic(comicId)) {
                     Toast.makeText(this, "Cleanup failed, comic may remain in database", Toast.LENGTH_LONG).show();
                 }
                 if (coverFile.exists()) coverFile.delete();
             }
         } catch (IOException e) {
             Toast.makeText(this, "Failed to save cover image: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            if (!dbHelper.deleteComic(comicId, this)) {
+            if (!dbHelper.deleteComic(comicId)) {
                 Toast.makeText(this, "Cleanup failed, comic may remain in database", Toast.LENGTH_LONG).show();
             }
             if (coverFile.exists()) coverFile.delete();
@@ -5,27 +5,225 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Looper;
 import android.util.Log;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
+/**
+ * Слой данных приложения: одно соединение на весь процесс, которое не закрывается.
+ * База работает в режиме WAL, чтобы чтение не ждало записи. Частые вставки,
+ * обновления и выборки одного значения компилируются один раз и переиспользуются.
+ * SQLiteStatement не потокобезопасен, поэтому каждый используется под своим монитором.
+ */
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "comics.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 9;
     private static final String TAG = "DatabaseHelper";
+    private static final int MAX_SQL_ARGS = 500; // ниже предела SQLite на число параметров
 
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private static DatabaseHelper instance;
+
+    private SQLiteStatement insertPageStatement;
+    private SQLiteStatement insertCellStatement;
+    private SQLiteStatement updateCellStatement;
+    private SQLiteStatement updateCellDrawingPathStatement;
+    private SQLiteStatement updateComicCoverStatement;
+    private SQLiteStatement registerBlobStatement;
+    private SQLiteStatement setCellDrawingStatement;
+    private CellWriteQueue cellWriteQueue;
+    // Единственный поток записи: все изменения базы идут по очереди через него
+    private final ExecutorService writeExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "db-writer"));
+    private final QueryStats queryStats = new QueryStats();
+
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
+
+    // Отдельное имя файла - для тестов и замеров на своей базе
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    // Соединение открывается один раз и остается открытым до конца процесса
+    private synchronized SQLiteDatabase db() {
+        SQLiteDatabase db = getWritableDatabase();
+        if (insertPageStatement == null) {
+            insertPageStatement = db.compileStatement("INSERT INTO pages (comic_id, page_number) VALUES (?, ?)");
+            // Новая ячейка встает в конец страницы
+            insertCellStatement = db.compileStatement(
+                    "INSERT INTO cells (page_id, x, y, width, height, drawing_path, position) VALUES (?, ?, ?, ?, ?, ?, "
+                            + "(SELECT COALESCE(MAX(position) + 1, 0) FROM cells WHERE page_id = ?))");
+            updateCellStatement = db.compileStatement(
+                    "UPDATE cells SET x = ?, y = ?, width = ?, height = ?, drawing_path = ? WHERE id = ?");
+            updateCellDrawingPathStatement = db.compileStatement("UPDATE cells SET drawing_path = ? WHERE id = ?");
+            updateComicCoverStatement = db.compileStatement("UPDATE comics SET cover_image_path = ? WHERE id = ?");
+            registerBlobStatement = db.compileStatement("INSERT OR IGNORE INTO blobs (hash, size) VALUES (?, ?)");
+            // Каждое сохранение рисунка - новая версия содержимого ячейки
+            setCellDrawingStatement = db.compileStatement("UPDATE cells SET drawing_path = ?, drawing_blob = ?, balloon_text = ?, "
+                    + "thumbnail_blob = ?, placeholder_color = ?, content_version = content_version + 1 WHERE id = ?");
+        }
+        return db;
+    }
+
+    ExecutorService getWriteExecutor() {
+        return writeExecutor;
+    }
+
+    /** Очередь отложенной записи геометрии ячеек; пишет пакетами в потоке записи. */
+    public synchronized CellWriteQueue getCellWriteQueue() {
+        if (cellWriteQueue == null) {
+            cellWriteQueue = new CellWriteQueue(this::updateCells, writeExecutor);
+        }
+        return cellWriteQueue;
+    }
+
+    /** Время, число строк и поток каждого вызова; порог медленных вызовов настраивается там же. */
+    public QueryStats getQueryStats() {
+        return queryStats;
     }
 
+    // Обертка публичных методов: вызов, завершившийся исключением, учитывается с rows = -1
+    private <T> T timed(String statement, Supplier<T> query, ToIntFunction<T> rows) {
+        long started = System.nanoTime();
+        int count = -1;
+        try {
+            T result = query.get();
+            count = rows.applyAsInt(result);
+            return result;
+        } finally {
+            record(statement, started, count);
+        }
+    }
+
+    private void record(String statement, long started, int rows) {
+        long nanos = System.nanoTime() - started;
+        boolean mainThread = Looper.getMainLooper().isCurrentThread();
+        if (queryStats.record(statement, nanos, rows, mainThread)) {
+            Log.w(TAG, "Медленный запрос " + statement + ": " + nanos / 1_000_000 + " мс, строк " + rows
+                    + (mainThread ? ", в главном потоке" : ""));
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    // Схема v3: каскадное удаление по внешним ключам и индексы под все выборки по родителю
+    private static final String CREATE_COMICS = "CREATE TABLE %s (id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER, title TEXT, cover_image_path TEXT, created_date TEXT, FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)";
+    private static final String CREATE_PAGES = "CREATE TABLE %s (id INTEGER PRIMARY KEY AUTOINCREMENT, comic_id INTEGER, page_number INTEGER, width INTEGER DEFAULT 1200, height INTEGER DEFAULT 1600, FOREIGN KEY(comic_id) REFERENCES comics(id) ON DELETE CASCADE)";
+    private static final String CREATE_CELLS = "CREATE TABLE %s (id INTEGER PRIMARY KEY AUTOINCREMENT, page_id INTEGER, x REAL, y REAL, width REAL, height REAL, drawing_path TEXT, position INTEGER NOT NULL DEFAULT 0, FOREIGN KEY(page_id) REFERENCES pages(id) ON DELETE CASCADE)";
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE users (id INTEGER PRIMARY KEY AUTOINCREMENT, username TEXT UNIQUE, email TEXT UNIQUE, password TEXT)");
-        db.execSQL("CREATE TABLE comics (id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER, title TEXT, cover_image_path TEXT, created_date TEXT, FOREIGN KEY(user_id) REFERENCES users(id))");
-        db.execSQL("CREATE TABLE pages (id INTEGER PRIMARY KEY AUTOINCREMENT, comic_id INTEGER, page_number INTEGER, width INTEGER DEFAULT 1200, height INTEGER DEFAULT 1600, FOREIGN KEY(comic_id) REFERENCES comics(id))");
-        db.execSQL("CREATE TABLE cells (id INTEGER PRIMARY KEY AUTOINCREMENT, page_id INTEGER, x REAL, y REAL, width REAL, height REAL, drawing_path TEXT, FOREIGN KEY(page_id) REFERENCES pages(id))");
+        db.execSQL(String.format(CREATE_COMICS, "comics"));
+        db.execSQL(String.format(CREATE_PAGES, "pages"));
+        db.execSQL(String.format(CREATE_CELLS, "cells"));
+        createIndexes(db);
+        createBlobSchema(db);
+        createTombstoneSchema(db);
+        createSearchSchema(db);
+        createThumbnailSchema(db);
+        createContentVersionSchema(db);
+    }
+
+    // Рисунки ячеек хранятся в BlobStore по хешу. Число ссылок на каждый хеш ведут
+    // триггеры, в том числе при каскадном удалении ячеек вместе с комиксом
+    private static void createBlobSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE blobs (hash TEXT PRIMARY KEY, size INTEGER NOT NULL, ref_count INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_blobs_orphans ON blobs(hash) WHERE ref_count <= 0");
+        db.execSQL("ALTER TABLE cells ADD COLUMN drawing_blob TEXT");
+        db.execSQL("CREATE TRIGGER cells_blob_insert AFTER INSERT ON cells WHEN NEW.drawing_blob IS NOT NULL BEGIN "
+                + "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.drawing_blob; END");
+        db.execSQL("CREATE TRIGGER cells_blob_update AFTER UPDATE OF drawing_blob ON cells "
+                + "WHEN OLD.drawing_blob IS NOT NEW.drawing_blob BEGIN "
+                + "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.drawing_blob; "
+                + "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.drawing_blob; END");
+        db.execSQL("CREATE TRIGGER cells_blob_delete AFTER DELETE ON cells WHEN OLD.drawing_blob IS NOT NULL BEGIN "
+                + "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.drawing_blob; END");
+    }
+
+    // Удаленный комикс сначала только помечается, строки и файлы убирает ComicPurger.
+    // Частичный индекс хранит одни помеченные комиксы и поэтому почти всегда пуст
+    private static void createTombstoneSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE comics ADD COLUMN deleted_at INTEGER");
+        db.execSQL("CREATE INDEX idx_comics_deleted ON comics(deleted_at) WHERE deleted_at IS NOT NULL");
+    }
+
+    // Полнотекстовый индекс: строка на живой комикс (docid = id комикса) с названием
+    // и текстом реплик всех его ячеек. Синхронизацию ведут триггеры: реплики
+    // пересобираются только при изменении текста ячейки, а помеченный удаленным
+    // комикс сразу уходит из индекса
+    private static void createSearchSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE cells ADD COLUMN balloon_text TEXT");
+        db.execSQL("CREATE VIRTUAL TABLE comic_search USING fts4(title, balloons, tokenize=unicode61)");
+        db.execSQL("INSERT INTO comic_search (docid, title, balloons) SELECT id, title, NULL FROM comics WHERE deleted_at IS NULL");
+        db.execSQL("CREATE TRIGGER comics_search_insert AFTER INSERT ON comics BEGIN "
+                + "INSERT INTO comic_search (docid, title, balloons) VALUES (NEW.id, NEW.title, NULL); END");
+        db.execSQL("CREATE TRIGGER comics_search_title AFTER UPDATE OF title ON comics WHEN NEW.deleted_at IS NULL BEGIN "
+                + "UPDATE comic_search SET title = NEW.title WHERE docid = NEW.id; END");
+        db.execSQL("CREATE TRIGGER comics_search_tombstone AFTER UPDATE OF deleted_at ON comics WHEN NEW.deleted_at IS NOT NULL BEGIN "
+                + "DELETE FROM comic_search WHERE docid = NEW.id; END");
+        db.execSQL("CREATE TRIGGER comics_search_delete AFTER DELETE ON comics BEGIN "
+                + "DELETE FROM comic_search WHERE docid = OLD.id; END");
+        String rebuildBalloons = "UPDATE comic_search SET balloons = (SELECT group_concat(c.balloon_text, ' ') "
+                + "FROM pages p JOIN cells c ON c.page_id = p.id WHERE p.comic_id = comic_search.docid) "
+                + "WHERE docid = (SELECT comic_id FROM pages WHERE id = %s.page_id); END";
+        db.execSQL("CREATE TRIGGER cells_search_insert AFTER INSERT ON cells WHEN NEW.balloon_text IS NOT NULL BEGIN "
+                + String.format(rebuildBalloons, "NEW"));
+        db.execSQL("CREATE TRIGGER cells_search_update AFTER UPDATE OF balloon_text ON cells "
+                + "WHEN OLD.balloon_text IS NOT NEW.balloon_text BEGIN " + String.format(rebuildBalloons, "NEW"));
+        db.execSQL("CREATE TRIGGER cells_search_delete AFTER DELETE ON cells WHEN OLD.balloon_text IS NOT NULL BEGIN "
+                + String.format(rebuildBalloons, "OLD"));
+    }
+
+    // Миниатюра ячейки для страницы - тоже файл BlobStore, ссылки на нее
+    // считаются так же, как на превью рисунка
+    private static void createThumbnailSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE cells ADD COLUMN thumbnail_blob TEXT");
+        db.execSQL("ALTER TABLE cells ADD COLUMN placeholder_color INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("CREATE TRIGGER cells_thumbnail_insert AFTER INSERT ON cells WHEN NEW.thumbnail_blob IS NOT NULL BEGIN "
+                + "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.thumbnail_blob; END");
+        db.execSQL("CREATE TRIGGER cells_thumbnail_update AFTER UPDATE OF thumbnail_blob ON cells "
+                + "WHEN OLD.thumbnail_blob IS NOT NEW.thumbnail_blob BEGIN "
+                + "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.thumbnail_blob; "
+                + "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.thumbnail_blob; END");
+        db.execSQL("CREATE TRIGGER cells_thumbnail_delete AFTER DELETE ON cells WHEN OLD.thumbnail_blob IS NOT NULL BEGIN "
+                + "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.thumbnail_blob; END");
+    }
+
+    // Версия содержимого ячейки растет с каждым сохранением рисунка: по ней страница
+    // понимает, что миниатюру надо перечитать, а по совпадению - что не надо
+    private static void createContentVersionSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE cells ADD COLUMN content_version INTEGER NOT NULL DEFAULT 0");
+    }
+
+    // Индекс страниц покрывает выборку getPagesForComic целиком, индекс комиксов
+    // отдает библиотеку страницами в порядке (created_date, id) без сортировки
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_comics_user_created ON comics(user_id, created_date)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_pages_comic ON pages(comic_id, page_number, width, height)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_cells_page ON cells(page_id, position)");
     }
 
     @Override
@@ -34,207 +232,674 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE pages ADD COLUMN width INTEGER DEFAULT 1200");
             db.execSQL("ALTER TABLE pages ADD COLUMN height INTEGER DEFAULT 1600");
         }
+        if (oldVersion < 3) {
+            // Внешние ключи в SQLite не меняются через ALTER, поэтому таблицы пересобираются.
+            // Порядок ячеек - прежний порядок вставки (по id) внутри страницы
+            rebuildTable(db, "comics", CREATE_COMICS, "id, user_id, title, cover_image_path, created_date",
+                    "id, user_id, title, cover_image_path, created_date");
+            rebuildTable(db, "pages", CREATE_PAGES, "id, comic_id, page_number, width, height",
+                    "id, comic_id, page_number, width, height");
+            db.execSQL("CREATE INDEX old_cells_page ON cells(page_id, id)");
+            rebuildTable(db, "cells", CREATE_CELLS, "id, page_id, x, y, width, height, drawing_path, position",
+                    "id, page_id, x, y, width, height, drawing_path, "
+                            + "(SELECT COUNT(*) FROM cells c2 WHERE c2.page_id = cells.page_id AND c2.id < cells.id)");
+            createIndexes(db);
+        }
+        if (oldVersion < 4) {
+            // Строка без даты выпала бы из постраничной выборки
+            db.execSQL("UPDATE comics SET created_date = '0' WHERE created_date IS NULL");
+            db.execSQL("DROP INDEX IF EXISTS idx_comics_user");
+            createIndexes(db);
+        }
+        if (oldVersion < 5) {
+            // Старые PNG ячеек остаются по прежним путям, в хранилище рисунок попадает при следующем сохранении
+            createBlobSchema(db);
+        }
+        if (oldVersion < 6) {
+            createTombstoneSchema(db);
+        }
+        if (oldVersion < 7) {
+            // Текст реплик лежит в журналах ячеек и попадает в индекс при следующем сохранении ячейки
+            createSearchSchema(db);
+        }
+        if (oldVersion < 8) {
+            // Миниатюры старых ячеек достраиваются при первом показе страницы
+            createThumbnailSchema(db);
+        }
+        if (oldVersion < 9) {
+            createContentVersionSchema(db);
+        }
+    }
+
+    private static void rebuildTable(SQLiteDatabase db, String table, String create, String columns, String select) {
+        db.execSQL(String.format(create, table + "_new"));
+        db.execSQL("INSERT INTO " + table + "_new (" + columns + ") SELECT " + select + " FROM " + table);
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + table + "_new RENAME TO " + table);
+    }
+
+    // Ключи включаются после миграций: пересборка таблиц идет с выключенными ключами,
+    // иначе DROP TABLE у родителя каскадно удалил бы строки потомков
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            db.setForeignKeyConstraintsEnabled(true);
+        }
     }
 
     public long registerUser(String username, String email, String password) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("username", username);
-        values.put("email", email);
-        values.put("password", password);
-        long id = db.insert("users", null, values);
-        db.close();
-        return id;
+        return timed("registerUser", () -> {
+            ContentValues values = new ContentValues();
+            values.put("username", username);
+            values.put("email", email);
+            values.put("password", password);
+            return db().insert("users", null, values);
+        }, id -> id != -1 ? 1 : 0);
     }
 
     public User loginUser(String username, String password) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT * FROM users WHERE username = ? AND password = ?", new String[]{username, password});
-        User user = null;
-        if (cursor.moveToFirst()) {
-            user = new User();
-            user.setId(cursor.getLong(0));
-            user.setUsername(cursor.getString(1));
-            user.setEmail(cursor.getString(2));
-            user.setPassword(cursor.getString(3));
-        }
-        cursor.close();
-        db.close();
-        return user;
+        return timed("loginUser", () -> {
+            Cursor cursor = db().rawQuery("SELECT * FROM users WHERE username = ? AND password = ?", new String[]{username, password});
+            User user = null;
+            if (cursor.moveToFirst()) {
+                user = new User();
+                user.setId(cursor.getLong(0));
+                user.setUsername(cursor.getString(1));
+                user.setEmail(cursor.getString(2));
+                user.setPassword(cursor.getString(3));
+            }
+            cursor.close();
+            return user;
+        }, user -> user != null ? 1 : 0);
+    }
+
+    public User getUser(long userId) {
+        return timed("getUser", () -> {
+            Cursor cursor = db().rawQuery("SELECT * FROM users WHERE id = ?", new String[]{String.valueOf(userId)});
+            User user = null;
+            if (cursor.moveToFirst()) {
+                user = new User();
+                user.setId(cursor.getLong(0));
+                user.setUsername(cursor.getString(1));
+                user.setEmail(cursor.getString(2));
+                user.setPassword(cursor.getString(3));
+            }
+            cursor.close();
+            return user;
+        }, user -> user != null ? 1 : 0);
     }
 
     public void updateUser(long userId, String username, String email, String password) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("username", username);
-        values.put("email", email);
-        values.put("password", password);
-        db.update("users", values, "id = ?", new String[]{String.valueOf(userId)});
-        db.close();
+        timed("updateUser", () -> {
+            ContentValues values = new ContentValues();
+            values.put("username", username);
+            values.put("email", email);
+            values.put("password", password);
+            return db().update("users", values, "id = ?", new String[]{String.valueOf(userId)});
+        }, rows -> rows);
     }
 
     public long insertComic(long userId, String title, String coverImagePath) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("user_id", userId);
-        values.put("title", title);
-        values.put("cover_image_path", coverImagePath);
-        values.put("created_date", System.currentTimeMillis() + "");
-        long id = db.insert("comics", null, values);
-        if (id != -1) {
-            insertPage(id, 1);
-        }
-        db.close();
-        return id;
+        return timed("insertComic", () -> {
+            SQLiteDatabase db = db();
+            ContentValues values = new ContentValues();
+            values.put("user_id", userId);
+            values.put("title", title);
+            values.put("cover_image_path", coverImagePath);
+            values.put("created_date", System.currentTimeMillis() + "");
+            // Комикс и его первая страница появляются вместе
+            db.beginTransaction();
+            try {
+                long id = db.insert("comics", null, values);
+                if (id != -1 && insertPage(id, 1) != -1) {
+                    db.setTransactionSuccessful();
+                    return id;
+                }
+                return -1L;
+            } finally {
+                db.endTransaction();
+            }
+        }, id -> id != -1 ? 1 : 0);
+    }
+
+    public int updateComicCover(long comicId, String coverImagePath) {
+        return timed("updateComicCover", () -> {
+            db();
+            synchronized (updateComicCoverStatement) {
+                bindStringOrNull(updateComicCoverStatement, 1, coverImagePath);
+                updateComicCoverStatement.bindLong(2, comicId);
+                return updateComicCoverStatement.executeUpdateDelete();
+            }
+        }, rows -> rows);
     }
 
     public List<Comic> getComicsForUser(long userId) {
-        List<Comic> comics = new ArrayList<>();
-        SQLiteDatabase db = null;
-        Cursor cursor = null;
-        try {
-            db = this.getReadableDatabase();
-            cursor = db.rawQuery("SELECT * FROM comics WHERE user_id = ?", new String[]{String.valueOf(userId)});
-            if (cursor.moveToFirst()) {
-                do {
+        return timed("getComicsForUser", () -> {
+            List<Comic> comics = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = db().rawQuery("SELECT * FROM comics WHERE user_id = ? AND deleted_at IS NULL ORDER BY id",
+                        new String[]{String.valueOf(userId)});
+                if (cursor.moveToFirst()) {
+                    do {
+                        Comic comic = new Comic();
+                        comic.setId(cursor.getLong(0));
+                        comic.setUserId(cursor.getLong(1));
+                        String title = cursor.getString(2);
+                        comic.setTitle(title != null ? title : "Untitled");
+                        String coverPath = cursor.getString(3);
+                        if (coverPath != null && coverPath.length() > 1000) {
+                            Log.w(TAG, "Cover image path too long for comic " + comic.getId() + ", truncating");
+                            coverPath = coverPath.substring(0, 1000);
+                        }
+                        comic.setCoverImagePath(coverPath);
+                        comics.add(comic);
+                    } while (cursor.moveToNext());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error retrieving comics for user " + userId + ": " + e.getMessage(), e);
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+            return comics;
+        }, List::size);
+    }
+
+    private static final String COMICS_PAGE_COLUMNS = "SELECT id, title, cover_image_path, created_date FROM comics ";
+
+    /**
+     * Страница библиотеки: limit комиксов после (afterCreatedDate, afterId) в порядке
+     * создания. Первая страница - с afterCreatedDate == null. Выбираются только
+     * столбцы, которые показывает сетка, а позиция ищется по индексу, поэтому
+     * время страницы не зависит от числа комиксов.
+     */
+    public List<Comic> getComicsPage(long userId, String afterCreatedDate, long afterId, int limit) {
+        return timed("getComicsPage", () -> {
+            Cursor cursor;
+            if (afterCreatedDate == null) {
+                cursor = db().rawQuery(COMICS_PAGE_COLUMNS + "WHERE user_id = ? AND deleted_at IS NULL "
+                                + "ORDER BY created_date, id LIMIT ?",
+                        new String[]{String.valueOf(userId), String.valueOf(limit)});
+            } else {
+                // Диапазон по created_date берется из индекса, равные даты различает id
+                cursor = db().rawQuery(COMICS_PAGE_COLUMNS + "WHERE user_id = ? AND created_date >= ? "
+                                + "AND (created_date > ? OR id > ?) AND deleted_at IS NULL ORDER BY created_date, id LIMIT ?",
+                        new String[]{String.valueOf(userId), afterCreatedDate, afterCreatedDate,
+                                String.valueOf(afterId), String.valueOf(limit)});
+            }
+            List<Comic> comics = new ArrayList<>(limit);
+            try {
+                while (cursor.moveToNext()) {
                     Comic comic = new Comic();
                     comic.setId(cursor.getLong(0));
-                    comic.setUserId(cursor.getLong(1));
-                    String title = cursor.getString(2);
+                    comic.setUserId(userId);
+                    String title = cursor.getString(1);
                     comic.setTitle(title != null ? title : "Untitled");
-                    String coverPath = cursor.getString(3);
-                    if (coverPath != null && coverPath.length() > 1000) {
-                        Log.w(TAG, "Cover image path too long for comic " + comic.getId() + ", truncating");
-                        coverPath = coverPath.substring(0, 1000);
-                    }
-                    comic.setCoverImagePath(coverPath);
+                    comic.setCoverImagePath(cursor.getString(2));
+                    comic.setCreatedDate(cursor.getString(3));
                     comics.add(comic);
-                } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error retrieving comics for user " + userId + ": " + e.getMessage(), e);
-        } finally {
-            if (cursor != null) cursor.close();
-            if (db != null && db.isOpen()) db.close();
-        }
-        return comics;
+            return comics;
+        }, List::size);
     }
 
-    public boolean deleteComic(long comicId, Context context) {
-        SQLiteDatabase db = null;
-        try {
-            db = this.getWritableDatabase();
+    /**
+     * Комиксы пользователя, найденные по названию и тексту реплик, лучшие первыми.
+     * Выборка идет только по полнотекстовому индексу и строкам комиксов.
+     */
+    public List<Comic> searchComics(long userId, String query, int limit) {
+        return timed("searchComics", () -> {
+            List<Comic> comics = new ArrayList<>();
+            String match = ComicSearch.toMatchQuery(query);
+            if (match == null) return comics;
+            Map<Long, Double> scores = new HashMap<>();
+            try (Cursor cursor = db().rawQuery("SELECT c.id, c.title, c.cover_image_path, c.created_date, "
+                            + "matchinfo(comic_search, 'pcx') FROM comic_search JOIN comics c ON c.id = comic_search.docid "
+                            + "WHERE comic_search MATCH ? AND c.user_id = ?",
+                    new String[]{match, String.valueOf(userId)})) {
+                while (cursor.moveToNext()) {
+                    Comic comic = new Comic();
+                    comic.setId(cursor.getLong(0));
+                    comic.setUserId(userId);
+                    String title = cursor.getString(1);
+                    comic.setTitle(title != null ? title : "Untitled");
+                    comic.setCoverImagePath(cursor.getString(2));
+                    comic.setCreatedDate(cursor.getString(3));
+                    scores.put(comic.getId(), ComicSearch.score(cursor.getBlob(4)));
+                    comics.add(comic);
+                }
+            }
+            comics.sort((a, b) -> Double.compare(scores.get(b.getId()), scores.get(a.getId())));
+            return comics.size() > limit ? new ArrayList<>(comics.subList(0, limit)) : comics;
+        }, List::size);
+    }
+
+    /**
+     * Помечает комикс удаленным: он сразу пропадает из библиотеки, а страницы,
+     * ячейки и файлы убирает ComicPurger порциями в фоне.
+     */
+    public boolean deleteComic(long comicId) {
+        return timed("deleteComic", () -> {
+            try {
+                ContentValues values = new ContentValues();
+                values.put("deleted_at", System.currentTimeMillis());
+                return db().update("comics", values, "id = ? AND deleted_at IS NULL",
+                        new String[]{String.valueOf(comicId)}) > 0;
+            } catch (Exception e) {
+                Log.e(TAG, "Error deleting comic " + comicId + ": " + e.getMessage(), e);
+                return false;
+            }
+        }, deleted -> deleted ? 1 : 0);
+    }
+
+    /** Самый давно помеченный удаленным комикс; -1, если таких нет. */
+    public long getNextDeletedComic() {
+        return timed("getNextDeletedComic", () -> {
+            try (Cursor cursor = db().rawQuery("SELECT id FROM comics WHERE deleted_at IS NOT NULL ORDER BY deleted_at LIMIT 1", null)) {
+                return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            }
+        }, id -> id != -1 ? 1 : 0);
+    }
+
+    /**
+     * Удаляет не больше limit строк удаленного комикса: сначала ячейки, потом
+     * страницы. Каждая порция - своя короткая транзакция, поэтому поток записи
+     * не занят надолго. Возвращает число удаленных строк; 0 - остался только сам комикс.
+     */
+    public int purgeComicRows(long comicId, int limit) {
+        return timed("purgeComicRows", () -> {
+            String[] args = {String.valueOf(comicId), String.valueOf(limit)};
+            SQLiteDatabase db = db();
             db.beginTransaction();
-            db.execSQL("DELETE FROM cells WHERE page_id IN (SELECT id FROM pages WHERE comic_id = ?)", new String[]{String.valueOf(comicId)});
-            db.execSQL("DELETE FROM pages WHERE comic_id = ?", new String[]{String.valueOf(comicId)});
-            int rowsDeleted = db.delete("comics", "id = ?", new String[]{String.valueOf(comicId)});
-            if (rowsDeleted > 0) {
+            try {
+                int deleted = executeUpdateDelete(db, "DELETE FROM cells WHERE id IN (SELECT c.id FROM pages p "
+                        + "JOIN cells c ON c.page_id = p.id WHERE p.comic_id = ? LIMIT ?)", args);
+                if (deleted == 0) {
+                    deleted = executeUpdateDelete(db, "DELETE FROM pages WHERE id IN "
+                            + "(SELECT id FROM pages WHERE comic_id = ? LIMIT ?)", args);
+                }
                 db.setTransactionSuccessful();
-            }
-            File comicDir = new File(context.getFilesDir(), "comics/comic_" + comicId);
-            deleteDirectory(comicDir);
-        } catch (Exception e) {
-            Log.e(TAG, "Error deleting comic " + comicId + ": " + e.getMessage(), e);
-        } finally {
-            if (db != null && db.isOpen()) {
+                return deleted;
+            } finally {
                 db.endTransaction();
-                db.close();
             }
-        }
-        return false;
+        }, rows -> rows);
     }
 
-    private void deleteDirectory(File dir) {
-        if (dir.isDirectory()) {
-            for (File child : dir.listFiles()) {
-                deleteDirectory(child);
-            }
+    /** Последний шаг очистки: строка комикса, у которого уже нет страниц. */
+    public boolean deleteComicRow(long comicId) {
+        return timed("deleteComicRow", () -> {
+            return db().delete("comics", "id = ? AND deleted_at IS NOT NULL",
+                    new String[]{String.valueOf(comicId)}) > 0;
+        }, deleted -> deleted ? 1 : 0);
+    }
+
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql, String[] args) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindAllArgsAsStrings(args);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
         }
-        dir.delete();
     }
 
     public long insertPage(long comicId, int pageNumber) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("comic_id", comicId);
-        values.put("page_number", pageNumber);
-        long pageId = db.insert("pages", null, values);
-        db.close();
-        return pageId;
+        return timed("insertPage", () -> {
+            db();
+            synchronized (insertPageStatement) {
+                insertPageStatement.bindLong(1, comicId);
+                insertPageStatement.bindLong(2, pageNumber);
+                return insertPageStatement.executeInsert();
+            }
+        }, id -> id != -1 ? 1 : 0);
     }
 
     public List<Page> getPagesForComic(long comicId) {
-        List<Page> pages = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT * FROM pages WHERE comic_id = ?", new String[]{String.valueOf(comicId)});
-        if (cursor.moveToFirst()) {
-            do {
-                Page page = new Page();
-                page.setId(cursor.getLong(0));
-                page.setComicId(cursor.getLong(1));
-                page.setPageNumber(cursor.getInt(2));
-                pages.add(page);
-            } while (cursor.moveToNext());
-        }
-        cursor.close();
-        db.close();
-        return pages;
+        return timed("getPagesForComic", () -> {
+            List<Page> pages = new ArrayList<>();
+            Cursor cursor = db().rawQuery("SELECT id, comic_id, page_number, width, height FROM pages WHERE comic_id = ? ORDER BY page_number",
+                    new String[]{String.valueOf(comicId)});
+            if (cursor.moveToFirst()) {
+                do {
+                    Page page = new Page();
+                    page.setId(cursor.getLong(0));
+                    page.setComicId(cursor.getLong(1));
+                    page.setPageNumber(cursor.getInt(2));
+                    if (!cursor.isNull(3)) page.setWidth(cursor.getInt(3));
+                    if (!cursor.isNull(4)) page.setHeight(cursor.getInt(4));
+                    pages.add(page);
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            return pages;
+        }, List::size);
     }
 
+    private static final String CELL_COLUMNS = "id, page_id, x, y, width, height, drawing_path, position, drawing_blob, "
+            + "thumbnail_blob, placeholder_color, content_version";
+
     public List<Cell> getCellsForPage(long pageId) {
-        List<Cell> cells = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT * FROM cells WHERE page_id = ?", new String[]{String.valueOf(pageId)});
-        if (cursor.moveToFirst()) {
-            do {
-                Cell cell = new Cell();
-                cell.setId(cursor.getLong(0));
-                cell.setPageId(cursor.getLong(1));
-                cell.setX(cursor.getFloat(2));
-                cell.setY(cursor.getFloat(3));
-                cell.setWidth(cursor.getFloat(4));
-                cell.setHeight(cursor.getFloat(5));
-                cell.setDrawingPath(cursor.getString(6));
-                cells.add(cell);
-            } while (cursor.moveToNext());
-        }
-        cursor.close();
-        db.close();
-        return cells;
+        return timed("getCellsForPage", () -> {
+            List<Cell> cells = new ArrayList<>();
+            Cursor cursor = db().rawQuery("SELECT " + CELL_COLUMNS + " FROM cells "
+                    + "WHERE page_id = ? ORDER BY position", new String[]{String.valueOf(pageId)});
+            if (cursor.moveToFirst()) {
+                do {
+                    cells.add(readCell(cursor));
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            return cells;
+        }, List::size);
+    }
+
+    /** Одна ячейка, например после сохранения ее рисунка; null - ячейки нет. */
+    public Cell getCell(long cellId) {
+        return timed("getCell", () -> {
+            try (Cursor cursor = db().rawQuery("SELECT " + CELL_COLUMNS + " FROM cells WHERE id = ?",
+                    new String[]{String.valueOf(cellId)})) {
+                return cursor.moveToFirst() ? readCell(cursor) : null;
+            }
+        }, cell -> cell != null ? 1 : 0);
+    }
+
+    private Cell readCell(Cursor cursor) {
+        Cell cell = new Cell();
+        cell.setId(cursor.getLong(0));
+        cell.setPageId(cursor.getLong(1));
+        cell.setX(cursor.getFloat(2));
+        cell.setY(cursor.getFloat(3));
+        cell.setWidth(cursor.getFloat(4));
+        cell.setHeight(cursor.getFloat(5));
+        cell.setDrawingPath(cursor.getString(6));
+        cell.setPosition(cursor.getInt(7));
+        cell.setDrawingBlob(cursor.getString(8));
+        cell.setThumbnailBlob(cursor.getString(9));
+        cell.setPlaceholderColor(cursor.getInt(10));
+        cell.setContentVersion(cursor.getLong(11));
+        // Незаписанные изменения из очереди новее строки в базе
+        CellWriteQueue queue = getCellWriteQueue();
+        queue.remember(cell);
+        queue.applyPending(cell);
+        return cell;
+    }
+
+    /**
+     * Все страницы комикса с их ячейками одним запросом. Страницы идут по
+     * page_number через idx_pages_comic, ячейки каждой страницы - по position
+     * через idx_cells_page. Незаписанные изменения ячеек накладываются, как
+     * в getCellsForPage.
+     */
+    public ComicGraph loadComicGraph(long comicId) {
+        return timed("loadComicGraph", () -> {
+            ComicGraph graph = new ComicGraph(comicId);
+            CellWriteQueue queue = getCellWriteQueue();
+            Cursor cursor = db().rawQuery("SELECT p.id, p.page_number, p.width, p.height, "
+                            + "c.id, c.x, c.y, c.width, c.height, c.drawing_path, c.drawing_blob, "
+                            + "c.thumbnail_blob, c.placeholder_color, c.content_version "
+                            + "FROM pages p LEFT JOIN cells c ON c.page_id = p.id "
+                            + "WHERE p.comic_id = ? ORDER BY p.page_number, c.position",
+                    new String[]{String.valueOf(comicId)});
+            try {
+                while (cursor.moveToNext()) {
+                    long pageId = cursor.getLong(0);
+                    if (!graph.containsPage(pageId)) {
+                        graph.addPage(pageId, cursor.getInt(1),
+                                cursor.isNull(2) ? 1200 : cursor.getInt(2), cursor.isNull(3) ? 1600 : cursor.getInt(3));
+                    }
+                    if (cursor.isNull(4)) continue; // страница без ячеек
+                    long cellId = cursor.getLong(4);
+                    float x = cursor.getFloat(5);
+                    float y = cursor.getFloat(6);
+                    float width = cursor.getFloat(7);
+                    float height = cursor.getFloat(8);
+                    String drawingPath = cursor.getString(9);
+                    String drawingBlob = cursor.getString(10);
+                    String thumbnailBlob = cursor.getString(11);
+                    int placeholderColor = cursor.getInt(12);
+                    long contentVersion = cursor.getLong(13);
+                    queue.remember(cellId, x, y, width, height, drawingPath);
+                    CellWriteQueue.Update pending = queue.getPending(cellId);
+                    if (pending != null) {
+                        graph.addCell(pageId, cellId, pending.x, pending.y, pending.width, pending.height,
+                                pending.drawingPath, drawingBlob, thumbnailBlob, placeholderColor, contentVersion);
+                    } else {
+                        graph.addCell(pageId, cellId, x, y, width, height, drawingPath, drawingBlob,
+                                thumbnailBlob, placeholderColor, contentVersion);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return graph;
+        }, ComicGraph::getPageCount);
+    }
+
+    public long insertCell(long pageId, float x, float y, float width, float height, String drawingPath) {
+        return timed("insertCell", () -> {
+            db();
+            synchronized (insertCellStatement) {
+                insertCellStatement.bindLong(1, pageId);
+                insertCellStatement.bindDouble(2, x);
+                insertCellStatement.bindDouble(3, y);
+                insertCellStatement.bindDouble(4, width);
+                insertCellStatement.bindDouble(5, height);
+                bindStringOrNull(insertCellStatement, 6, drawingPath);
+                insertCellStatement.bindLong(7, pageId);
+                return insertCellStatement.executeInsert();
+            }
+        }, id -> id != -1 ? 1 : 0);
+    }
+
+    /** Обновляет положение, размер и путь рисунка ячейки; возвращает число измененных строк. */
+    public int updateCell(long cellId, float x, float y, float width, float height, String drawingPath) {
+        return timed("updateCell", () -> {
+            db();
+            getCellWriteQueue().forget(cellId);
+            synchronized (updateCellStatement) {
+                updateCellStatement.bindDouble(1, x);
+                updateCellStatement.bindDouble(2, y);
+                updateCellStatement.bindDouble(3, width);
+                updateCellStatement.bindDouble(4, height);
+                bindStringOrNull(updateCellStatement, 5, drawingPath);
+                updateCellStatement.bindLong(6, cellId);
+                return updateCellStatement.executeUpdateDelete();
+            }
+        }, rows -> rows);
+    }
+
+    /** Записывает пакет изменений ячеек одной транзакцией. */
+    public void updateCells(List<CellWriteQueue.Update> updates) {
+        timed("updateCells", () -> {
+            SQLiteDatabase db = db();
+            int rows = 0;
+            db.beginTransaction();
+            try {
+                synchronized (updateCellStatement) {
+                    for (CellWriteQueue.Update update : updates) {
+                        updateCellStatement.bindDouble(1, update.x);
+                        updateCellStatement.bindDouble(2, update.y);
+                        updateCellStatement.bindDouble(3, update.width);
+                        updateCellStatement.bindDouble(4, update.height);
+                        bindStringOrNull(updateCellStatement, 5, update.drawingPath);
+                        updateCellStatement.bindLong(6, update.cellId);
+                        rows += updateCellStatement.executeUpdateDelete();
+                    }
+                }
+                db.setTransactionSuccessful();
+                return rows;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to write " + updates.size() + " cell updates: " + e.getMessage(), e);
+                throw e;
+            } finally {
+                db.endTransaction();
+            }
+        }, rows -> rows);
     }
 
     public void updateCellDrawingPath(long cellId, String drawingPath) {
-        SQLiteDatabase db = null;
-        try {
-            db = this.getWritableDatabase();
-            if (drawingPath != null && drawingPath.length() > 1000) {
-                Log.w(TAG, "Drawing path too long for cell " + cellId + ", truncating");
-                drawingPath = drawingPath.substring(0, 1000);
+        timed("updateCellDrawingPath", () -> {
+            try {
+                String path = drawingPath;
+                if (path != null && path.length() > 1000) {
+                    Log.w(TAG, "Drawing path too long for cell " + cellId + ", truncating");
+                    path = path.substring(0, 1000);
+                }
+                db();
+                getCellWriteQueue().forget(cellId);
+                synchronized (updateCellDrawingPathStatement) {
+                    bindStringOrNull(updateCellDrawingPathStatement, 1, path);
+                    updateCellDrawingPathStatement.bindLong(2, cellId);
+                    return updateCellDrawingPathStatement.executeUpdateDelete();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to update cell drawing path: " + e.getMessage(), e);
+                throw e;
             }
-            ContentValues values = new ContentValues();
-            values.put("drawing_path", drawingPath);
-            db.update("cells", values, "id = ?", new String[]{String.valueOf(cellId)});
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to update cell drawing path: " + e.getMessage(), e);
-            throw e;
-        } finally {
-            if (db != null && db.isOpen()) {
-                db.close();
+        }, rows -> rows);
+    }
+
+    /**
+     * Ставит ячейке рисунок из BlobStore: хеши превью и миниатюры регистрируются
+     * и ссылки меняются одной транзакцией, счетчики ссылок и поисковый индекс
+     * правят триггеры. Возвращает новую версию содержимого ячейки, -1 - ячейки нет.
+     */
+    public long setCellDrawingBlob(long cellId, String drawingPath, CellDrawing drawing) {
+        return timed("setCellDrawingBlob", () -> {
+            SQLiteDatabase db = db();
+            getCellWriteQueue().forget(cellId);
+            db.beginTransaction();
+            try {
+                registerBlob(drawing.previewHash, drawing.previewSize);
+                if (drawing.thumbnailHash != null) registerBlob(drawing.thumbnailHash, drawing.thumbnailSize);
+                writeCellDrawing(drawingPath, drawing, cellId);
+                long version = contentVersionOf(db, cellId);
+                db.setTransactionSuccessful();
+                return version;
+            } finally {
+                db.endTransaction();
+            }
+        }, version -> version >= 0 ? 1 : 0);
+    }
+
+    private static long contentVersionOf(SQLiteDatabase db, long cellId) {
+        try (Cursor cursor = db.rawQuery("SELECT content_version FROM cells WHERE id = ?",
+                new String[]{String.valueOf(cellId)})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    /** Снимает рисунок с ячейки; файл удалит сборщик мусора, когда на хеш не останется ссылок. */
+    public void clearCellDrawing(long cellId) {
+        timed("clearCellDrawing", () -> {
+            db();
+            getCellWriteQueue().forget(cellId);
+            return writeCellDrawing(null, null, cellId);
+        }, rows -> rows);
+    }
+
+    /**
+     * Достраивает миниатюру ячейки, сохраненной до их появления. Ячейка
+     * обновляется, только если ее версия содержимого та же, с которой
+     * строилась миниатюра; false - рисунок сменился или ячейки уже нет.
+     */
+    public boolean setCellThumbnail(long cellId, long contentVersion, String hash, long size, int placeholderColor) {
+        return timed("setCellThumbnail", () -> {
+            SQLiteDatabase db = db();
+            db.beginTransaction();
+            try {
+                registerBlob(hash, size);
+                ContentValues values = new ContentValues();
+                values.put("thumbnail_blob", hash);
+                values.put("placeholder_color", placeholderColor);
+                boolean updated = db.update("cells", values, "id = ? AND content_version = ?",
+                        new String[]{String.valueOf(cellId), String.valueOf(contentVersion)}) > 0;
+                db.setTransactionSuccessful();
+                return updated;
+            } finally {
+                db.endTransaction();
             }
+        }, updated -> updated ? 1 : 0);
+    }
+
+    private void registerBlob(String hash, long size) {
+        synchronized (registerBlobStatement) {
+            registerBlobStatement.bindString(1, hash);
+            registerBlobStatement.bindLong(2, size);
+            registerBlobStatement.executeInsert();
         }
     }
 
-    public void clearCellDrawing(long cellId, Context context) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        Cursor cursor = db.rawQuery("SELECT drawing_path FROM cells WHERE id = ?", new String[]{String.valueOf(cellId)});
-        if (cursor.moveToFirst() && cursor.getString(0) != null) {
-            File file = new File(cursor.getString(0));
-            if (file.exists()) file.delete();
+    private int writeCellDrawing(String drawingPath, CellDrawing drawing, long cellId) {
+        synchronized (setCellDrawingStatement) {
+            bindStringOrNull(setCellDrawingStatement, 1, drawingPath);
+            bindStringOrNull(setCellDrawingStatement, 2, drawing != null ? drawing.previewHash : null);
+            bindStringOrNull(setCellDrawingStatement, 3, drawing != null ? drawing.balloonText : null);
+            bindStringOrNull(setCellDrawingStatement, 4, drawing != null ? drawing.thumbnailHash : null);
+            setCellDrawingStatement.bindLong(5, drawing != null ? drawing.placeholderColor : 0);
+            setCellDrawingStatement.bindLong(6, cellId);
+            return setCellDrawingStatement.executeUpdateDelete();
         }
-        cursor.close();
-        ContentValues values = new ContentValues();
-        values.put("drawing_path", (String) null);
-        db.update("cells", values, "id = ?", new String[]{String.valueOf(cellId)});
-        db.close();
     }
-}
\ No newline at end of file
+
+    /** Хеши, на которые не ссылается ни одна ячейка, не больше limit. */
+    public List<String> getOrphanBlobs(int limit) {
+        return timed("getOrphanBlobs", () -> {
+            List<String> hashes = new ArrayList<>();
+            try (Cursor cursor = db().rawQuery("SELECT hash FROM blobs WHERE ref_count <= 0 LIMIT ?",
+                    new String[]{String.valueOf(limit)})) {
+                while (cursor.moveToNext()) hashes.add(cursor.getString(0));
+            }
+            return hashes;
+        }, List::size);
+    }
+
+    /** Удаляет запись хеша, если ссылок на него по-прежнему нет; true - файл можно удалять. */
+    public boolean deleteOrphanBlob(String hash) {
+        return timed("deleteOrphanBlob", () -> {
+            return db().delete("blobs", "hash = ? AND ref_count <= 0", new String[]{hash}) > 0;
+        }, deleted -> deleted ? 1 : 0);
+    }
+
+    /** Какие из хешей известны базе. */
+    public Set<String> findKnownBlobs(List<String> hashes) {
+        return timed("findKnownBlobs", () -> {
+            Set<String> known = new HashSet<>();
+            for (int from = 0; from < hashes.size(); from += MAX_SQL_ARGS) {
+                List<String> chunk = hashes.subList(from, Math.min(hashes.size(), from + MAX_SQL_ARGS));
+                try (Cursor cursor = db().rawQuery("SELECT hash FROM blobs WHERE hash IN (" + placeholders(chunk.size()) + ")",
+                        chunk.toArray(new String[0]))) {
+                    while (cursor.moveToNext()) known.add(cursor.getString(0));
+                }
+            }
+            return known;
+        }, Set::size);
+    }
+
+    /** Какие из ячеек есть в базе. */
+    public Set<Long> findExistingCells(List<Long> cellIds) {
+        return timed("findExistingCells", () -> {
+            Set<Long> existing = new HashSet<>();
+            for (int from = 0; from < cellIds.size(); from += MAX_SQL_ARGS) {
+                List<Long> chunk = cellIds.subList(from, Math.min(cellIds.size(), from + MAX_SQL_ARGS));
+                String[] args = new String[chunk.size()];
+                for (int i = 0; i < args.length; i++) args[i] = String.valueOf(chunk.get(i));
+                try (Cursor cursor = db().rawQuery("SELECT id FROM cells WHERE id IN (" + placeholders(args.length) + ")", args)) {
+                    while (cursor.moveToNext()) existing.add(cursor.getLong(0));
+                }
+            }
+            return existing;
+        }, Set::size);
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) sb.append(i == 0 ? "?" : ",?");
+        return sb.toString();
+    }
+}
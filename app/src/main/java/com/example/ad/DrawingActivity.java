@@ -6,10 +6,10 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -25,24 +25,36 @@ import com.skydoves.colorpickerview.ColorEnvelope;
 import com.skydoves.colorpickerview.ColorPickerDialog;
 import com.skydoves.colorpickerview.listeners.ColorEnvelopeListener;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
 
 public class DrawingActivity extends AppCompatActivity implements DrawingView.OnUndoRedoChangedListener {
     private static final String TAG = "DrawingActivity";
+    private static final int PREVIEW_MAX_SIDE = 900;
+    static final String EXTRA_CELL_ID = "cell_id";
+    static final String EXTRA_CONTENT_VERSION = "content_version";
     private DrawingView drawingView;
     private ImageButton pencilButton, eraserButton, fillButton, textButton, undoButton, redoButton,
             colorPickerButton, saveButton, importImageButton, lockDrawingButton;
     private Button zoomInButton, zoomOutButton;
     private SeekBar sizeSeekBar;
-    private DatabaseHelper dbHelper;
+    private ComicRepository repository;
     private long cellId = -1;
     private String drawingPath;
+    // Хеш сохраненного превью в BlobStore; null у ячеек, сохраненных до него
+    private String drawingBlob;
     private boolean isDrawingModified = false;
     private ActivityResultLauncher<Intent> imagePickerLauncher;
     private boolean isDrawingLocked = false;
+    private boolean isLoaded = false; // сохранять можно только полностью загруженный рисунок
+    private boolean isSaving = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -74,7 +86,7 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
 
         // Инициализация базы данных
         try {
-            dbHelper = new DatabaseHelper(this);
+            repository = ComicRepository.getInstance(this);
         } catch (Exception e) {
             Log.e(TAG, "Ошибка инициализации базы данных: " + e.getMessage(), e);
             Toast.makeText(this, "Ошибка базы данных", Toast.LENGTH_SHORT).show();
@@ -91,8 +103,15 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
             return;
         }
 
-        cellId = intent.getLongExtra("cell_id", -1);
+        cellId = intent.getLongExtra(EXTRA_CELL_ID, -1);
         drawingPath = intent.getStringExtra("drawing_path");
+        drawingBlob = intent.getStringExtra("drawing_blob");
+        // Холст в разрешении страницы с пропорциями ячейки; без размеров остается прежний 900x900
+        int canvasWidth = intent.getIntExtra("canvas_width", DrawingView.DEFAULT_CANVAS_SIZE);
+        int canvasHeight = intent.getIntExtra("canvas_height", DrawingView.DEFAULT_CANVAS_SIZE);
+        if (canvasWidth > 0 && canvasHeight > 0) {
+            drawingView.setCanvasSize(canvasWidth, canvasHeight);
+        }
 
         // Формируем полный путь из имени файла
         if (drawingPath != null && !drawingPath.startsWith("/")) {
@@ -116,15 +135,13 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
             return;
         }
 
-        try {
-            dbHelper.updateCellDrawingPath(cellId, new File(drawingPath).getName());
-            Log.d(TAG, "Обновлен путь к рисунку для ячейки " + cellId);
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка базы данных при инициализации ячейки " + cellId + ": " + e.getMessage(), e);
-            Toast.makeText(this, "Не удалось обновить путь в базе данных", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
+        repository.updateCellDrawingPath(cellId, new File(drawingPath).getName(),
+                result -> Log.d(TAG, "Обновлен путь к рисунку для ячейки " + cellId),
+                e -> {
+                    if (isFinishing() || isDestroyed()) return;
+                    Toast.makeText(this, "Не удалось обновить путь в базе данных", Toast.LENGTH_SHORT).show();
+                    finish();
+                });
 
         imagePickerLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
@@ -137,8 +154,27 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
                     }
                 });
 
-        loadDrawing();
         setupListeners();
+        // Пока рисунок читается с диска, виден пустой холст, а сохранение выключено
+        saveButton.setEnabled(false);
+        drawingView.post(this::loadDrawingAsync);
+    }
+
+    // Запускается после прикрепления вида: вызовы DrawingView из фонового потока
+    // уходят в поток рисования, а файлы читаются и декодируются в пуле чтения
+    private void loadDrawingAsync() {
+        if (isFinishing() || isDestroyed()) return;
+        repository.read(() -> {
+            loadDrawing();
+            return null;
+        }, result -> {
+            if (isFinishing() || isDestroyed()) return;
+            isLoaded = true;
+            saveButton.setEnabled(true);
+        }, e -> {
+            if (isFinishing() || isDestroyed()) return;
+            Toast.makeText(this, "Не удалось загрузить рисунок", Toast.LENGTH_SHORT).show();
+        });
     }
 
     private void setupListeners() {
@@ -202,39 +238,102 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
         findViewById(R.id.joystickRight).setOnClickListener(v -> drawingView.moveCanvas(50, 0));
     }
 
+    // Файлы ячейки лежат рядом с PNG: cell_<id>.png -> cell_<id>.cmd, cell_<id>.tiles
+    private File getSiblingFile(String extension) {
+        String name = new File(drawingPath).getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(new File(drawingPath).getParentFile(), baseName + extension);
+    }
+
+    private File getCommandLogFile() {
+        return getSiblingFile(".cmd");
+    }
+
+    private File getTilesFile() {
+        return getSiblingFile(".tiles");
+    }
+
+    private DrawingCommandLog readCommandLog(File logFile) throws IOException {
+        try (FileInputStream is = new FileInputStream(logFile)) {
+            return DrawingCommandLog.readFrom(new BufferedInputStream(is));
+        }
+    }
+
+    // Плитки в полном разрешении избавляют от воспроизведения журнала при открытии
+    private boolean loadTiles(DrawingCommandLog log) {
+        File tilesFile = getTilesFile();
+        if (!tilesFile.exists() || tilesFile.lastModified() < getCommandLogFile().lastModified()) {
+            return false;
+        }
+        try (FileInputStream is = new FileInputStream(tilesFile)) {
+            if (!drawingView.readTiles(new BufferedInputStream(is))) {
+                Log.d(TAG, "Плитки ячейки " + cellId + " записаны для другого размера или формата холста");
+                return false;
+            }
+            drawingView.setCommandLog(log);
+            Log.d(TAG, "Рисунок ячейки " + cellId + " загружен из плиток");
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Не удалось прочитать плитки ячейки " + cellId + ": " + e.getMessage(), e);
+            drawingView.clearCanvas();
+            return false;
+        }
+    }
+
+    private boolean loadCommandLog() {
+        File logFile = getCommandLogFile();
+        if (!logFile.exists()) return false;
+        DrawingCommandLog log;
+        try {
+            log = readCommandLog(logFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Не удалось прочитать журнал ячейки " + cellId + ", используется PNG: " + e.getMessage(), e);
+            return false;
+        }
+        // Уже нарисованная ячейка сохраняет свое разрешение, размер страницы действует только для новых
+        drawingView.setCanvasSize(log.getWidth(), log.getHeight());
+        if (loadTiles(log)) {
+            return true;
+        }
+        final File dir = logFile.getParentFile();
+        drawingView.loadCommandLog(log, fileName -> BitmapFactory.decodeFile(new File(dir, fileName).getAbsolutePath()));
+        Log.d(TAG, "Рисунок ячейки " + cellId + " восстановлен из журнала (" + log.getActiveCommands().size() + " операций)");
+        return true;
+    }
+
     private void loadDrawing() {
-        File drawingFile = new File(drawingPath);
-        Bitmap targetBitmap = drawingView.getBitmap();
-        if (targetBitmap == null) {
-            Log.e(TAG, "Целевой битмап null для ячейки " + cellId);
-            Toast.makeText(this, "Ошибка холста", Toast.LENGTH_SHORT).show();
-            finish();
+        if (loadCommandLog()) {
             return;
         }
 
+        // Без журнала остается только превью: старый PNG ячейки или файл из BlobStore
+        File drawingFile = new File(drawingPath);
+        if (!drawingFile.exists() && drawingBlob != null) {
+            drawingFile = repository.getBlobStore().fileFor(drawingBlob);
+        }
         if (drawingFile.exists()) {
             try {
-                Bitmap loadedBitmap = BitmapFactory.decodeFile(drawingPath);
+                Bitmap loadedBitmap = BitmapFactory.decodeFile(drawingFile.getPath());
                 if (loadedBitmap == null) {
-                    Log.w(TAG, "Не удалось декодировать файл: " + drawingPath + " для ячейки " + cellId);
-                    targetBitmap.eraseColor(Color.WHITE);
+                    Log.w(TAG, "Не удалось декодировать файл: " + drawingFile + " для ячейки " + cellId);
+                    drawingView.clearCanvas();
                 } else {
-                    loadedBitmap = Bitmap.createScaledBitmap(loadedBitmap,
-                            targetBitmap.getWidth(), targetBitmap.getHeight(), true);
-                    Canvas canvas = new Canvas(targetBitmap);
-                    canvas.drawColor(Color.WHITE);
-                    canvas.drawBitmap(loadedBitmap, 0, 0, null);
-                    Log.d(TAG, "Загружен рисунок из " + drawingPath + " для ячейки " + cellId);
+                    // Старый PNG сохраняет свое разрешение
+                    drawingView.setCanvasSize(loadedBitmap.getWidth(), loadedBitmap.getHeight());
+                    drawingView.loadBaseImage(loadedBitmap);
+                    // Старый PNG без журнала становится растровой основой нового журнала
+                    drawingView.resetCommandLog(drawingFile.getName());
+                    Log.d(TAG, "Загружен рисунок из " + drawingFile + " для ячейки " + cellId);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Ошибка загрузки рисунка для ячейки " + cellId + ": " + e.getMessage(), e);
-                targetBitmap.eraseColor(Color.WHITE);
+                drawingView.clearCanvas();
             }
         } else {
-            targetBitmap.eraseColor(Color.WHITE);
+            drawingView.clearCanvas();
             Log.d(TAG, "Инициализирован новый холст по пути " + drawingPath + " для ячейки " + cellId);
         }
-        drawingView.invalidate();
     }
 
     private void showColorPicker() {
@@ -259,42 +358,152 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
     }
 
     private void saveDrawingAndExit() {
+        if (!isLoaded) {
+            Toast.makeText(this, "Рисунок еще загружается", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (isSaving) return;
+        isSaving = true;
+        saveButton.setEnabled(false);
+        // Файлы пишутся в пуле, ссылка в базе - в потоке записи, экран закрывается после обоих
+        repository.read(this::writeDrawingFiles, saved -> repository.setCellDrawing(cellId,
+                new File(drawingPath).getName(), saved, version -> {
+            Log.d(TAG, "Рисунок ячейки " + cellId + " сохранен как " + saved.previewHash + ", версия " + version);
+            if (isFinishing() || isDestroyed()) return;
+            Toast.makeText(this, "Рисунок сохранен", Toast.LENGTH_SHORT).show();
+            isDrawingModified = false;
+            // Странице достаточно перечитать одну эту ячейку
+            Intent result = new Intent();
+            result.putExtra(EXTRA_CELL_ID, cellId);
+            result.putExtra(EXTRA_CONTENT_VERSION, (long) version);
+            setResult(RESULT_OK, result);
+            finish();
+        }, this::onSaveFailed), this::onSaveFailed);
+    }
+
+    private void onSaveFailed(Exception e) {
+        isSaving = false;
+        if (isFinishing() || isDestroyed()) return;
+        saveButton.setEnabled(true);
+        if (e instanceof IOException) {
+            Toast.makeText(this, "Не удалось сохранить: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "Ошибка сохранения", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Выполняется в фоновом потоке: обращения к холсту ждут поток рисования
+    private CellDrawing writeDrawingFiles() throws IOException {
         File file = new File(drawingPath);
         try {
             File parentDir = file.getParentFile();
             if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
                 throw new IOException("Не удалось создать директорию: " + parentDir.getAbsolutePath());
             }
-            Bitmap bitmap = drawingView.getBitmap();
-            if (bitmap == null) {
-                throw new IllegalStateException("Битмап null для ячейки " + cellId);
+            // Журнал, плитки и превью снимаются за один заход в поток рисования: штрихи,
+            // добавленные во время записи, не попадут в одно без другого
+            long snapshotStart = System.currentTimeMillis();
+            DrawingView.SaveSnapshot snapshot = drawingView.snapshotForSave(PREVIEW_MAX_SIDE);
+            DrawingCommandLog log = snapshot.log;
+            if (file.exists() && log.referencesImage(file.getName())) {
+                // Старый PNG служит основой журнала: копия переходит к файлам ячейки, а сам
+                // он удаляется только после записи журнала, иначе сбой оставил бы базу без рисунка
+                File baseFile = newBaseFile(parentDir);
+                copyFile(file, baseFile);
+                log.renameImage(file.getName(), baseFile.getName());
+                drawingView.renameImage(file.getName(), baseFile.getName());
             }
-            try (FileOutputStream os = new FileOutputStream(file)) {
-                if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, os)) {
-                    throw new IOException("Не удалось сжать битмап");
-                }
+            if (drawingBlob != null && log.referencesImage(drawingBlob)) {
+                // Файл BlobStore может уйти сборщику мусора: основа журнала получает свою копию
+                File baseFile = newBaseFile(parentDir);
+                copyFile(repository.getBlobStore().fileFor(drawingBlob), baseFile);
+                log.renameImage(drawingBlob, baseFile.getName());
+                drawingView.renameImage(drawingBlob, baseFile.getName());
+            }
+            // Уменьшенное превью для сетки страницы хранится по хешу содержимого
+            Bitmap preview = snapshot.preview;
+            ByteArrayOutputStream previewBytes = new ByteArrayOutputStream();
+            if (!preview.compress(Bitmap.CompressFormat.PNG, 100, previewBytes)) {
+                throw new IOException("Не удалось сжать битмап");
+            }
+            byte[] data = previewBytes.toByteArray();
+            String hash = repository.getBlobStore().put(data);
+            // Страница показывает только миниатюру размером с ячейку и ее цвет до загрузки
+            CellThumbnails.Thumbnail thumbnail = CellThumbnails.store(repository.getBlobStore(), preview);
+            if (thumbnail.bitmap != preview) thumbnail.bitmap.recycle();
+            preview.recycle();
+            // Журнал и плитки пишутся во временные файлы, чтобы сбой не оставил их наполовину записанными.
+            // Плитки пишутся последними: при открытии они берутся, только если не старше журнала
+            File logFile = getCommandLogFile();
+            File tempLogFile = new File(logFile.getPath() + ".tmp");
+            try (FileOutputStream os = new FileOutputStream(tempLogFile)) {
+                log.writeTo(os);
                 os.flush();
             }
-            dbHelper.updateCellDrawingPath(cellId, file.getName());
-            Log.d(TAG, "Рисунок сохранен по пути " + drawingPath + " для ячейки " + cellId);
-            Toast.makeText(this, "Рисунок сохранен", Toast.LENGTH_SHORT).show();
-            isDrawingModified = false;
-            setResult(RESULT_OK);
-            finish();
+            if (!tempLogFile.renameTo(logFile)) {
+                throw new IOException("Не удалось записать журнал рисунка");
+            }
+            File tilesFile = getTilesFile();
+            File tempTilesFile = new File(tilesFile.getPath() + ".tmp");
+            try (FileOutputStream os = new FileOutputStream(tempTilesFile)) {
+                os.write(snapshot.tiles);
+            }
+            if (!tempTilesFile.renameTo(tilesFile)) {
+                throw new IOException("Не удалось записать плитки рисунка");
+            }
+            // Превью теперь в BlobStore, старый PNG больше не нужен
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Не удалось удалить старый рисунок " + file.getName());
+            }
+            deleteUnreferencedImages(parentDir, log.getImageNames(), snapshotStart);
+            List<String> balloons = log.getBalloonTexts();
+            return new CellDrawing(hash, data.length, thumbnail.hash, thumbnail.size, thumbnail.placeholderColor,
+                    balloons.isEmpty() ? null : TextUtils.join("\n", balloons));
         } catch (IOException e) {
+            // Недописанное превью без ссылки из базы уберет сборщик мусора
             Log.e(TAG, "Ошибка сохранения для ячейки " + cellId + ": " + e.getMessage(), e);
-            Toast.makeText(this, "Не удалось сохранить: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            if (file.exists()) {
-                file.delete();
-                Log.d(TAG, "Удален поврежденный файл: " + drawingPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Удаляет основы и импортированные изображения ячейки, на которые журнал
+     * больше не ссылается. Файлы новее снимка не трогаются: их мог добавить
+     * импорт, пока шло сохранение.
+     */
+    private void deleteUnreferencedImages(File dir, Set<String> referenced, long olderThan) {
+        String basePrefix = "cell_" + cellId + "_base_";
+        String importPrefix = "cell_" + cellId + "_img_";
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) return;
+        for (File image : files) {
+            String name = image.getName();
+            if (!name.startsWith(basePrefix) && !name.startsWith(importPrefix)) continue;
+            if (referenced.contains(name) || image.lastModified() >= olderThan) continue;
+            if (!image.delete()) Log.w(TAG, "Не удалось удалить изображение " + name);
+        }
+    }
+
+    private File newBaseFile(File dir) {
+        return new File(dir, "cell_" + cellId + "_base_" + System.currentTimeMillis() + ".png");
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        try (FileInputStream is = new FileInputStream(from);
+             FileOutputStream os = new FileOutputStream(to)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Неожиданная ошибка сохранения для ячейки " + cellId + ": " + e.getMessage(), e);
-            Toast.makeText(this, "Ошибка сохранения", Toast.LENGTH_SHORT).show();
         }
     }
 
     private void importImage() {
+        if (!isLoaded) {
+            Toast.makeText(this, "Рисунок еще загружается", Toast.LENGTH_SHORT).show();
+            return;
+        }
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("image/*");
         try {
@@ -307,40 +516,41 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
     }
 
     private void loadImageFromUri(Uri imageUri) {
-        try {
-            InputStream inputStream = getContentResolver().openInputStream(imageUri);
-            if (inputStream == null) {
-                Log.w(TAG, "Не удалось открыть поток для изображения для ячейки " + cellId);
-                Toast.makeText(this, "Не удалось загрузить изображение", Toast.LENGTH_SHORT).show();
-                return;
+        // Декодирование и запись копии импорта идут в фоне, холст получает готовый битмап
+        repository.read(() -> {
+            Bitmap loadedBitmap;
+            try (InputStream inputStream = getContentResolver().openInputStream(imageUri)) {
+                if (inputStream == null) {
+                    throw new IOException("Не удалось открыть поток для изображения");
+                }
+                loadedBitmap = BitmapFactory.decodeStream(inputStream);
             }
-            Bitmap loadedBitmap = BitmapFactory.decodeStream(inputStream);
-            inputStream.close();
             if (loadedBitmap == null) {
-                Log.w(TAG, "Не удалось декодировать изображение для ячейки " + cellId);
-                Toast.makeText(this, "Не удалось декодировать изображение", Toast.LENGTH_SHORT).show();
-                return;
+                throw new IOException("Не удалось декодировать изображение");
             }
 
-            Bitmap targetBitmap = drawingView.getBitmap();
-            if (targetBitmap == null) {
-                Log.e(TAG, "Целевой битмап null для ячейки " + cellId);
-                Toast.makeText(this, "Ошибка холста", Toast.LENGTH_SHORT).show();
-                return;
+            // Импорт сохраняется отдельным файлом, чтобы журнал мог его воспроизвести
+            loadedBitmap = Bitmap.createScaledBitmap(loadedBitmap,
+                    drawingView.getCanvasWidth(), drawingView.getCanvasHeight(), true);
+            File importFile = new File(new File(drawingPath).getParentFile(),
+                    "cell_" + cellId + "_img_" + System.currentTimeMillis() + ".png");
+            try (FileOutputStream os = new FileOutputStream(importFile)) {
+                if (!loadedBitmap.compress(Bitmap.CompressFormat.PNG, 100, os)) {
+                    throw new IOException("Не удалось сохранить импортированное изображение");
+                }
             }
-
-            loadedBitmap = Bitmap.createScaledBitmap(loadedBitmap, targetBitmap.getWidth(), targetBitmap.getHeight(), true);
-            Canvas canvas = new Canvas(targetBitmap);
-            canvas.drawColor(Color.WHITE);
-            canvas.drawBitmap(loadedBitmap, 0, 0, null);
-            drawingView.invalidate();
+            drawingView.importImage(loadedBitmap, importFile.getName());
+            return null;
+        }, result -> {
             isDrawingModified = true;
             Log.d(TAG, "Изображение загружено из файловой системы для ячейки " + cellId);
+            if (isFinishing() || isDestroyed()) return;
             Toast.makeText(this, "Изображение загружено", Toast.LENGTH_SHORT).show();
-        } catch (IOException e) {
+        }, e -> {
             Log.e(TAG, "Ошибка загрузки изображения из Uri для ячейки " + cellId + ": " + e.getMessage(), e);
+            if (isFinishing() || isDestroyed()) return;
             Toast.makeText(this, "Ошибка загрузки изображения: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-        }
+        });
     }
 
     @Override
@@ -366,6 +576,10 @@ public class DrawingActivity extends AppCompatActivity implements DrawingView.On
     public void onUndoRedoChanged(boolean canUndo, boolean canRedo) {
         undoButton.setEnabled(canUndo);
         redoButton.setEnabled(canRedo);
+    }
+
+    @Override
+    public void onDrawingChanged() {
         isDrawingModified = true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,415 @@
+package com.example.ad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Журнал операций рисования ячейки в компактном двоичном виде.
+ * Координаты хранятся в пикселях холста размера width x height и при
+ * воспроизведении масштабируются под любой другой размер. Точки штрихов
+ * квантуются до 1/8 пикселя и пишутся разностями в varint.
+ * Курсор отделяет активные операции от отмененных (для redo).
+ */
+public class DrawingCommandLog {
+    public static final int TYPE_STROKE = 1;
+    public static final int TYPE_FILL = 2;
+    public static final int TYPE_TEXT = 3;
+    public static final int TYPE_IMAGE = 4;
+    public static final int TYPE_BALLOON_EDIT = 5; // новый текст реплики; пустой текст удаляет ее
+    public static final int TYPE_BALLOON_MOVE = 6;
+    public static final int TYPE_BRUSH = 7;        // штамповый мазок с толщиной в каждой точке
+
+    private static final int MAGIC = 0x544D434C; // "TMCL"
+    private static final int FORMAT_VERSION = 3; // 2: правка и перенос реплик, 3: штамповая кисть
+    private static final float POINT_SCALE = 8f;
+
+    private final int width, height;
+    private final List<Command> commands = new ArrayList<>();
+    private int cursor;
+
+    public static class Command {
+        public final int type;
+        public int tool;
+        public int color;
+        public float size;       // толщина штриха или размер текста
+        public float[] points;   // x0, y0, x1, y1, ... для штриха; x, y для заливки и текста
+        public int tolerance;
+        public long seed;        // для реплик - еще и их идентификатор
+        public String text;      // текст облака или имя файла изображения
+        public float[] widths;   // толщина в каждой точке мазка кисти
+
+        public Command(int type) {
+            this.type = type;
+        }
+
+        public static Command stroke(int tool, int color, float width, float[] points) {
+            Command command = new Command(TYPE_STROKE);
+            command.tool = tool;
+            command.color = color;
+            command.size = width;
+            command.points = points;
+            return command;
+        }
+
+        public static Command brush(int color, float size, float[] points, float[] widths) {
+            Command command = new Command(TYPE_BRUSH);
+            command.color = color;
+            command.size = size;
+            command.points = points;
+            command.widths = widths;
+            return command;
+        }
+
+        public static Command fill(float x, float y, int color, int tolerance) {
+            Command command = new Command(TYPE_FILL);
+            command.points = new float[]{x, y};
+            command.color = color;
+            command.tolerance = tolerance;
+            return command;
+        }
+
+        public static Command text(float x, float y, int color, float textSize, long seed, String text) {
+            Command command = new Command(TYPE_TEXT);
+            command.points = new float[]{x, y};
+            command.color = color;
+            command.size = textSize;
+            command.seed = seed;
+            command.text = text;
+            return command;
+        }
+
+        public static Command image(String fileName) {
+            Command command = new Command(TYPE_IMAGE);
+            command.text = fileName;
+            return command;
+        }
+
+        public static Command balloonEdit(long seed, String text) {
+            Command command = new Command(TYPE_BALLOON_EDIT);
+            command.seed = seed;
+            command.text = text;
+            return command;
+        }
+
+        public static Command balloonMove(long seed, float x, float y) {
+            Command command = new Command(TYPE_BALLOON_MOVE);
+            command.seed = seed;
+            command.points = new float[]{x, y};
+            return command;
+        }
+    }
+
+    public DrawingCommandLog(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    /** Добавляет операцию, отбрасывая отмененные после курсора. */
+    public void append(Command command) {
+        while (commands.size() > cursor) {
+            commands.remove(commands.size() - 1);
+        }
+        commands.add(command);
+        cursor++;
+    }
+
+    public boolean undo() {
+        if (cursor == 0) return false;
+        cursor--;
+        return true;
+    }
+
+    public boolean redo() {
+        if (cursor == commands.size()) return false;
+        cursor++;
+        return true;
+    }
+
+    public void clear() {
+        commands.clear();
+        cursor = 0;
+    }
+
+    /** Активные (не отмененные) операции в порядке применения. */
+    public List<Command> getActiveCommands() {
+        return commands.subList(0, cursor);
+    }
+
+    /** Текущий текст реплик в порядке их появления (с учетом правок и удалений). */
+    public List<String> getBalloonTexts() {
+        Map<Long, String> texts = new LinkedHashMap<>();
+        for (Command command : getActiveCommands()) {
+            if (command.type == TYPE_TEXT) {
+                texts.put(command.seed, command.text);
+            } else if (command.type == TYPE_BALLOON_EDIT && texts.containsKey(command.seed)) {
+                if (command.text == null || command.text.isEmpty()) {
+                    texts.remove(command.seed);
+                } else {
+                    texts.put(command.seed, command.text);
+                }
+            }
+        }
+        return new ArrayList<>(texts.values());
+    }
+
+    public boolean referencesImage(String fileName) {
+        for (Command command : getActiveCommands()) {
+            if (command.type == TYPE_IMAGE && fileName.equals(command.text)) return true;
+        }
+        return false;
+    }
+
+    /** Имена файлов изображений активных операций - тех, что попадают в writeTo. */
+    public Set<String> getImageNames() {
+        Set<String> names = new HashSet<>();
+        for (Command command : getActiveCommands()) {
+            if (command.type == TYPE_IMAGE && command.text != null) names.add(command.text);
+        }
+        return names;
+    }
+
+    public void renameImage(String oldName, String newName) {
+        for (Command command : commands) {
+            if (command.type == TYPE_IMAGE && oldName.equals(command.text)) command.text = newName;
+        }
+    }
+
+    /** Независимая копия: ее можно сохранять в другом потоке, пока в журнал пишет холст. */
+    public DrawingCommandLog copy() {
+        return scaledCopy(width, height);
+    }
+
+    /** Копия журнала в координатах холста другого размера. */
+    public DrawingCommandLog rescaledTo(int newWidth, int newHeight) {
+        if (newWidth == width && newHeight == height) return this;
+        return scaledCopy(newWidth, newHeight);
+    }
+
+    private DrawingCommandLog scaledCopy(int newWidth, int newHeight) {
+        float scaleX = (float) newWidth / width;
+        float scaleY = (float) newHeight / height;
+        DrawingCommandLog scaled = new DrawingCommandLog(newWidth, newHeight);
+        for (Command command : commands) {
+            Command copy = new Command(command.type);
+            copy.tool = command.tool;
+            copy.color = command.color;
+            copy.size = command.size * (scaleX + scaleY) / 2;
+            copy.tolerance = command.tolerance;
+            copy.seed = command.seed;
+            copy.text = command.text;
+            if (command.points != null) {
+                copy.points = new float[command.points.length];
+                for (int i = 0; i + 1 < command.points.length; i += 2) {
+                    copy.points[i] = command.points[i] * scaleX;
+                    copy.points[i + 1] = command.points[i + 1] * scaleY;
+                }
+            }
+            if (command.widths != null) {
+                copy.widths = new float[command.widths.length];
+                for (int i = 0; i < command.widths.length; i++) {
+                    copy.widths[i] = command.widths[i] * (scaleX + scaleY) / 2;
+                }
+            }
+            scaled.commands.add(copy);
+        }
+        scaled.cursor = cursor;
+        return scaled;
+    }
+
+    // Сохраняются только активные операции: отмененные после перезапуска не нужны
+    public void writeTo(OutputStream stream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        writeVarInt(out, width);
+        writeVarInt(out, height);
+        List<Command> active = getActiveCommands();
+        writeVarInt(out, active.size());
+        for (Command command : active) {
+            out.writeByte(command.type);
+            switch (command.type) {
+                case TYPE_STROKE:
+                    out.writeByte(command.tool);
+                    out.writeInt(command.color);
+                    out.writeFloat(command.size);
+                    writePoints(out, command.points);
+                    break;
+                case TYPE_FILL:
+                    writePoints(out, command.points);
+                    out.writeInt(command.color);
+                    out.writeByte(command.tolerance);
+                    break;
+                case TYPE_TEXT:
+                    writePoints(out, command.points);
+                    out.writeInt(command.color);
+                    out.writeFloat(command.size);
+                    out.writeLong(command.seed);
+                    out.writeUTF(command.text);
+                    break;
+                case TYPE_IMAGE:
+                    out.writeUTF(command.text);
+                    break;
+                case TYPE_BALLOON_EDIT:
+                    out.writeLong(command.seed);
+                    out.writeUTF(command.text);
+                    break;
+                case TYPE_BALLOON_MOVE:
+                    out.writeLong(command.seed);
+                    writePoints(out, command.points);
+                    break;
+                case TYPE_BRUSH:
+                    out.writeInt(command.color);
+                    out.writeFloat(command.size);
+                    writePoints(out, command.points);
+                    writeWidths(out, command.widths);
+                    break;
+                default:
+                    throw new IOException("Неизвестный тип операции: " + command.type);
+            }
+        }
+        out.flush();
+        buffer.writeTo(stream);
+    }
+
+    public static DrawingCommandLog readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) throw new IOException("Неверный формат журнала рисования");
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > FORMAT_VERSION) throw new IOException("Неподдерживаемая версия журнала: " + version);
+        DrawingCommandLog log = new DrawingCommandLog(readVarInt(in), readVarInt(in));
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            int type = in.readUnsignedByte();
+            Command command = new Command(type);
+            switch (type) {
+                case TYPE_STROKE:
+                    command.tool = in.readUnsignedByte();
+                    command.color = in.readInt();
+                    command.size = in.readFloat();
+                    command.points = readPoints(in);
+                    break;
+                case TYPE_FILL:
+                    command.points = readPoints(in);
+                    command.color = in.readInt();
+                    command.tolerance = in.readUnsignedByte();
+                    break;
+                case TYPE_TEXT:
+                    command.points = readPoints(in);
+                    command.color = in.readInt();
+                    command.size = in.readFloat();
+                    command.seed = in.readLong();
+                    command.text = in.readUTF();
+                    break;
+                case TYPE_IMAGE:
+                    command.text = in.readUTF();
+                    break;
+                case TYPE_BALLOON_EDIT:
+                    command.seed = in.readLong();
+                    command.text = in.readUTF();
+                    break;
+                case TYPE_BALLOON_MOVE:
+                    command.seed = in.readLong();
+                    command.points = readPoints(in);
+                    break;
+                case TYPE_BRUSH:
+                    command.color = in.readInt();
+                    command.size = in.readFloat();
+                    command.points = readPoints(in);
+                    command.widths = readWidths(in, command.points.length / 2);
+                    break;
+                default:
+                    throw new IOException("Неизвестный тип операции: " + type);
+            }
+            log.append(command);
+        }
+        return log;
+    }
+
+    private static void writePoints(DataOutputStream out, float[] points) throws IOException {
+        writeVarInt(out, points.length / 2);
+        int previousX = 0, previousY = 0;
+        for (int i = 0; i + 1 < points.length; i += 2) {
+            int x = Math.round(points[i] * POINT_SCALE);
+            int y = Math.round(points[i + 1] * POINT_SCALE);
+            writeVarInt(out, zigZag(x - previousX));
+            writeVarInt(out, zigZag(y - previousY));
+            previousX = x;
+            previousY = y;
+        }
+    }
+
+    private static float[] readPoints(DataInputStream in) throws IOException {
+        int count = readVarInt(in);
+        float[] points = new float[count * 2];
+        int x = 0, y = 0;
+        for (int i = 0; i < count; i++) {
+            x += unZigZag(readVarInt(in));
+            y += unZigZag(readVarInt(in));
+            points[i * 2] = x / POINT_SCALE;
+            points[i * 2 + 1] = y / POINT_SCALE;
+        }
+        return points;
+    }
+
+    // Толщины меняются плавно, поэтому тоже пишутся разностями
+    private static void writeWidths(DataOutputStream out, float[] widths) throws IOException {
+        int previous = 0;
+        for (float width : widths) {
+            int value = Math.round(width * POINT_SCALE);
+            writeVarInt(out, zigZag(value - previous));
+            previous = value;
+        }
+    }
+
+    private static float[] readWidths(DataInputStream in, int count) throws IOException {
+        float[] widths = new float[count];
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value += unZigZag(readVarInt(in));
+            widths[i] = value / POINT_SCALE;
+        }
+        return widths;
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Слишком длинное число varint");
+    }
+}
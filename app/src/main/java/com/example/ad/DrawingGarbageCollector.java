@@ -0,0 +1,100 @@
+package com.example.ad;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Сборка мусора рисунков пачками. Сначала удаляются рисунки из BlobStore, на
+ * которые не ссылается ни одна ячейка. Затем один проход по файлам убирает
+ * файлы хранилища, не известные базе, и рабочие файлы удаленных ячеек
+ * (журнал, плитки, импорт). Файлы моложе GRACE_MILLIS не трогаются: их могли
+ * только что записать для ячейки, ссылка на которую еще не сохранена.
+ * Каждый шаг выполняется в потоке записи, между шагами проходят другие записи.
+ */
+class DrawingGarbageCollector {
+    private static final String TAG = "DrawingGC";
+    static final int BATCH_SIZE = 64;
+    static final long GRACE_MILLIS = 10 * 60 * 1000;
+    private static final Pattern CELL_FILE = Pattern.compile("cell_(\\d{1,18})[._].*");
+
+    private final DatabaseHelper db;
+    private final BlobStore blobs;
+    private final File cellDir;
+    private boolean filesSwept;
+    private int deletedCount;
+    private long reclaimedBytes;
+
+    DrawingGarbageCollector(DatabaseHelper db, BlobStore blobs, File cellDir) {
+        this.db = db;
+        this.blobs = blobs;
+        this.cellDir = cellDir;
+    }
+
+    /** Один шаг сборки; true, если работа еще осталась. */
+    boolean runBatch() {
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        List<String> orphans = db.getOrphanBlobs(BATCH_SIZE);
+        int deleted = 0;
+        for (String hash : orphans) {
+            // Свежий файл мог только что получить новую ссылку - его очередь в следующий раз.
+            // Время и ref_count перепроверяются под блокировкой хранилища, чтобы put не отдал удаляемый файл
+            if (deleteBlob(hash, cutoff, () -> db.deleteOrphanBlob(hash))) deleted++;
+        }
+        deletedCount += deleted;
+        if (orphans.size() == BATCH_SIZE && deleted > 0) return true;
+        if (!filesSwept) {
+            filesSwept = true;
+            sweepFiles(cutoff);
+        }
+        Log.d(TAG, "Удалено файлов рисунков: " + deletedCount + ", освобождено байт: " + reclaimedBytes);
+        return false;
+    }
+
+    long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    private boolean deleteBlob(String hash, long cutoff, BooleanSupplier canDelete) {
+        long size = blobs.deleteIfOlderThan(hash, cutoff, canDelete);
+        if (size < 0) return false;
+        reclaimedBytes += size;
+        return true;
+    }
+
+    private boolean deleteFile(File file) {
+        long size = file.length();
+        if (!file.delete()) return false;
+        reclaimedBytes += size;
+        return true;
+    }
+
+    private void sweepFiles(long cutoff) {
+        List<String> stale = blobs.listOlderThan(cutoff);
+        Set<String> known = db.findKnownBlobs(stale);
+        for (String hash : stale) {
+            if (!known.contains(hash) && deleteBlob(hash, cutoff, () -> true)) deletedCount++;
+        }
+
+        File[] files = cellDir.listFiles();
+        if (files == null) return;
+        List<File> cellFiles = new ArrayList<>();
+        List<Long> cellIds = new ArrayList<>();
+        for (File file : files) {
+            Matcher matcher = CELL_FILE.matcher(file.getName());
+            if (!file.isFile() || !matcher.matches() || file.lastModified() >= cutoff) continue;
+            cellFiles.add(file);
+            cellIds.add(Long.parseLong(matcher.group(1)));
+        }
+        Set<Long> existing = db.findExistingCells(cellIds);
+        for (int i = 0; i < cellFiles.size(); i++) {
+            if (!existing.contains(cellIds.get(i)) && deleteFile(cellFiles.get(i))) deletedCount++;
+        }
+    }
+}
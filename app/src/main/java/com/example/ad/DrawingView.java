@@ -6,307 +6,1149 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
-import android.view.View;
+import android.view.ScaleGestureDetector;
+import android.view.TextureView;
+import android.view.ViewConfiguration;
 import android.widget.EditText;
 
 import androidx.appcompat.app.AlertDialog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
-public class DrawingView extends View {
+/**
+ * Холст ячейки. Растеризация (штрихи, заливка, реплики) и кадры идут в отдельном
+ * потоке рисования: касания копируются в очередь, вызовы API ставятся в ту же
+ * очередь, кадр рисуется в поверхность TextureView через lockCanvas. Поэтому
+ * долгая заливка не задерживает ввод и панель инструментов. Методы, которые
+ * возвращают значение, дожидаются выполнения очереди.
+ * Без потока (setRenderThreadEnabled(false) или пока вид не прикреплен к окну)
+ * все выполняется прямо в потоке UI.
+ */
+public class DrawingView extends TextureView implements TextureView.SurfaceTextureListener {
     private static final String TAG = "DrawingView";
     public static final int TOOL_PENCIL = 1;
     public static final int TOOL_ERASER = 2;
     public static final int TOOL_FILL = 3;
     public static final int TOOL_TEXT = 4;
+    public static final int DEFAULT_FILL_TOLERANCE = 32; // Захватывает сглаженные края линий
 
-    private Bitmap bitmap;
-    private Canvas bitmapCanvas;
-    private List<Bitmap> undoStack = new ArrayList<>();
-    private List<Bitmap> redoStack = new ArrayList<>();
-    private Paint pencilPaint, eraserPaint, textPaint, cloudPaint;
-    private Path currentPath;
+    public static final int DEFAULT_CANVAS_SIZE = 900;
+
+    // Слои из плиточных холстов: память выделяется только под области, где что-то нарисовано
+    private LayerStack layers;
+    private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final TileHistory history = new TileHistory();
+    private Paint pencilPaint, eraserPaint;
+
+    // Инкрементальный штрих: рисуются только новые сегменты
+    private final Path segmentPath = new Path();
+    private final RectF dirtyRect = new RectF();
+    private boolean isStroking = false;
+    private boolean strokeMoved = false;
+    private float lastX, lastY; // последняя точка ввода
+    private float midX, midY;   // начало следующего сегмента
+    private float[] strokePoints = new float[256];
+    private int strokePointCount = 0;
+
+    // Карандаш - штамповая кисть с нажимом; ластик остается штрихом по Path
+    private final StampBrush brush = new StampBrush();
+
+    // Журнал операций - каноническая модель рисунка ячейки
+    private DrawingCommandLog commandLog;
+    private final Random seedRandom = new Random();
+    private Paint replayPaint;
     private int currentTool = TOOL_PENCIL;
     private int currentColor = Color.BLACK;
     private float textX, textY;
-    private OnUndoRedoChangedListener listener;
+    private volatile OnUndoRedoChangedListener listener;
 
-    private float scaleFactor = 1.0f;
-    private float canvasX = 0, canvasY = 0; // Для перемещения
-    private static final float MIN_SCALE = 0.5f;
-    private static final float MAX_SCALE = 3.0f;
-    private boolean isLocked = false;
+    // Реплики рисуются поверх слоев и правятся как объекты
+    private static final float DEFAULT_TEXT_SIZE = 20f;
+    private final List<SpeechBalloon> balloons = new ArrayList<>();
+    private SpeechBalloon draggedBalloon;
+    private boolean balloonDragged;
+    private float dragStartX, dragStartY;   // позиция реплики до переноса
+    private float dragOffsetX, dragOffsetY;
+    private float downViewX, downViewY;
+    private final int touchSlop;
+
+    // Масштаб и сдвиг холста; щипок масштабирует, два пальца двигают
+    private final CanvasViewport viewport = new CanvasViewport();
+    private boolean viewportFitted = false;
+    private final ScaleGestureDetector scaleDetector;
+    private boolean isNavigating = false;
+    private float focusX, focusY;
+    private final Rect clipBounds = new Rect();
+    private static final float ZOOM_STEP = 1.25f;
+    private boolean isLocked = false; // читается и пишется только в потоке UI
+
+    // Поток рисования: поля модели выше трогаются только из него
+    private boolean renderThreadEnabled = true;
+    private HandlerThread renderThread;
+    private volatile Handler renderHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<MotionEvent> pendingEvents = new ArrayDeque<>();
+    private final Runnable drainEventsTask = this::drainEvents;
+    private final Runnable drawFrameTask = this::drawFrame;
+    private boolean framePending;
+    private boolean surfaceReady;
+    private int surfaceWidth, surfaceHeight;
+    private final Rect frameDirty = new Rect(); // в координатах вида
+
+    private final FloodFiller floodFiller = new FloodFiller();
+    private int[] fillPixels;
+    private int fillTolerance = DEFAULT_FILL_TOLERANCE;
 
     public DrawingView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        bitmap = Bitmap.createBitmap(900, 900, Bitmap.Config.ARGB_8888);
-        bitmapCanvas = new Canvas(bitmap);
-        bitmapCanvas.drawColor(Color.WHITE);
+        // Вокруг холста просвечивает фон окна, как у обычного View
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+        layers = new LayerStack(DEFAULT_CANVAS_SIZE, DEFAULT_CANVAS_SIZE, Color.WHITE);
+        commandLog = new DrawingCommandLog(layers.getWidth(), layers.getHeight());
 
         pencilPaint = new Paint();
         pencilPaint.setColor(currentColor);
         pencilPaint.setStyle(Paint.Style.STROKE);
         pencilPaint.setStrokeWidth(5);
+        pencilPaint.setStrokeCap(Paint.Cap.ROUND);
+        pencilPaint.setStrokeJoin(Paint.Join.ROUND);
         pencilPaint.setAntiAlias(true);
 
+        // Ластик стирает только слой линий до прозрачности, фото и заливка под ним остаются
         eraserPaint = new Paint();
-        eraserPaint.setColor(Color.WHITE);
+        eraserPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
         eraserPaint.setStyle(Paint.Style.STROKE);
         eraserPaint.setStrokeWidth(10);
+        eraserPaint.setStrokeCap(Paint.Cap.ROUND);
+        eraserPaint.setStrokeJoin(Paint.Join.ROUND);
         eraserPaint.setAntiAlias(true);
 
-        textPaint = new Paint();
-        textPaint.setColor(currentColor);
-        textPaint.setTextSize(20);
-        textPaint.setAntiAlias(true);
+        replayPaint = new Paint(pencilPaint);
+        touchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+        history.setListener((canvas, bounds) -> layers.invalidateLayer(layers.indexOf(canvas),
+                bounds.left, bounds.top, bounds.right - 1, bounds.bottom - 1));
+
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                float factor = detector.getScaleFactor();
+                float focusX = detector.getFocusX();
+                float focusY = detector.getFocusY();
+                runOnRenderThread(() -> {
+                    if (viewport.zoomBy(factor, focusX, focusY)) requestRender();
+                });
+                return true;
+            }
+        });
+    }
+
+    /** Включает отдельный поток рисования; действует при следующем прикреплении к окну. */
+    public void setRenderThreadEnabled(boolean enabled) {
+        renderThreadEnabled = enabled;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (renderThreadEnabled && renderThread == null) {
+            renderThread = new HandlerThread("DrawingRender", Process.THREAD_PRIORITY_DISPLAY);
+            renderThread.start();
+            renderHandler = new Handler(renderThread.getLooper());
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // Поверхность уничтожается в super, пока поток еще жив
+        super.onDetachedFromWindow();
+        if (renderThread != null) {
+            renderThread.quitSafely();
+            try {
+                renderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            renderThread = null;
+            renderHandler = null;
+        }
+        synchronized (pendingEvents) {
+            while (!pendingEvents.isEmpty()) pendingEvents.poll().recycle();
+        }
+    }
+
+    // Задача выполняется в потоке рисования по очереди, без потока - сразу
+    private void runOnRenderThread(Runnable task) {
+        Handler handler = renderHandler;
+        if (handler == null || handler.getLooper() == Looper.myLooper()) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
+
+    private interface RenderCall<T> {
+        T call() throws IOException;
+    }
+
+    // Выполняет вызов в потоке рисования после всех задач перед ним и ждет результата
+    private <T> T await(RenderCall<T> call) throws IOException {
+        Handler handler = renderHandler;
+        if (handler == null || handler.getLooper() == Looper.myLooper()) {
+            return call.call();
+        }
+        FutureTask<T> task = new FutureTask<>(call::call);
+        handler.post(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ожидание потока рисования прервано", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private <T> T awaitValue(RenderCall<T> call) {
+        try {
+            return await(call);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        runOnRenderThread(() -> {
+            surfaceReady = true;
+            onSurfaceSize(width, height);
+        });
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        runOnRenderThread(() -> onSurfaceSize(width, height));
+    }
 
-        cloudPaint = new Paint();
-        cloudPaint.setColor(currentColor);
-        cloudPaint.setStyle(Paint.Style.STROKE);
-        cloudPaint.setStrokeWidth(2);
-        cloudPaint.setAntiAlias(true);
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        // После возврата поверхность освобождается: поток рисования должен о ней забыть
+        awaitValue(() -> surfaceReady = false);
+        return true;
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+
+    private void onSurfaceSize(int width, int height) {
+        surfaceWidth = width;
+        surfaceHeight = height;
+        if (!viewportFitted) fitViewport();
+        requestRender();
+    }
+
+    private void fitViewport() {
+        if (surfaceWidth == 0 || surfaceHeight == 0) return;
+        viewport.fit(layers.getWidth(), layers.getHeight(), surfaceWidth, surfaceHeight);
+        viewportFitted = true;
+    }
+
+    // Перерисовка всего вида в ближайшем кадре
+    private void requestRender() {
+        frameDirty.set(0, 0, surfaceWidth, surfaceHeight);
+        scheduleFrame();
+    }
+
+    // Несколько запросов до кадра сливаются в один
+    private void scheduleFrame() {
+        if (framePending) return;
+        framePending = true;
+        Handler handler = renderHandler;
+        (handler != null ? handler : mainHandler).post(drawFrameTask);
+    }
+
+    private void drawFrame() {
+        Handler handler = renderHandler;
+        if (handler != null && handler.getLooper() != Looper.myLooper()) {
+            // Кадр запрошен до запуска потока: рисуем уже в нем
+            handler.post(drawFrameTask);
+            return;
+        }
+        framePending = false;
+        if (!surfaceReady || frameDirty.isEmpty()) return;
+        // lockCanvas может расширить прямоугольник; холст обрезан по нему
+        Canvas canvas = lockCanvas(frameDirty);
+        frameDirty.setEmpty();
+        if (canvas == null) return;
+        try {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            drawContent(canvas);
+        } finally {
+            unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private void drawContent(Canvas canvas) {
         canvas.save();
-        canvas.translate(canvasX, canvasY);
-        canvas.scale(scaleFactor, scaleFactor, bitmap.getWidth() / 2f, bitmap.getHeight() / 2f);
-        canvas.drawBitmap(bitmap, 0, 0, null);
+        canvas.translate(viewport.getTranslateX(), viewport.getTranslateY());
+        canvas.scale(viewport.getScale(), viewport.getScale());
+        // После преобразования границы клипа - это видимая часть холста; рисуем только ее
+        if (canvas.getClipBounds(clipBounds)) {
+            layers.drawTo(canvas, tilePaint, clipBounds.left, clipBounds.top,
+                    clipBounds.right, clipBounds.bottom, viewport.getMipLevel());
+            for (int i = 0; i < balloons.size(); i++) {
+                SpeechBalloon balloon = balloons.get(i);
+                RectF bounds = balloon.getBounds();
+                if (bounds.intersects(clipBounds.left, clipBounds.top, clipBounds.right, clipBounds.bottom)) {
+                    balloon.draw(canvas);
+                }
+            }
+        }
         canvas.restore();
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
-
         if (isLocked) {
             return true; // Блокируем взаимодействие с холстом, кроме кнопок
         }
+        scaleDetector.onTouchEvent(event);
+        Handler handler = renderHandler;
+        if (handler == null) {
+            handleTouch(event);
+            return true;
+        }
+        // Копия события берется из пула MotionEvent и возвращается в него после обработки
+        synchronized (pendingEvents) {
+            pendingEvents.add(MotionEvent.obtain(event));
+            if (pendingEvents.size() > 1) return true; // разбор очереди уже запланирован
+        }
+        handler.post(drainEventsTask);
+        return true;
+    }
 
-        // Преобразование координат с учетом масштаба и смещения
-        float adjustedX = (x - canvasX) / scaleFactor;
-        float adjustedY = (y - canvasY) / scaleFactor;
+    // Событие остается в очереди, пока обрабатывается: так поток UI видит, что разбор идет
+    private void drainEvents() {
+        while (true) {
+            MotionEvent event;
+            synchronized (pendingEvents) {
+                event = pendingEvents.peek();
+            }
+            if (event == null) return;
+            handleTouch(event);
+            synchronized (pendingEvents) {
+                pendingEvents.poll();
+            }
+            event.recycle();
+        }
+    }
+
+    private boolean handleTouch(MotionEvent event) {
+        float x = event.getX();
+        float y = event.getY();
 
-        // Проверка, находятся ли координаты в пределах битмапа
-        if (adjustedX < 0 || adjustedX >= bitmap.getWidth() || adjustedY < 0 || adjustedY >= bitmap.getHeight()) {
-            return true; // Игнорируем события вне холста
+        if (handleNavigation(event)) {
+            return true;
         }
 
-        switch (event.getAction()) {
+        // Преобразование координат с учетом масштаба и смещения
+        float adjustedX = toCanvasX(x);
+        float adjustedY = toCanvasY(y);
+
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                if (currentTool != 0) { // Проверяем, что инструмент выбран
-                    saveUndoState();
-                    currentPath = new Path();
-                    currentPath.moveTo(adjustedX, adjustedY);
+                if (currentTool == TOOL_TEXT) {
+                    // Реплику под пальцем можно перетащить или, коснувшись, отредактировать
+                    draggedBalloon = balloonAt(adjustedX, adjustedY);
+                    if (draggedBalloon != null) {
+                        balloonDragged = false;
+                        dragStartX = draggedBalloon.getX();
+                        dragStartY = draggedBalloon.getY();
+                        dragOffsetX = dragStartX - adjustedX;
+                        dragOffsetY = dragStartY - adjustedY;
+                        downViewX = x;
+                        downViewY = y;
+                        return true;
+                    }
+                }
+                if (!isInsideCanvas(adjustedX, adjustedY)) {
+                    return true; // Игнорируем касания вне холста
+                }
+                if (currentTool == TOOL_PENCIL || currentTool == TOOL_ERASER) {
+                    history.beginOperation(layers.getLayer(LayerStack.LAYER_INK));
+                    isStroking = true;
+                    if (currentTool == TOOL_PENCIL) {
+                        brush.setColor(currentColor);
+                        brush.setSize(pencilPaint.getStrokeWidth());
+                        dirtyRect.setEmpty();
+                        brush.getStroke().begin(adjustedX, adjustedY, pressureOf(event, -1), event.getEventTime());
+                        flushBrush(history);
+                        invalidateCanvasRect(dirtyRect);
+                    } else {
+                        strokePointCount = 0;
+                        recordStrokePoint(adjustedX, adjustedY);
+                        beginStroke(adjustedX, adjustedY);
+                    }
                 }
                 return true;
 
             case MotionEvent.ACTION_MOVE:
-                if (currentTool != 0 && currentPath != null) {
-                    currentPath.lineTo(adjustedX, adjustedY);
-                    bitmapCanvas.drawPath(currentPath, currentTool == TOOL_PENCIL ? pencilPaint : eraserPaint);
-                    invalidate();
+                if (draggedBalloon != null) {
+                    if (!balloonDragged && Math.hypot(x - downViewX, y - downViewY) < touchSlop) {
+                        return true;
+                    }
+                    balloonDragged = true;
+                    invalidateCanvasRect(draggedBalloon.getBounds());
+                    draggedBalloon.setPosition(adjustedX + dragOffsetX, adjustedY + dragOffsetY);
+                    invalidateCanvasRect(draggedBalloon.getBounds());
+                } else if (isStroking && currentTool == TOOL_PENCIL) {
+                    dirtyRect.setEmpty();
+                    // Все пакетные точки дают отпечатки, а рисуются одним проходом
+                    BrushStroke stroke = brush.getStroke();
+                    int historySize = event.getHistorySize();
+                    for (int i = 0; i < historySize; i++) {
+                        stroke.add(toCanvasX(event.getHistoricalX(i)), toCanvasY(event.getHistoricalY(i)),
+                                pressureOf(event, i), event.getHistoricalEventTime(i));
+                    }
+                    stroke.add(adjustedX, adjustedY, pressureOf(event, -1), event.getEventTime());
+                    flushBrush(history);
+                    invalidateCanvasRect(dirtyRect);
+                } else if (isStroking) {
+                    dirtyRect.setEmpty();
+                    // Пакетные точки, накопленные между кадрами, тоже рисуем
+                    int historySize = event.getHistorySize();
+                    for (int i = 0; i < historySize; i++) {
+                        float hx = toCanvasX(event.getHistoricalX(i));
+                        float hy = toCanvasY(event.getHistoricalY(i));
+                        recordStrokePoint(hx, hy);
+                        addStrokePoint(hx, hy, strokePaint());
+                    }
+                    recordStrokePoint(adjustedX, adjustedY);
+                    addStrokePoint(adjustedX, adjustedY, strokePaint());
+                    invalidateCanvasRect(dirtyRect);
                 }
                 return true;
 
             case MotionEvent.ACTION_UP:
-                if (currentTool != 0 && currentPath != null) {
-                    currentPath.lineTo(adjustedX, adjustedY);
-                    bitmapCanvas.drawPath(currentPath, currentTool == TOOL_PENCIL ? pencilPaint : eraserPaint);
-                    currentPath = null;
-                    invalidate();
-                    notifyUndoRedoChanged();
-
-                    if (currentTool == TOOL_FILL) {
-                        saveUndoState();
-                        int targetColor = bitmap.getPixel((int) adjustedX, (int) adjustedY);
-                        if (targetColor != currentColor) {
-                            floodFill((int) adjustedX, (int) adjustedY, targetColor, currentColor);
-                            invalidate();
-                            notifyUndoRedoChanged();
-                        }
-                    } else if (currentTool == TOOL_TEXT) {
-                        textX = adjustedX;
-                        textY = adjustedY;
-                        showTextDialog();
+                if (draggedBalloon != null) {
+                    SpeechBalloon balloon = draggedBalloon;
+                    draggedBalloon = null;
+                    if (balloonDragged) {
+                        commitBalloonMove(balloon);
+                    } else {
+                        showTextDialog(balloon);
+                    }
+                } else if (isStroking) {
+                    dirtyRect.setEmpty();
+                    isStroking = false;
+                    if (currentTool == TOOL_PENCIL) {
+                        brush.getStroke().end(adjustedX, adjustedY, pressureOf(event, -1), event.getEventTime());
+                        flushBrush(history);
+                    } else {
+                        recordStrokePoint(adjustedX, adjustedY);
+                        finishStroke(adjustedX, adjustedY, strokePaint());
+                    }
+                    invalidateCanvasRect(dirtyRect);
+                    commitStroke();
+                } else if (!isInsideCanvas(adjustedX, adjustedY)) {
+                    return true;
+                } else if (currentTool == TOOL_FILL) {
+                    history.beginOperation(layers.getLayer(LayerStack.LAYER_FILL));
+                    if (floodFill((int) adjustedX, (int) adjustedY, currentColor, fillTolerance)
+                            && history.commitOperation()) {
+                        commandLog.append(DrawingCommandLog.Command.fill(
+                                (int) adjustedX, (int) adjustedY, currentColor, fillTolerance));
+                        requestRender();
+                        notifyDrawingChanged();
                     }
+                } else if (currentTool == TOOL_TEXT) {
+                    textX = adjustedX;
+                    textY = adjustedY;
+                    showTextDialog(null);
+                }
+                return true;
+
+            case MotionEvent.ACTION_CANCEL:
+                if (draggedBalloon != null) {
+                    if (balloonDragged) commitBalloonMove(draggedBalloon);
+                    draggedBalloon = null;
+                }
+                if (isStroking) {
+                    isStroking = false;
+                    if (currentTool == TOOL_PENCIL) {
+                        // Дорисовываем хвост, чтобы холст совпадал с записанным мазком
+                        dirtyRect.setEmpty();
+                        brush.getStroke().finish();
+                        flushBrush(history);
+                        invalidateCanvasRect(dirtyRect);
+                    }
+                    commitStroke();
                 }
                 return true;
         }
         return false;
     }
 
-    private void saveUndoState() {
-        undoStack.add(bitmap.copy(Bitmap.Config.ARGB_8888, true));
-        redoStack.clear();
-        if (undoStack.size() > 10) undoStack.remove(0);
-    }
-
-    private void floodFill(int startX, int startY, int targetColor, int replacementColor) {
-        if (startX < 0 || startX >= bitmap.getWidth() || startY < 0 || startY >= bitmap.getHeight()) return;
-        if (bitmap.getPixel(startX, startY) != targetColor) return;
-        Queue<Point> queue = new LinkedList<>();
-        queue.add(new Point(startX, startY));
-        while (!queue.isEmpty()) {
-            Point p = queue.poll();
-            if (p.x < 0 || p.x >= bitmap.getWidth() || p.y < 0 || p.y >= bitmap.getHeight()) continue;
-            if (bitmap.getPixel(p.x, p.y) != targetColor) continue;
-            bitmap.setPixel(p.x, p.y, replacementColor);
-            queue.add(new Point(p.x + 1, p.y));
-            queue.add(new Point(p.x - 1, p.y));
-            queue.add(new Point(p.x, p.y + 1));
-            queue.add(new Point(p.x, p.y - 1));
-        }
-    }
-
-    private void showTextDialog() {
-        AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
-        builder.setTitle("Введите текст");
-        final EditText input = new EditText(getContext());
-        builder.setView(input);
-        builder.setPositiveButton("OK", (dialog, which) -> {
-            String text = input.getText().toString();
-            if (!text.isEmpty()) {
-                saveUndoState();
-                drawTextWithCloud(text);
-                invalidate();
-                notifyUndoRedoChanged();
+    // Второй палец переключает жест в навигацию до отпускания всех пальцев.
+    // Начатый штрих при этом откатывается, чтобы щипок не оставлял следов
+    private boolean handleNavigation(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            isNavigating = false;
+        }
+        if (action == MotionEvent.ACTION_POINTER_DOWN) {
+            if (isStroking) {
+                isStroking = false;
+                history.cancelOperation();
+                requestRender();
             }
+            if (draggedBalloon != null) {
+                // Перенос реплики тоже отменяется
+                draggedBalloon.setPosition(dragStartX, dragStartY);
+                draggedBalloon = null;
+                requestRender();
+            }
+            isNavigating = true;
+            updateFocus(event, -1);
+            return true;
+        }
+        if (!isNavigating) {
+            return false;
+        }
+        switch (action) {
+            case MotionEvent.ACTION_MOVE:
+                float oldFocusX = focusX;
+                float oldFocusY = focusY;
+                updateFocus(event, -1);
+                viewport.panBy(focusX - oldFocusX, focusY - oldFocusY);
+                requestRender();
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                // Без отпущенного пальца, иначе центр жеста скачет
+                updateFocus(event, event.getActionIndex());
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                isNavigating = false;
+                break;
+        }
+        return true;
+    }
+
+    private void updateFocus(MotionEvent event, int skipIndex) {
+        float sumX = 0, sumY = 0;
+        int count = 0;
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            if (i == skipIndex) continue;
+            sumX += event.getX(i);
+            sumY += event.getY(i);
+            count++;
+        }
+        if (count > 0) {
+            focusX = sumX / count;
+            focusY = sumY / count;
+        }
+    }
+
+    private float toCanvasX(float viewX) {
+        return viewport.toCanvasX(viewX);
+    }
+
+    private float toCanvasY(float viewY) {
+        return viewport.toCanvasY(viewY);
+    }
+
+    private boolean isInsideCanvas(float x, float y) {
+        return x >= 0 && x < layers.getWidth() && y >= 0 && y < layers.getHeight();
+    }
+
+    // Нажим пальца на многих устройствах условный, поэтому учитывается только у стилуса.
+    // historyIndex < 0 - текущая точка события
+    private static float pressureOf(MotionEvent event, int historyIndex) {
+        if (event.getToolType(0) != MotionEvent.TOOL_TYPE_STYLUS) return 1f;
+        return historyIndex < 0 ? event.getPressure() : event.getHistoricalPressure(historyIndex);
+    }
+
+    private Paint strokePaint() {
+        return currentTool == TOOL_PENCIL ? pencilPaint : eraserPaint;
+    }
+
+    private void recordStrokePoint(float x, float y) {
+        if (strokePointCount + 2 > strokePoints.length) {
+            strokePoints = Arrays.copyOf(strokePoints, strokePoints.length * 2);
+        }
+        strokePoints[strokePointCount++] = x;
+        strokePoints[strokePointCount++] = y;
+    }
+
+    private void commitStroke() {
+        if (history.commitOperation()) {
+            if (currentTool == TOOL_PENCIL) {
+                BrushStroke stroke = brush.getStroke();
+                commandLog.append(DrawingCommandLog.Command.brush(currentColor, stroke.getSize(),
+                        stroke.copyPoints(), stroke.copyWidths()));
+                notifyDrawingChanged();
+                return;
+            }
+            Paint paint = strokePaint();
+            commandLog.append(DrawingCommandLog.Command.stroke(currentTool, paint.getColor(),
+                    paint.getStrokeWidth(), Arrays.copyOf(strokePoints, strokePointCount)));
+            notifyDrawingChanged();
+            return;
+        }
+        notifyUndoRedoChanged();
+    }
+
+    private void beginStroke(float x, float y) {
+        strokeMoved = false;
+        lastX = midX = x;
+        lastY = midY = y;
+    }
+
+    // Сглаживание по средним точкам: сегмент идет от середины предыдущего отрезка
+    // к середине нового с контрольной точкой в последней точке ввода
+    private void addStrokePoint(float x, float y, Paint paint) {
+        if (x == lastX && y == lastY) return;
+        float newMidX = (lastX + x) / 2;
+        float newMidY = (lastY + y) / 2;
+        segmentPath.rewind();
+        segmentPath.moveTo(midX, midY);
+        segmentPath.quadTo(lastX, lastY, newMidX, newMidY);
+        drawSegment(paint, Math.min(midX, Math.min(lastX, newMidX)), Math.min(midY, Math.min(lastY, newMidY)),
+                Math.max(midX, Math.max(lastX, newMidX)), Math.max(midY, Math.max(lastY, newMidY)));
+        midX = newMidX;
+        midY = newMidY;
+        lastX = x;
+        lastY = y;
+        strokeMoved = true;
+    }
+
+    private void finishStroke(float x, float y, Paint paint) {
+        if (!strokeMoved && x == lastX && y == lastY) {
+            // Касание без движения оставляет точку
+            segmentPath.rewind();
+            segmentPath.moveTo(x, y);
+            segmentPath.lineTo(x, y);
+        } else {
+            addStrokePoint(x, y, paint);
+            segmentPath.rewind();
+            segmentPath.moveTo(midX, midY);
+            segmentPath.lineTo(lastX, lastY);
+        }
+        drawSegment(paint, Math.min(midX, lastX), Math.min(midY, lastY), Math.max(midX, lastX), Math.max(midY, lastY));
+    }
+
+    private void drawSegment(Paint paint, float left, float top, float right, float bottom) {
+        float pad = paint.getStrokeWidth() / 2 + 2;
+        left -= pad;
+        top -= pad;
+        right += pad;
+        bottom += pad;
+        // Сохраняем в историю только плитки под сегментом
+        TiledCanvas ink = layers.getLayer(LayerStack.LAYER_INK);
+        history.capture(ink, (int) left, (int) top, (int) Math.ceil(right), (int) Math.ceil(bottom));
+        ink.drawPath(segmentPath, paint, left, top, right, bottom);
+        layers.invalidateLayer(LayerStack.LAYER_INK, (int) left, (int) top, (int) Math.ceil(right), (int) Math.ceil(bottom));
+        dirtyRect.union(left, top, right, bottom);
+    }
+
+    // Отпечатки кисти в слой линий; history == null при воспроизведении журнала
+    private void flushBrush(TileHistory history) {
+        if (brush.flush(layers.getLayer(LayerStack.LAYER_INK), history, dirtyRect)) {
+            layers.invalidateLayer(LayerStack.LAYER_INK, (int) dirtyRect.left, (int) dirtyRect.top,
+                    (int) Math.ceil(dirtyRect.right), (int) Math.ceil(dirtyRect.bottom));
+        }
+    }
+
+    // Перерисовывает только ту часть вида, где показан измененный участок холста
+    private void invalidateCanvasRect(RectF rect) {
+        if (rect.isEmpty()) return;
+        int left = (int) Math.floor(viewport.toViewX(rect.left));
+        int top = (int) Math.floor(viewport.toViewY(rect.top));
+        int right = (int) Math.ceil(viewport.toViewX(rect.right));
+        int bottom = (int) Math.ceil(viewport.toViewY(rect.bottom));
+        frameDirty.union(left, top, right, bottom);
+        scheduleFrame();
+    }
+
+    // Границы ищутся по сведенному рисунку, а цвет пишется только в слой заливки
+    private boolean floodFill(int startX, int startY, int replacementColor, int tolerance) {
+        int width = layers.getWidth();
+        int height = layers.getHeight();
+        if (fillPixels == null || fillPixels.length != width * height) {
+            fillPixels = new int[width * height];
+        }
+        layers.getCompositePixels(fillPixels);
+        if (!floodFiller.fill(fillPixels, width, height, startX, startY, replacementColor, tolerance)) {
+            return false;
+        }
+        // Переносим в слой заливки только залитые пиксели внутри затронутого прямоугольника
+        int left = floodFiller.getDirtyLeft();
+        int top = floodFiller.getDirtyTop();
+        int right = floodFiller.getDirtyRight();
+        int bottom = floodFiller.getDirtyBottom();
+        TiledCanvas fillLayer = layers.getLayer(LayerStack.LAYER_FILL);
+        history.capture(fillLayer, left, top, right, bottom);
+        int offset = top * width + left;
+        fillLayer.getPixels(fillPixels, offset, width, left, top, right - left + 1, bottom - top + 1);
+        for (int y = top; y <= bottom; y++) {
+            for (int i = y * width + left; i <= y * width + right; i++) {
+                if (floodFiller.isFilled(i)) fillPixels[i] = replacementColor;
+            }
+        }
+        fillLayer.setPixels(fillPixels, offset, width, left, top, right - left + 1, bottom - top + 1);
+        layers.invalidateLayer(LayerStack.LAYER_FILL, left, top, right, bottom);
+        return true;
+    }
+
+    // Новая реплика в точке (textX, textY) или правка существующей;
+    // пустой текст при правке удаляет реплику. Диалог показывается в потоке UI,
+    // а результат применяется в потоке рисования
+    private void showTextDialog(SpeechBalloon editing) {
+        String oldText = editing != null ? editing.getText() : null;
+        float x = textX, y = textY;
+        mainHandler.post(() -> {
+            AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
+            builder.setTitle(editing == null ? "Введите текст" : "Изменить текст");
+            final EditText input = new EditText(getContext());
+            if (oldText != null) {
+                input.setText(oldText);
+                input.setSelection(oldText.length());
+            }
+            builder.setView(input);
+            builder.setPositiveButton("OK", (dialog, which) -> {
+                String text = input.getText().toString();
+                runOnRenderThread(() -> {
+                    if (editing != null) {
+                        editBalloon(editing, text);
+                    } else if (!text.isEmpty()) {
+                        addBalloon(text, x, y);
+                    }
+                });
+            });
+            builder.setNegativeButton("Отмена", null);
+            builder.show();
         });
-        builder.setNegativeButton("Отмена", null);
-        builder.show();
-    }
-
-    private void drawTextWithCloud(String text) {
-        bitmapCanvas.drawText(text, textX, textY, textPaint);
-
-        Rect textBounds = new Rect();
-        textPaint.getTextBounds(text, 0, text.length(), textBounds);
-        float textWidth = textPaint.measureText(text);
-        float textHeight = textBounds.height();
-        float padding = 20f;
-
-        float left = textX - padding;
-        float top = textY - textHeight - padding;
-        float right = textX + textWidth + padding;
-        float bottom = textY + padding;
-
-        Random random = new Random();
-        int lineCount = 20;
-        float maxLength = 30f;
-        for (int i = 0; i < lineCount; i++) {
-            float startX, startY;
-            int side = random.nextInt(4);
-            switch (side) {
-                case 0: // Top
-                    startX = left + random.nextFloat() * (right - left);
-                    startY = top;
-                    break;
-                case 1: // Right
-                    startX = right;
-                    startY = top + random.nextFloat() * (bottom - top);
-                    break;
-                case 2: // Bottom
-                    startX = left + random.nextFloat() * (right - left);
-                    startY = bottom;
-                    break;
-                case 3: // Left
-                    startX = left;
-                    startY = top + random.nextFloat() * (bottom - top);
-                    break;
-                default:
-                    continue;
+    }
+
+    private void addBalloon(String text, float x, float y) {
+        SpeechBalloon balloon = new SpeechBalloon(seedRandom.nextLong(), text, x, y, currentColor, DEFAULT_TEXT_SIZE);
+        balloons.add(balloon);
+        history.pushAction(balloonAction(() -> balloons.remove(balloon), () -> balloons.add(balloon)));
+        commandLog.append(DrawingCommandLog.Command.text(x, y, currentColor, DEFAULT_TEXT_SIZE,
+                balloon.getSeed(), text));
+        invalidateCanvasRect(balloon.getBounds());
+        notifyDrawingChanged();
+    }
+
+    private void editBalloon(SpeechBalloon balloon, String text) {
+        String oldText = balloon.getText();
+        if (text.equals(oldText)) return;
+        invalidateCanvasRect(balloon.getBounds());
+        if (text.isEmpty()) {
+            int index = balloons.indexOf(balloon);
+            balloons.remove(index);
+            history.pushAction(balloonAction(() -> balloons.add(index, balloon), () -> balloons.remove(balloon)));
+        } else {
+            // Пересчитывается раскладка только этой реплики
+            balloon.setText(text);
+            history.pushAction(balloonAction(() -> balloon.setText(oldText), () -> balloon.setText(text)));
+            invalidateCanvasRect(balloon.getBounds());
+        }
+        commandLog.append(DrawingCommandLog.Command.balloonEdit(balloon.getSeed(), text));
+        notifyDrawingChanged();
+    }
+
+    private void commitBalloonMove(SpeechBalloon balloon) {
+        float fromX = dragStartX, fromY = dragStartY;
+        float toX = balloon.getX(), toY = balloon.getY();
+        history.pushAction(balloonAction(() -> balloon.setPosition(fromX, fromY),
+                () -> balloon.setPosition(toX, toY)));
+        commandLog.append(DrawingCommandLog.Command.balloonMove(balloon.getSeed(), toX, toY));
+        notifyDrawingChanged();
+    }
+
+    private TileHistory.Action balloonAction(Runnable undoChange, Runnable redoChange) {
+        return new TileHistory.Action() {
+            @Override
+            public void undo() {
+                undoChange.run();
+                requestRender();
             }
 
-            float angle = random.nextFloat() * 2 * (float) Math.PI;
-            float length = random.nextFloat() * maxLength;
-            float endX = startX + (float) Math.cos(angle) * length;
-            float endY = startY + (float) Math.sin(angle) * length;
+            @Override
+            public void redo() {
+                redoChange.run();
+                requestRender();
+            }
+        };
+    }
+
+    // Верхняя реплика под точкой холста
+    private SpeechBalloon balloonAt(float x, float y) {
+        for (int i = balloons.size() - 1; i >= 0; i--) {
+            if (balloons.get(i).contains(x, y)) return balloons.get(i);
+        }
+        return null;
+    }
 
-            bitmapCanvas.drawLine(startX, startY, endX, endY, cloudPaint);
+    private SpeechBalloon findBalloon(long seed) {
+        for (SpeechBalloon balloon : balloons) {
+            if (balloon.getSeed() == seed) return balloon;
+        }
+        return null;
+    }
+
+    // Реплики восстанавливаются из журнала без пикселей
+    private void applyBalloonCommand(DrawingCommandLog.Command command) {
+        SpeechBalloon balloon;
+        switch (command.type) {
+            case DrawingCommandLog.TYPE_TEXT:
+                balloons.add(new SpeechBalloon(command.seed, command.text, command.points[0], command.points[1],
+                        command.color, command.size));
+                break;
+            case DrawingCommandLog.TYPE_BALLOON_EDIT:
+                balloon = findBalloon(command.seed);
+                if (balloon == null) break;
+                if (command.text.isEmpty()) {
+                    balloons.remove(balloon);
+                } else {
+                    balloon.setText(command.text);
+                }
+                break;
+            case DrawingCommandLog.TYPE_BALLOON_MOVE:
+                balloon = findBalloon(command.seed);
+                if (balloon != null) balloon.setPosition(command.points[0], command.points[1]);
+                break;
         }
     }
 
     public void setTool(int tool) {
-        currentTool = tool;
+        runOnRenderThread(() -> {
+            currentTool = tool;
+            layers.setActiveLayer(layerForTool(tool));
+            requestRender();
+        });
+    }
+
+    private static int layerForTool(int tool) {
+        switch (tool) {
+            case TOOL_FILL:
+                return LayerStack.LAYER_FILL;
+            default:
+                return LayerStack.LAYER_INK;
+        }
     }
 
     public void setColor(int color) {
-        currentColor = color;
-        pencilPaint.setColor(color);
-        textPaint.setColor(color);
-        cloudPaint.setColor(color);
+        runOnRenderThread(() -> {
+            currentColor = color;
+            pencilPaint.setColor(color);
+        });
+    }
+
+    public void setFillTolerance(int tolerance) {
+        runOnRenderThread(() -> {
+            fillTolerance = Math.max(0, Math.min(255, tolerance));
+        });
     }
 
     public void setToolSize(float size) {
-        pencilPaint.setStrokeWidth(size);
-        eraserPaint.setStrokeWidth(size * 2);
+        runOnRenderThread(() -> {
+            pencilPaint.setStrokeWidth(size);
+            eraserPaint.setStrokeWidth(size * 2);
+        });
     }
 
     public void undo() {
-        if (!undoStack.isEmpty()) {
-            redoStack.add(bitmap.copy(Bitmap.Config.ARGB_8888, true));
-            bitmap = undoStack.remove(undoStack.size() - 1);
-            bitmapCanvas = new Canvas(bitmap);
-            invalidate();
+        runOnRenderThread(() -> {
+            if (history.undo()) {
+                commandLog.undo();
+                requestRender();
+                notifyDrawingChanged();
+            }
+        });
+    }
+
+    public void redo() {
+        runOnRenderThread(() -> {
+            if (history.redo()) {
+                commandLog.redo();
+                requestRender();
+                notifyDrawingChanged();
+            }
+        });
+    }
+
+    public void setHistoryBudget(long bytes) {
+        runOnRenderThread(() -> {
+            history.setBudgetBytes(bytes);
             notifyUndoRedoChanged();
+        });
+    }
+
+    // Импорт изображения в слой фото как отдельный шаг истории; линии поверх сохраняются.
+    // fileName - файл, из которого изображение читается при воспроизведении журнала
+    public void importImage(Bitmap image, String fileName) {
+        runOnRenderThread(() -> {
+            TiledCanvas photo = layers.getLayer(LayerStack.LAYER_PHOTO);
+            history.beginOperation(photo);
+            history.captureAll(photo);
+            drawImage(image);
+            boolean committed = history.commitOperation();
+            if (committed) {
+                commandLog.append(DrawingCommandLog.Command.image(fileName));
+            }
+            requestRender();
+            if (committed) {
+                notifyDrawingChanged();
+            } else {
+                notifyUndoRedoChanged();
+            }
+        });
+    }
+
+    private void drawImage(Bitmap image) {
+        Bitmap scaled = Bitmap.createScaledBitmap(image, layers.getWidth(), layers.getHeight(), true);
+        layers.getLayer(LayerStack.LAYER_PHOTO).drawAll(canvas -> {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            canvas.drawBitmap(scaled, 0, 0, null);
+        });
+        layers.invalidateLayer(LayerStack.LAYER_PHOTO);
+    }
+
+    public interface ImageLoader {
+        Bitmap loadImage(String fileName);
+    }
+
+    /** Журнал, плитки и превью, снятые одной задачей потока рисования и потому согласованные. */
+    public static final class SaveSnapshot {
+        public final DrawingCommandLog log;   // копия, живой журнал не затрагивается
+        public final byte[] tiles;
+        public final Bitmap preview;
+
+        SaveSnapshot(DrawingCommandLog log, byte[] tiles, Bitmap preview) {
+            this.log = log;
+            this.tiles = tiles;
+            this.preview = preview;
         }
     }
 
-    public void redo() {
-        if (!redoStack.isEmpty()) {
-            undoStack.add(bitmap.copy(Bitmap.Config.ARGB_8888, true));
-            bitmap = redoStack.remove(redoStack.size() - 1);
-            bitmapCanvas = new Canvas(bitmap);
-            invalidate();
+    public SaveSnapshot snapshotForSave(int previewMaxSide) throws IOException {
+        return await(() -> {
+            ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+            layers.writeTo(tiles);
+            return new SaveSnapshot(commandLog.copy(), tiles.toByteArray(), renderPreviewNow(previewMaxSide));
+        });
+    }
+
+    /** Переименовывает файл изображения в живом журнале вслед за снимком, сохраненным на диск. */
+    public void renameImage(String oldName, String newName) {
+        runOnRenderThread(() -> commandLog.renameImage(oldName, newName));
+    }
+
+    // Начинает новый журнал; baseImageName - растровая основа (например, старый PNG ячейки)
+    public void resetCommandLog(String baseImageName) {
+        runOnRenderThread(() -> {
+            commandLog = new DrawingCommandLog(layers.getWidth(), layers.getHeight());
+            if (baseImageName != null) {
+                commandLog.append(DrawingCommandLog.Command.image(baseImageName));
+            }
+            balloons.clear();
+            history.clear();
+            notifyUndoRedoChanged();
+        });
+    }
+
+    // Перерисовывает холст по журналу, записанному при любом разрешении
+    public void loadCommandLog(DrawingCommandLog log, ImageLoader loader) {
+        runOnRenderThread(() -> {
+            commandLog = log.rescaledTo(layers.getWidth(), layers.getHeight());
+            history.clear();
+            layers.clear();
+            balloons.clear();
+            for (DrawingCommandLog.Command command : commandLog.getActiveCommands()) {
+                replay(command, loader);
+            }
+            requestRender();
             notifyUndoRedoChanged();
+        });
+    }
+
+    private void replay(DrawingCommandLog.Command command, ImageLoader loader) {
+        float[] points = command.points;
+        switch (command.type) {
+            case DrawingCommandLog.TYPE_STROKE:
+                if (points.length < 2) return;
+                replayPaint.setColor(command.color);
+                replayPaint.setXfermode(command.tool == TOOL_ERASER ? eraserPaint.getXfermode() : null);
+                replayPaint.setStrokeWidth(command.size);
+                beginStroke(points[0], points[1]);
+                for (int i = 2; i + 3 < points.length; i += 2) {
+                    addStrokePoint(points[i], points[i + 1], replayPaint);
+                }
+                finishStroke(points[points.length - 2], points[points.length - 1], replayPaint);
+                break;
+            case DrawingCommandLog.TYPE_BRUSH:
+                // Толщины записаны, поэтому мазок повторяется точно, без нажима и скорости
+                float[] widths = command.widths;
+                if (widths.length == 0) return;
+                BrushStroke stroke = brush.getStroke();
+                brush.setColor(command.color);
+                stroke.setSize(command.size);
+                stroke.beginWithWidth(points[0], points[1], widths[0]);
+                for (int i = 1; i < widths.length; i++) {
+                    stroke.addWithWidth(points[i * 2], points[i * 2 + 1], widths[i]);
+                }
+                stroke.finish();
+                dirtyRect.setEmpty();
+                flushBrush(null);
+                break;
+            case DrawingCommandLog.TYPE_FILL:
+                floodFill((int) points[0], (int) points[1], command.color, command.tolerance);
+                break;
+            case DrawingCommandLog.TYPE_TEXT:
+            case DrawingCommandLog.TYPE_BALLOON_EDIT:
+            case DrawingCommandLog.TYPE_BALLOON_MOVE:
+                applyBalloonCommand(command);
+                break;
+            case DrawingCommandLog.TYPE_IMAGE:
+                Bitmap image = loader != null ? loader.loadImage(command.text) : null;
+                if (image != null) {
+                    drawImage(image);
+                } else {
+                    Log.w(TAG, "Изображение из журнала не найдено: " + command.text);
+                    layers.getLayer(LayerStack.LAYER_PHOTO).clear();
+                    layers.invalidateLayer(LayerStack.LAYER_PHOTO);
+                }
+                break;
         }
     }
 
-    public Bitmap getBitmap() {
-        return bitmap;
+    // Новый пустой холст заданного размера (например, по размерам страницы)
+    public void setCanvasSize(int width, int height) {
+        runOnRenderThread(() -> {
+            if (width == layers.getWidth() && height == layers.getHeight()) return;
+            int activeLayer = layers.getActiveLayer();
+            layers.clear();
+            layers = new LayerStack(width, height, Color.WHITE);
+            layers.setActiveLayer(activeLayer);
+            commandLog = new DrawingCommandLog(width, height);
+            balloons.clear();
+            history.clear();
+            fitViewport();
+            requestRender();
+            notifyUndoRedoChanged();
+        });
+    }
+
+    public int getCanvasWidth() {
+        return awaitValue(() -> layers.getWidth());
+    }
+
+    public int getCanvasHeight() {
+        return awaitValue(() -> layers.getHeight());
+    }
+
+    // Растровая основа без записи в историю (старый PNG ячейки)
+    public void loadBaseImage(Bitmap image) {
+        runOnRenderThread(() -> {
+            layers.clear();
+            drawImage(image);
+            requestRender();
+        });
+    }
+
+    // Журнал без перерисовки: пиксели уже восстановлены из файла плиток, реплики - из журнала
+    public void setCommandLog(DrawingCommandLog log) {
+        runOnRenderThread(() -> {
+            commandLog = log.rescaledTo(layers.getWidth(), layers.getHeight());
+            balloons.clear();
+            for (DrawingCommandLog.Command command : commandLog.getActiveCommands()) {
+                applyBalloonCommand(command);
+            }
+            requestRender();
+            history.clear();
+            notifyUndoRedoChanged();
+        });
+    }
+
+    public boolean readTiles(InputStream stream) throws IOException {
+        return await(() -> {
+            boolean loaded = layers.readFrom(stream);
+            requestRender();
+            return loaded;
+        });
+    }
+
+    // Только в потоке рисования
+    private Bitmap renderPreviewNow(int maxSide) {
+        Bitmap preview = layers.renderScaled(maxSide);
+        Canvas canvas = new Canvas(preview);
+        canvas.scale((float) preview.getWidth() / layers.getWidth(), (float) preview.getHeight() / layers.getHeight());
+        for (SpeechBalloon balloon : balloons) {
+            balloon.draw(canvas);
+        }
+        return preview;
     }
 
     public void zoomIn() {
-        scaleFactor += 0.1f;
-        if (scaleFactor > MAX_SCALE) scaleFactor = MAX_SCALE;
-        invalidate();
+        runOnRenderThread(() -> {
+            if (viewport.zoomBy(ZOOM_STEP, surfaceWidth / 2f, surfaceHeight / 2f)) requestRender();
+        });
     }
 
     public void zoomOut() {
-        scaleFactor -= 0.1f;
-        if (scaleFactor < MIN_SCALE) scaleFactor = MIN_SCALE;
-        invalidate();
+        runOnRenderThread(() -> {
+            if (viewport.zoomBy(1 / ZOOM_STEP, surfaceWidth / 2f, surfaceHeight / 2f)) requestRender();
+        });
     }
 
     public void moveCanvas(float dx, float dy) {
-        canvasX += dx;
-        canvasY += dy;
-        invalidate();
+        runOnRenderThread(() -> {
+            viewport.panBy(dx, dy);
+            requestRender();
+        });
     }
 
     public void clearCanvas() {
-        bitmap.eraseColor(Color.WHITE);
-        undoStack.clear();
-        redoStack.clear();
-        invalidate();
-        notifyUndoRedoChanged();
+        runOnRenderThread(() -> {
+            layers.clear();
+            balloons.clear();
+            history.clear();
+            commandLog.clear();
+            requestRender();
+            notifyUndoRedoChanged();
+        });
     }
 
     public int getCurrentColor() {
-        return currentColor;
+        return awaitValue(() -> currentColor);
     }
 
     public void setLocked(boolean locked) {
@@ -315,15 +1157,37 @@ public class DrawingView extends View {
 
     public interface OnUndoRedoChangedListener {
         void onUndoRedoChanged(boolean canUndo, boolean canRedo);
+
+        // Правка пользователя: штрих, заливка, реплика, импорт, отмена или повтор.
+        // Загрузка рисунка и смена холста сюда не приходят
+        void onDrawingChanged();
     }
 
     public void setOnUndoRedoChangedListener(OnUndoRedoChangedListener listener) {
         this.listener = listener;
     }
 
+    // Слушатель всегда вызывается в потоке UI
     private void notifyUndoRedoChanged() {
-        if (listener != null) {
-            listener.onUndoRedoChanged(!undoStack.isEmpty(), !redoStack.isEmpty());
+        OnUndoRedoChangedListener listener = this.listener;
+        if (listener == null) return;
+        boolean canUndo = history.canUndo();
+        boolean canRedo = history.canRedo();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            listener.onUndoRedoChanged(canUndo, canRedo);
+        } else {
+            mainHandler.post(() -> listener.onUndoRedoChanged(canUndo, canRedo));
+        }
+    }
+
+    private void notifyDrawingChanged() {
+        notifyUndoRedoChanged();
+        OnUndoRedoChangedListener listener = this.listener;
+        if (listener == null) return;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            listener.onDrawingChanged();
+        } else {
+            mainHandler.post(listener::onDrawingChanged);
         }
     }
 }
\ No newline at end of file
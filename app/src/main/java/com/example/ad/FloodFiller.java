@@ -0,0 +1,107 @@
+package com.example.ad;
+
+import java.util.Arrays;
+
+/**
+ * Заливка по строкам (scanline) над массивом пикселей ARGB.
+ * Стек хранит отрезки строк в примитивном массиве, поэтому на каждый пиксель
+ * не создается ни одного объекта. Буферы переиспользуются между вызовами.
+ */
+public class FloodFiller {
+    private int[] stack = new int[3 * 256]; // тройки: y, левая граница, правая граница
+    private int stackSize;
+    private byte[] visited = new byte[0];
+    private int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+
+    /**
+     * Заливает связную область вокруг (x, y) цветом replacement.
+     * Пиксель входит в область, если каждый его канал ARGB отличается от цвета
+     * начальной точки не более чем на tolerance (0..255).
+     *
+     * @return true, если был изменен хотя бы один пиксель
+     */
+    public boolean fill(int[] pixels, int width, int height, int x, int y, int replacement, int tolerance) {
+        if (x < 0 || x >= width || y < 0 || y >= height) return false;
+        int target = pixels[y * width + x];
+        if (target == replacement && tolerance <= 0) return false;
+
+        int size = width * height;
+        if (visited.length < size) {
+            visited = new byte[size];
+        } else {
+            Arrays.fill(visited, 0, size, (byte) 0);
+        }
+
+        dirtyLeft = x;
+        dirtyRight = x;
+        dirtyTop = y;
+        dirtyBottom = y;
+        stackSize = 0;
+        push(y, x, x);
+
+        while (stackSize > 0) {
+            stackSize -= 3;
+            int row = stack[stackSize];
+            int seedLeft = stack[stackSize + 1];
+            int seedRight = stack[stackSize + 2];
+            int rowOffset = row * width;
+
+            for (int sx = seedLeft; sx <= seedRight; sx++) {
+                if (!matches(pixels, visited, rowOffset + sx, target, tolerance)) continue;
+
+                // Расширяем отрезок влево и вправо от найденного пикселя
+                int left = sx;
+                while (left > 0 && matches(pixels, visited, rowOffset + left - 1, target, tolerance)) left--;
+                int right = sx;
+                while (right < width - 1 && matches(pixels, visited, rowOffset + right + 1, target, tolerance)) right++;
+
+                for (int i = rowOffset + left; i <= rowOffset + right; i++) {
+                    pixels[i] = replacement;
+                    visited[i] = 1;
+                }
+                if (left < dirtyLeft) dirtyLeft = left;
+                if (right > dirtyRight) dirtyRight = right;
+                if (row < dirtyTop) dirtyTop = row;
+                if (row > dirtyBottom) dirtyBottom = row;
+
+                if (row > 0) push(row - 1, left, right);
+                if (row < height - 1) push(row + 1, left, right);
+                sx = right + 1;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(int[] pixels, byte[] visited, int index, int target, int tolerance) {
+        if (visited[index] != 0) return false;
+        int color = pixels[index];
+        if (color == target) return true;
+        if (tolerance <= 0) return false;
+        return Math.abs((color >>> 24) - (target >>> 24)) <= tolerance
+                && Math.abs(((color >> 16) & 0xFF) - ((target >> 16) & 0xFF)) <= tolerance
+                && Math.abs(((color >> 8) & 0xFF) - ((target >> 8) & 0xFF)) <= tolerance
+                && Math.abs((color & 0xFF) - (target & 0xFF)) <= tolerance;
+    }
+
+    private void push(int row, int left, int right) {
+        if (stackSize + 3 > stack.length) {
+            int[] grown = new int[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = row;
+        stack[stackSize++] = left;
+        stack[stackSize++] = right;
+    }
+
+    // Границы последней заливки (включительно)
+    public int getDirtyLeft() { return dirtyLeft; }
+    public int getDirtyTop() { return dirtyTop; }
+    public int getDirtyRight() { return dirtyRight; }
+    public int getDirtyBottom() { return dirtyBottom; }
+
+    /** Попал ли пиксель (индекс y * width + x) в последнюю заливку. */
+    public boolean isFilled(int index) {
+        return visited[index] != 0;
+    }
+}
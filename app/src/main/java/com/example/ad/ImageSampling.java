@@ -0,0 +1,25 @@
+package com.example.ad;
+
+/**
+ * Выбор inSampleSize для декодирования картинки сразу в размере экрана, а не
+ * в полном разрешении файла.
+ */
+final class ImageSampling {
+
+    private ImageSampling() {
+    }
+
+    /**
+     * Наибольшая степень двойки, после уменьшения в которую картинка
+     * srcWidth x srcHeight все еще закрывает reqWidth x reqHeight целиком
+     * (как при centerCrop).
+     */
+    static int sampleSizeFor(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (srcWidth <= 0 || srcHeight <= 0 || reqWidth <= 0 || reqHeight <= 0) return sampleSize;
+        while (srcWidth / (sampleSize * 2) >= reqWidth && srcHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
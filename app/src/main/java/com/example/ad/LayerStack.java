@@ -0,0 +1,190 @@
+package com.example.ad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Слои рисунка ячейки снизу вверх: фото, заливка, линии.
+ * Реплики в слои не входят: это объекты SpeechBalloon поверх рисунка.
+ * Каждый слой - прозрачный TiledCanvas. Все слои под активным (вместе с фоном)
+ * и все слои над ним сведены в два кэша, поэтому кадр рисует три холста,
+ * а изменение активного слоя не требует пересборки кэшей.
+ * Кэш пересобирается по плиткам, которые изменились в других слоях.
+ */
+public class LayerStack {
+    public static final int LAYER_PHOTO = 0;
+    public static final int LAYER_FILL = 1;
+    public static final int LAYER_INK = 2;
+    public static final int LAYER_COUNT = 3;
+
+    private static final int MAGIC = 0x544D4C59; // "TMLY"
+
+    private final int width, height;
+    private final int background;
+    private final TiledCanvas[] layers = new TiledCanvas[LAYER_COUNT];
+    private final TiledCanvas below;  // фон и слои под активным
+    private final TiledCanvas above;  // слои над активным
+    private final boolean[] belowStale;
+    private final boolean[] aboveStale;
+    private final Paint backgroundPaint = new Paint();
+    private int activeLayer = LAYER_INK;
+
+    public LayerStack(int width, int height, int background) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        for (int i = 0; i < LAYER_COUNT; i++) {
+            layers[i] = new TiledCanvas(width, height, 0);
+        }
+        below = new TiledCanvas(width, height, background);
+        above = new TiledCanvas(width, height, 0);
+        belowStale = new boolean[below.getTileCount()];
+        aboveStale = new boolean[above.getTileCount()];
+        backgroundPaint.setColor(background);
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getActiveLayer() { return activeLayer; }
+
+    public TiledCanvas getLayer(int layer) {
+        return layers[layer];
+    }
+
+    public int indexOf(TiledCanvas canvas) {
+        for (int i = 0; i < LAYER_COUNT; i++) {
+            if (layers[i] == canvas) return i;
+        }
+        return -1;
+    }
+
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (TiledCanvas layer : layers) count += layer.getAllocatedTileCount();
+        return count;
+    }
+
+    /** Делает слой активным; кэши над и под ним пересобираются при следующем кадре. */
+    public void setActiveLayer(int layer) {
+        if (layer == activeLayer) return;
+        activeLayer = layer;
+        Arrays.fill(belowStale, true);
+        Arrays.fill(aboveStale, true);
+    }
+
+    /** Сообщает об изменении прямоугольника слоя (в координатах холста, включительно). */
+    public void invalidateLayer(int layer, int left, int top, int right, int bottom) {
+        if (layer == activeLayer || layer < 0) return;
+        boolean[] stale = layer < activeLayer ? belowStale : aboveStale;
+        int tilesX = below.getTilesX();
+        int size = TiledCanvas.TILE_SIZE;
+        int fromX = Math.max(0, left / size);
+        int fromY = Math.max(0, top / size);
+        int toX = Math.min(tilesX - 1, right / size);
+        int toY = Math.min((height - 1) / size, bottom / size);
+        for (int ty = fromY; ty <= toY; ty++) {
+            for (int tx = fromX; tx <= toX; tx++) {
+                stale[ty * tilesX + tx] = true;
+            }
+        }
+    }
+
+    public void invalidateLayer(int layer) {
+        invalidateLayer(layer, 0, 0, width - 1, height - 1);
+    }
+
+    // Пересобирает устаревшие плитки кэшей в видимом прямоугольнике
+    private void refreshCaches(int left, int top, int right, int bottom) {
+        int tilesX = below.getTilesX();
+        int size = TiledCanvas.TILE_SIZE;
+        int fromX = Math.max(0, left / size);
+        int fromY = Math.max(0, top / size);
+        int toX = Math.min(tilesX - 1, (right - 1) / size);
+        int toY = Math.min((height - 1) / size, (bottom - 1) / size);
+        for (int ty = fromY; ty <= toY; ty++) {
+            for (int tx = fromX; tx <= toX; tx++) {
+                int index = ty * tilesX + tx;
+                if (belowStale[index]) {
+                    below.compositeTile(index, layers, 0, activeLayer);
+                    belowStale[index] = false;
+                }
+                if (aboveStale[index]) {
+                    above.compositeTile(index, layers, activeLayer + 1, LAYER_COUNT);
+                    aboveStale[index] = false;
+                }
+            }
+        }
+    }
+
+    /** Рисует видимую часть рисунка: кэш снизу, активный слой, кэш сверху. */
+    public void drawTo(Canvas canvas, Paint paint, int left, int top, int right, int bottom, int level) {
+        refreshCaches(left, top, right, bottom);
+        below.drawTo(canvas, paint, backgroundPaint, left, top, right, bottom, level);
+        layers[activeLayer].drawTo(canvas, paint, null, left, top, right, bottom, level);
+        above.drawTo(canvas, paint, null, left, top, right, bottom, level);
+    }
+
+    /** Сведенный рисунок в массив пикселей width x height (например, для заливки). */
+    public void getCompositePixels(int[] pixels) {
+        TiledCanvas.flatten(layers, background, pixels);
+    }
+
+    public void clear() {
+        for (TiledCanvas layer : layers) layer.clear();
+        below.clear();
+        above.clear();
+        Arrays.fill(belowStale, false);
+        Arrays.fill(aboveStale, false);
+    }
+
+    public Bitmap renderScaled(int maxSide) {
+        float scale = Math.min(1f, (float) maxSide / Math.max(width, height));
+        int outWidth = Math.max(1, Math.round(width * scale));
+        int outHeight = Math.max(1, Math.round(height * scale));
+        Bitmap result = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        result.eraseColor(background);
+        Canvas canvas = new Canvas(result);
+        canvas.scale(scale, scale);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        for (TiledCanvas layer : layers) {
+            layer.drawTo(canvas, paint, null);
+        }
+        return result;
+    }
+
+    // Формат файла: заголовок и все слои по очереди в формате TiledCanvas
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(LAYER_COUNT);
+        out.flush();
+        for (TiledCanvas layer : layers) {
+            layer.writeTo(stream);
+        }
+    }
+
+    /** Читает слои; false, если файл другого формата или для холста другого размера. */
+    public boolean readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != LAYER_COUNT) {
+            return false;
+        }
+        for (TiledCanvas layer : layers) {
+            if (!layer.readFrom(stream)) {
+                clear();
+                return false;
+            }
+        }
+        Arrays.fill(belowStale, true);
+        Arrays.fill(aboveStale, true);
+        return true;
+    }
+}
@@ -3,21 +3,24 @@ package com.example.ad;
 import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.ScrollView;
 import android.widget.TextView;
-import android.graphics.BitmapFactory;
-import android.graphics.Bitmap;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
@@ -25,17 +28,26 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.io.File;
 
 public class MainActivity extends AppCompatActivity {
     private RecyclerView recyclerView;
     private ComicAdapter adapter;
-    private DatabaseHelper dbHelper;
+    private ComicRepository repository;
+    private CoverLoader coverLoader;
+    private int coverWidth, coverHeight; // размер обложки в карточке сетки
     private long userId;
     //private Button profileButton;
     private ImageButton profileButton, settingButton;
     private FloatingActionButton fab; // Ensure type matches XML
     private static final String TAG = "MainActivity";
+    private static final int PAGE_SIZE = 30;
+    private static final int PREFETCH_DISTANCE = 10; // сколько карточек до конца списка начинать догрузку
+    private static final int SEARCH_LIMIT = 50;
+
+    private boolean isLoadingPage = false;
+    private boolean isLastPageLoaded = false;
+    private int loadGeneration; // ответы на страницы до сброса списка отбрасываются
+    private String searchQuery = ""; // пустой запрос - обычная библиотека по страницам
 
     @SuppressLint("MissingInflatedId")
     @Override
@@ -47,7 +59,9 @@ public class MainActivity extends AppCompatActivity {
         recyclerView = findViewById(R.id.recyclerView);
         fab = findViewById(R.id.fab); // Correct type: FloatingActionButton
         profileButton = findViewById(R.id.profileButton); // Line 44
-        dbHelper = new DatabaseHelper(this);
+        repository = ComicRepository.getInstance(this);
+        // Удаления, прерванные в прошлых сеансах, и рисунки без ссылок дочищаются в фоне
+        repository.purgeDeletedComics();
         userId = getIntent().getLongExtra("user_id", -1);
 
         if (userId == -1) {
@@ -58,21 +72,44 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        recyclerView.setLayoutManager(new GridLayoutManager(this, 2));
-        try {
-            List<Comic> comics = dbHelper.getComicsForUser(userId);
-            if (comics == null) {
-                comics = new ArrayList<>();
-                Log.w(TAG, "No comics found for user " + userId);
+        coverLoader = CoverLoader.getInstance(this);
+        // Карточка - половина ширины экрана, обложка в ней высотой 150dp (item_comic)
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        coverWidth = metrics.widthPixels / 2;
+        coverHeight = Math.round(150 * metrics.density);
+
+        GridLayoutManager layoutManager = new GridLayoutManager(this, 2);
+        recyclerView.setLayoutManager(layoutManager);
+        // Список появляется пустым и догружается страницами по мере прокрутки
+        adapter = new ComicAdapter(new ArrayList<>());
+        recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView view, int dx, int dy) {
+                if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+        reloadComics();
+
+        SearchView searchView = findViewById(R.id.searchView);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                return true;
             }
-            adapter = new ComicAdapter(comics);
-            recyclerView.setAdapter(adapter);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to load comics: " + e.getMessage(), e);
-            Toast.makeText(this, "Error loading comics: " + e.getMessage(), Toast.LENGTH_LONG).show();
-            adapter = new ComicAdapter(new ArrayList<>());
-            recyclerView.setAdapter(adapter);
-        }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                String query = newText.trim();
+                if (query.equals(searchQuery)) return true;
+                searchQuery = query;
+                reloadComics();
+                return true;
+            }
+        });
 
         fab.setOnClickListener(v -> {
             Intent intent = new Intent(this, CoverPickerActivity.class);
@@ -92,6 +129,59 @@ public class MainActivity extends AppCompatActivity {
                 showAssistantDialog();
             }
         });
+        // В отладочной сборке долгое нажатие показывает статистику запросов к базе
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            settingButton.setOnLongClickListener(v -> {
+                showQueryStatsDialog();
+                return true;
+            });
+        }
+    }
+
+    private void reloadComics() {
+        loadGeneration++;
+        isLoadingPage = false;
+        isLastPageLoaded = false;
+        if (searchQuery.isEmpty()) {
+            adapter.updateComics(new ArrayList<>());
+            loadNextPage();
+        } else {
+            searchComics();
+        }
+    }
+
+    // Результаты поиска приходят одним списком, догрузки при прокрутке нет
+    private void searchComics() {
+        isLastPageLoaded = true;
+        int generation = loadGeneration;
+        repository.searchComics(userId, searchQuery, SEARCH_LIMIT, comics -> {
+            if (generation != loadGeneration || isFinishing() || isDestroyed()) return;
+            adapter.updateComics(comics);
+        }, e -> {
+            if (generation != loadGeneration || isFinishing() || isDestroyed()) return;
+            Toast.makeText(this, "Error searching comics: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        });
+    }
+
+    private void loadNextPage() {
+        if (isLoadingPage || isLastPageLoaded) return;
+        isLoadingPage = true;
+        int generation = loadGeneration;
+        repository.loadComicsPage(userId, adapter.getLastComic(), PAGE_SIZE, comics -> {
+            if (generation != loadGeneration || isFinishing() || isDestroyed()) return;
+            isLoadingPage = false;
+            isLastPageLoaded = comics.size() < PAGE_SIZE;
+            adapter.appendComics(comics);
+            if (adapter.getItemCount() == 0) {
+                Log.w(TAG, "No comics found for user " + userId);
+            } else if (!isLastPageLoaded && adapter.getItemCount() <= PREFETCH_DISTANCE) {
+                loadNextPage(); // страница не заполнила экран - прокрутки для догрузки не будет
+            }
+        }, e -> {
+            if (generation != loadGeneration || isFinishing() || isDestroyed()) return;
+            isLoadingPage = false;
+            Toast.makeText(this, "Error loading comics: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        });
     }
 
     private void showAssistantDialog() {
@@ -108,6 +198,27 @@ public class MainActivity extends AppCompatActivity {
         dialog.show();
     }
 
+    private void showQueryStatsDialog() {
+        repository.dumpQueryStats(dump -> {
+            if (isFinishing() || isDestroyed()) return;
+            TextView text = new TextView(this);
+            text.setText(dump);
+            text.setTextIsSelectable(true);
+            text.setTypeface(Typeface.MONOSPACE);
+            text.setTextSize(10);
+            int padding = (int) (16 * getResources().getDisplayMetrics().density);
+            text.setPadding(padding, padding, padding, padding);
+            ScrollView scrollView = new ScrollView(this);
+            scrollView.addView(text);
+            new AlertDialog.Builder(this)
+                    .setTitle("Запросы к базе")
+                    .setView(scrollView)
+                    .setPositiveButton("OK", null)
+                    .setNeutralButton("Сбросить", (dialog, which) -> repository.getDatabase().getQueryStats().reset())
+                    .show();
+        }, e -> Toast.makeText(this, "Не удалось записать статистику: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+    }
+
     private String getAssistantDescription() {
         return "Привет! Я твой помощник в приложении для создания комиксов!\n\n" +
                 "Во т что ты можешь делать:\n\n" +
@@ -142,11 +253,14 @@ public class MainActivity extends AppCompatActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == 1 && resultCode == RESULT_OK) {
-            try {
-                adapter.updateComics(dbHelper.getComicsForUser(userId));
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to update comics after adding: " + e.getMessage(), e);
-                Toast.makeText(this, "Error updating comics: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            if (!searchQuery.isEmpty()) {
+                searchComics(); // новый комикс может подходить под запрос
+                return;
+            }
+            // Новый комикс - последний в порядке создания: догружаем, если конец списка уже виден
+            if (isLastPageLoaded) {
+                isLastPageLoaded = false;
+                loadNextPage();
             }
         }
     }
@@ -168,23 +282,8 @@ public class MainActivity extends AppCompatActivity {
         public void onBindViewHolder(ViewHolder holder, int position) {
             Comic comic = comics.get(position);
             holder.titleTextView.setText(comic.getTitle() != null ? comic.getTitle() : "Untitled");
-            String coverPath = comic.getCoverImagePath();
-            if (coverPath != null && !coverPath.isEmpty() && new File(coverPath).exists()) {
-                try {
-                    Bitmap bitmap = BitmapFactory.decodeFile(coverPath);
-                    if (bitmap != null) {
-                        holder.coverImageView.setImageBitmap(bitmap);
-                    } else {
-                        holder.coverImageView.setImageResource(android.R.drawable.ic_menu_gallery);
-                        Log.w(TAG, "Failed to decode bitmap for cover: " + coverPath);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error loading cover image for comic " + comic.getId() + ": " + e.getMessage(), e);
-                    holder.coverImageView.setImageResource(android.R.drawable.ic_menu_gallery);
-                }
-            } else {
-                holder.coverImageView.setImageResource(android.R.drawable.ic_menu_gallery);
-            }
+            // Обложка приходит уменьшенной до карточки из кэша или из пула декодирования
+            coverLoader.load(comic.getCoverImagePath(), holder.coverImageView, coverWidth, coverHeight);
             holder.itemView.setOnClickListener(v -> {
                 Intent intent = new Intent(MainActivity.this, ComicEditorActivity.class);
                 intent.putExtra("comic_id", comic.getId());
@@ -200,21 +299,26 @@ public class MainActivity extends AppCompatActivity {
                 new AlertDialog.Builder(MainActivity.this)
                         .setTitle("Delete Comic")
                         .setMessage("Are you sure you want to delete this comic?")
-                        .setPositiveButton("Yes", (dialog, which) -> {
-                            try {
-                                dbHelper.deleteComic(comic.getId(), MainActivity.this);
-                                updateComics(dbHelper.getComicsForUser(userId));
-                            } catch (Exception e) {
-                                Log.e(TAG, "Failed to delete comic: " + e.getMessage(), e);
-                                Toast.makeText(MainActivity.this, "Error deleting comic: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                            }
-                        })
+                        .setPositiveButton("Yes", (dialog, which) -> repository.deleteComic(comic.getId(),
+                                deleted -> {
+                                    // Ключ страниц - последний загруженный комикс, удаление его не сбивает
+                                    if (deleted && !isFinishing() && !isDestroyed()) removeComic(comic);
+                                },
+                                e -> {
+                                    if (isFinishing() || isDestroyed()) return;
+                                    Toast.makeText(MainActivity.this, "Error deleting comic: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                                }))
                         .setNegativeButton("No", null)
                         .show();
                 return true;
             });
         }
 
+        @Override
+        public void onViewRecycled(ViewHolder holder) {
+            coverLoader.cancel(holder.coverImageView);
+        }
+
         @Override
         public int getItemCount() {
             return comics.size();
@@ -225,6 +329,23 @@ public class MainActivity extends AppCompatActivity {
             notifyDataSetChanged();
         }
 
+        public void appendComics(List<Comic> more) {
+            int start = comics.size();
+            comics.addAll(more);
+            notifyItemRangeInserted(start, more.size());
+        }
+
+        public void removeComic(Comic comic) {
+            int position = comics.indexOf(comic);
+            if (position < 0) return;
+            comics.remove(position);
+            notifyItemRemoved(position);
+        }
+
+        Comic getLastComic() {
+            return comics.isEmpty() ? null : comics.get(comics.size() - 1);
+        }
+
         class ViewHolder extends RecyclerView.ViewHolder {
             ImageView coverImageView;
             TextView titleTextView;
@@ -4,6 +4,8 @@ public class Page {
     private long id;
     private long comicId;
     private int pageNumber;
+    private int width = 1200;
+    private int height = 1600;
 
     // Getters and setters
     public long getId() { return id; }
@@ -12,4 +14,8 @@ public class Page {
     public void setComicId(long comicId) { this.comicId = comicId; }
     public int getPageNumber() { return pageNumber; }
     public void setPageNumber(int pageNumber) { this.pageNumber = pageNumber; }
+    public int getWidth() { return width; }
+    public void setWidth(int width) { this.width = width; }
+    public int getHeight() { return height; }
+    public void setHeight(int height) { this.height = height; }
 }
\ No newline at end of file
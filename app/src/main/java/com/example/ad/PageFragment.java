@@ -1,11 +1,10 @@
 package com.example.ad;
 
-import android.content.ContentValues;
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -23,9 +22,13 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.fragment.app.Fragment;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PageFragment extends Fragment {
     private static final String TAG = "PageFragment";
@@ -33,19 +36,26 @@ public class PageFragment extends Fragment {
     private Button  toggleGridButton;
     private ImageButton refreshPageButton,addCellButton;
     private DatabaseHelper dbHelper;
+    private ComicRepository repository;
+    private int loadGeneration;
     private long pageId = -1, comicId = -1;
+    private int pageWidth = 1200, pageHeight = 1600;
     private ActivityResultLauncher<Intent> drawingLauncher;
     private float lastTouchX, lastTouchY;
     private ImageView draggedCell;
     private Map<Long, ImageView> cellViews = new HashMap<>();
+    // Миниатюры, удерживаемые в общем кэше, пока их показывают ячейки
+    private final Map<Long, Bitmap> cellBitmaps = new HashMap<>();
+    // Какая версия рисунка показана в виде ячейки (ключ CellBitmapCache)
+    private final Map<Long, String> cellContentKeys = new HashMap<>();
+    private List<Cell> shownCells = new ArrayList<>();
     private int sheetWidth = 1800; // 6 * 300
     private int sheetHeight = 1800; // 6 * 300
-    private static final int CELL_SIZE = 300; // Фиксированный размер ячейки
+    private static final int CELL_SIZE = CellThumbnails.SIZE; // Фиксированный размер ячейки
     private static final int GRID_6X6 = 6;
     private static final int GRID_4X4 = 4;
     private static final int MAX_PATH_LENGTH = 100; // Уменьшен до 100 для большей безопасности
     private boolean isGridMode = true;
-    private int RESULT_OK;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -58,8 +68,14 @@ public class PageFragment extends Fragment {
                         Log.w(TAG, "Фрагмент не прикреплен или контекст недоступен после рисования");
                         return;
                     }
-                    if (result.getResultCode() == RESULT_OK) {
-                        refreshCells(); // Автоматическое обновление после возврата из DrawingActivity
+                    if (result.getResultCode() == Activity.RESULT_OK) {
+                        Intent data = result.getData();
+                        long cellId = data != null ? data.getLongExtra(DrawingActivity.EXTRA_CELL_ID, -1) : -1;
+                        if (cellId != -1) {
+                            refreshCell(cellId, data.getLongExtra(DrawingActivity.EXTRA_CONTENT_VERSION, -1));
+                        } else {
+                            refreshCells(); // Автоматическое обновление после возврата из DrawingActivity
+                        }
                     }
                 });
     }
@@ -78,7 +94,8 @@ public class PageFragment extends Fragment {
             Toast.makeText(getActivity(), "Контекст фрагмента недоступен", Toast.LENGTH_SHORT).show();
             return view;
         }
-        dbHelper = new DatabaseHelper(context);
+        repository = ComicRepository.getInstance(context);
+        dbHelper = repository.getDatabase();
         Bundle args = getArguments();
         if (args == null) {
             Toast.makeText(context, "Недействительные аргументы фрагмента", Toast.LENGTH_SHORT).show();
@@ -86,6 +103,8 @@ public class PageFragment extends Fragment {
         }
         pageId = args.getLong("page_id", -1);
         comicId = args.getLong("comic_id", -1);
+        pageWidth = args.getInt("page_width", pageWidth);
+        pageHeight = args.getInt("page_height", pageHeight);
         if (pageId == -1 || comicId == -1) {
             Toast.makeText(context, "Недействительный ID страницы или комикса", Toast.LENGTH_SHORT).show();
             return view;
@@ -107,7 +126,7 @@ public class PageFragment extends Fragment {
         toggleGridButton.setOnClickListener(v -> {
             isGridMode = !isGridMode;
             toggleGridButton.setText(isGridMode ? "Свободное размещение" : "Сетка");
-            refreshCells();
+            loadCells();
             Toast.makeText(context, isGridMode ? "Включен режим сетки" : "Включено свободное размещение", Toast.LENGTH_SHORT).show();
         });
 
@@ -137,7 +156,10 @@ public class PageFragment extends Fragment {
                         updateCellPosition(draggedCell);
                         break;
                     case MotionEvent.ACTION_UP:
+                    case MotionEvent.ACTION_CANCEL:
                         draggedCell = null;
+                        // Перемещение копилось в очереди, пишем его одним пакетом
+                        dbHelper.getCellWriteQueue().flush();
                         break;
                 }
                 return true;
@@ -148,25 +170,70 @@ public class PageFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        // ViewPager2 ставит на паузу и страницу, с которой ушли
+        if (dbHelper != null) {
+            dbHelper.getCellWriteQueue().flush();
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        cellViews.clear();
+        cellContentKeys.clear();
+        shownCells = new ArrayList<>();
+        draggedCell = null;
+        releaseCellBitmaps();
+    }
+
+    private void releaseCellBitmaps() {
+        for (Bitmap bitmap : cellBitmaps.values()) {
+            repository.releaseCellThumbnail(bitmap);
+        }
+        cellBitmaps.clear();
+    }
+
+    // Граф комикса из редактора, если в нем есть эта страница
+    private ComicGraph comicGraph() {
+        if (!(getActivity() instanceof ComicEditorActivity)) return null;
+        ComicGraph graph = ((ComicEditorActivity) getActivity()).getComicGraph();
+        return graph != null && graph.containsPage(pageId) ? graph : null;
+    }
+
     private void addNewCell(Context context) {
-        List<Cell> cells = dbHelper.getCellsForPage(pageId);
-        if (cells == null) {
-            Log.e(TAG, "Не удалось получить ячейки для страницы " + pageId);
-            Toast.makeText(context, "Не удалось получить ячейки", Toast.LENGTH_SHORT).show();
+        ComicGraph graph = comicGraph();
+        if (graph != null) {
+            insertNewCell(context, graph.getCellCount(pageId));
             return;
         }
-        int maxCells = cells.size() < 17 ? 16 : 36;
-        if (cells.size() >= maxCells) {
+        addCellButton.setEnabled(false);
+        repository.loadCells(pageId, cells -> {
+            if (!isAdded() || getView() == null) return;
+            addCellButton.setEnabled(true);
+            insertNewCell(context, cells.size());
+        }, e -> {
+            if (!isAdded() || getView() == null) return;
+            addCellButton.setEnabled(true);
+            Log.e(TAG, "Не удалось получить ячейки для страницы " + pageId);
+            Toast.makeText(context, "Не удалось получить ячейки", Toast.LENGTH_SHORT).show();
+        });
+    }
+
+    private void insertNewCell(Context context, int cellCount) {
+        int maxCells = cellCount < 17 ? 16 : 36;
+        if (cellCount >= maxCells) {
             Toast.makeText(context, "Достигнуто максимальное количество ячеек (" + maxCells + ")", Toast.LENGTH_SHORT).show();
             return;
         }
 
         float x, y;
         if (isGridMode) {
-            int gridSize = cells.size() < 17 ? GRID_4X4 : GRID_6X6;
-            int position = cells.size();
-            int row = position / gridSize;
-            int col = position % gridSize;
+            int gridSize = cellCount < 17 ? GRID_4X4 : GRID_6X6;
+            int row = cellCount / gridSize;
+            int col = cellCount % gridSize;
             x = col * CELL_SIZE;
             y = row * CELL_SIZE;
         } else {
@@ -174,66 +241,33 @@ public class PageFragment extends Fragment {
             y = 0;
         }
 
-        SQLiteDatabase db = null;
-        try {
-            db = dbHelper.getWritableDatabase();
-            ContentValues values = new ContentValues();
-            values.put("page_id", pageId);
-            values.put("x", x);
-            values.put("y", y);
-            values.put("width", CELL_SIZE);
-            values.put("height", CELL_SIZE);
-            String drawingPath = getSafeDrawingPath(cells.size());
-            values.put("drawing_path", drawingPath);
-            long newCellId = db.insert("cells", null, values);
+        String drawingPath = getSafeDrawingPath(cellCount);
+        addCellButton.setEnabled(false);
+        repository.insertCell(pageId, x, y, CELL_SIZE, CELL_SIZE, drawingPath, newCellId -> {
+            if (!isAdded() || getView() == null) return;
+            addCellButton.setEnabled(true);
             if (newCellId == -1) {
                 Log.e(TAG, "Не удалось добавить новую ячейку для страницы " + pageId);
                 Toast.makeText(context, "Не удалось добавить ячейку в базу данных", Toast.LENGTH_SHORT).show();
                 return;
             }
-
-            Cell newCell = new Cell();
-            newCell.setId(newCellId);
-            newCell.setPageId(pageId);
-            newCell.setX(x);
-            newCell.setY(y);
-            newCell.setWidth(CELL_SIZE);
-            newCell.setHeight(CELL_SIZE);
-            newCell.setDrawingPath(getSafeDrawingPath(newCellId));
-            cells.add(newCell);
-
-            ImageView imageView = new ImageView(context);
-            RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(CELL_SIZE, CELL_SIZE);
-            params.leftMargin = (int) x;
-            params.topMargin = (int) y;
-            imageView.setLayoutParams(params);
-            imageView.setScaleType(ImageView.ScaleType.FIT_XY);
-            imageView.setBackgroundResource(R.drawable.cell_border);
-            imageView.setImageResource(android.R.color.white);
-            imageView.setOnClickListener(v -> openDrawingActivity(newCell));
-            imageView.setOnLongClickListener(v -> {
-                if (!isGridMode) {
-                    draggedCell = imageView;
-                    imageView.setTag(newCell);
-                    return true;
-                }
-                return false;
-            });
-            pageLayout.addView(imageView);
-            cellViews.put(newCellId, imageView);
             Log.d(TAG, "Добавлена ячейка с ID " + newCellId + " на позицию (" + x + ", " + y + ")");
-
-            refreshCells();
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка добавления ячейки: " + e.getMessage(), e);
-            Toast.makeText(context, "Ошибка добавления ячейки: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-        } finally {
-            if (db != null && db.isOpen()) {
-                db.close();
+            ComicGraph graph = comicGraph();
+            if (graph != null) {
+                // Граф дополняется на месте, страница не перечитывается
+                graph.addCell(pageId, newCellId, x, y, CELL_SIZE, CELL_SIZE, drawingPath);
+                showCells(graph.getCells(pageId));
+            } else {
+                refreshCells();
             }
-        }
+        }, e -> {
+            if (!isAdded() || getView() == null) return;
+            addCellButton.setEnabled(true);
+            Toast.makeText(context, "Ошибка добавления ячейки: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        });
     }
 
+    // Ячейки берутся из графа комикса, без него - из базы
     private void loadCells() {
         Context context = getContext();
         if (context == null || !isAdded() || getView() == null) {
@@ -243,72 +277,13 @@ public class PageFragment extends Fragment {
 
         RelativeLayout.LayoutParams layoutParams = new RelativeLayout.LayoutParams(sheetWidth, sheetHeight);
         pageLayout.setLayoutParams(layoutParams);
-
-        List<Cell> cells = dbHelper.getCellsForPage(pageId);
-        if (cells == null) {
-            Log.e(TAG, "Не удалось загрузить ячейки для страницы " + pageId);
-            Toast.makeText(context, "Не удалось загрузить ячейки", Toast.LENGTH_SHORT).show();
-            return;
-        }
-
-        pageLayout.removeAllViews();
-        cellViews.clear();
-
-        if (isGridMode) {
-            int gridSize = cells.size() < 17 ? GRID_4X4 : GRID_6X6;
-            for (int i = 0; i < cells.size(); i++) {
-                Cell cell = cells.get(i);
-                int row = i / gridSize;
-                int col = i % gridSize;
-                float x = col * CELL_SIZE;
-                float y = row * CELL_SIZE;
-                cell.setX(x);
-                cell.setY(y);
-                updateCellData(cell);
-            }
-        }
-
-        for (Cell cell : cells) {
-            ImageView imageView = new ImageView(context);
-            RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(CELL_SIZE, CELL_SIZE);
-            params.leftMargin = (int) cell.getX();
-            params.topMargin = (int) cell.getY();
-            imageView.setLayoutParams(params);
-            imageView.setScaleType(ImageView.ScaleType.FIT_XY);
-            imageView.setBackgroundResource(R.drawable.cell_border);
-
-            String path = cell.getDrawingPath();
-            if (path != null && !path.isEmpty() && new File(path).exists()) {
-                try {
-                    Bitmap bitmap = BitmapFactory.decodeFile(path);
-                    if (bitmap != null) {
-                        bitmap = Bitmap.createScaledBitmap(bitmap, CELL_SIZE, CELL_SIZE, true);
-                        imageView.setImageBitmap(bitmap);
-                    } else {
-                        Log.w(TAG, "Битмап null для ячейки " + cell.getId() + " по пути " + path);
-                        imageView.setImageResource(android.R.color.white);
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Не удалось загрузить рисунок для ячейки " + cell.getId() + ": " + e.getMessage(), e);
-                    imageView.setImageResource(android.R.color.white);
-                }
-            } else {
-                imageView.setImageResource(android.R.color.white);
-            }
-
-            imageView.setOnClickListener(v -> openDrawingActivity(cell));
-            imageView.setOnLongClickListener(v -> {
-                if (!isGridMode) {
-                    draggedCell = imageView;
-                    imageView.setTag(cell);
-                    return true;
-                }
-                return false;
-            });
-            pageLayout.addView(imageView);
-            cellViews.put(cell.getId(), imageView);
+        ComicGraph graph = comicGraph();
+        if (graph != null) {
+            loadGeneration++; // отменяет ответ на еще не пришедшее чтение страницы
+            showCells(graph.getCells(pageId));
+        } else {
+            refreshCells();
         }
-        Log.d(TAG, "Загружено " + cells.size() + " ячеек для страницы " + pageId);
     }
 
     private void openDrawingActivity(Cell cell) {
@@ -322,10 +297,17 @@ public class PageFragment extends Fragment {
             return;
         }
         updateCellData(cell);
+        dbHelper.getCellWriteQueue().flush();
         String drawingPath = getSafeDrawingPath(cell.getId());
         Intent intent = new Intent(getActivity(), DrawingActivity.class);
-        intent.putExtra("cell_id", cell.getId());
+        intent.putExtra(DrawingActivity.EXTRA_CELL_ID, cell.getId());
         intent.putExtra("drawing_path", drawingPath);
+        intent.putExtra("drawing_blob", cell.getDrawingBlob());
+        // Новая ячейка рисуется в разрешении страницы с пропорциями ячейки
+        if (cell.getWidth() > 0 && cell.getHeight() > 0) {
+            intent.putExtra("canvas_width", cell.getCanvasWidth(pageWidth, pageHeight));
+            intent.putExtra("canvas_height", cell.getCanvasHeight(pageWidth, pageHeight));
+        }
         try {
             drawingLauncher.launch(intent);
             Log.d(TAG, "Успешно запущена DrawingActivity для ячейки " + cell.getId() + " с путем " + drawingPath);
@@ -366,41 +348,29 @@ public class PageFragment extends Fragment {
             Log.e(TAG, "Нельзя обновить данные ячейки: недействительная ячейка");
             return;
         }
-        SQLiteDatabase db = null;
         try {
-            db = dbHelper.getWritableDatabase();
-            ContentValues values = new ContentValues();
-            values.put("x", x);
-            values.put("y", y);
-            values.put("width", width);
-            values.put("height", height);
-            String drawingPath = getSafeDrawingPath(cell.getId());
+            // В базе хранится только имя файла, как его пишет DrawingActivity: иначе
+            // каждое открытие рисунка меняло бы строку туда и обратно
+            String drawingPath = new File(getSafeDrawingPath(cell.getId())).getName();
             if (drawingPath.length() > MAX_PATH_LENGTH) {
                 Log.w(TAG, "Путь к рисунку превышает лимит для ячейки " + cell.getId() + ", обрезается");
                 drawingPath = drawingPath.substring(0, MAX_PATH_LENGTH);
             }
-            values.put("drawing_path", drawingPath);
-            int rows = db.update("cells", values, "id = ?", new String[]{String.valueOf(cell.getId())});
-            if (rows > 0) {
-                cell.setX(x);
-                cell.setY(y);
-                cell.setWidth(width);
-                cell.setHeight(height);
-                cell.setDrawingPath(drawingPath);
-                Log.d(TAG, "Обновлены данные ячейки " + cell.getId() + ": x=" + x + ", y=" + y + ", w=" + width + ", h=" + height);
-            } else {
-                Log.w(TAG, "Не обновлено ни одной строки для ячейки " + cell.getId());
-            }
+            // Запись отложена: очередь оставит последнее значение и пропустит неизмененные
+            dbHelper.getCellWriteQueue().put(cell.getId(), x, y, width, height, drawingPath);
+            ComicGraph graph = comicGraph();
+            if (graph != null) graph.updateCell(pageId, cell.getId(), x, y, width, height, drawingPath);
+            cell.setX(x);
+            cell.setY(y);
+            cell.setWidth(width);
+            cell.setHeight(height);
+            cell.setDrawingPath(drawingPath);
         } catch (Exception e) {
             Log.e(TAG, "Не удалось обновить данные ячейки " + cell.getId() + ": " + e.getMessage(), e);
             if (e.getMessage() != null && e.getMessage().contains("STRING_TOO_LARGE")) {
                 Log.e(TAG, "Строка пути слишком длинная для ячейки " + cell.getId());
                 Toast.makeText(getContext(), "Ошибка: путь к файлу слишком длинный", Toast.LENGTH_SHORT).show();
             }
-        } finally {
-            if (db != null && db.isOpen()) {
-                db.close();
-            }
         }
     }
 
@@ -411,16 +381,59 @@ public class PageFragment extends Fragment {
             return;
         }
 
-        pageLayout.removeAllViews();
-        cellViews.clear();
+        // Ответ на устаревший запрос (после него уже запрошено новое обновление) отбрасывается
+        int generation = ++loadGeneration;
+        repository.loadCells(pageId, cells -> {
+            if (generation != loadGeneration || !isAdded() || getView() == null) return;
+            ComicGraph graph = comicGraph();
+            if (graph != null) graph.setCells(pageId, cells);
+            showCells(cells);
+        }, e -> {
+            if (generation != loadGeneration || !isAdded() || getContext() == null) return;
+            Toast.makeText(getContext(), "Не удалось обновить ячейки", Toast.LENGTH_SHORT).show();
+        });
+    }
 
-        List<Cell> cells = dbHelper.getCellsForPage(pageId);
-        if (cells == null) {
-            Log.e(TAG, "Не удалось обновить ячейки для страницы " + pageId + ": база данных вернула null");
-            Toast.makeText(context, "Не удалось обновить ячейки", Toast.LENGTH_SHORT).show();
+    /**
+     * Обновляет одну ячейку после сохранения ее рисунка. Если на странице уже
+     * показана эта версия содержимого, ничего не читается и не декодируется.
+     */
+    private void refreshCell(long cellId, long contentVersion) {
+        ImageView imageView = cellViews.get(cellId);
+        Cell shown = imageView != null ? (Cell) imageView.getTag() : null;
+        if (shown == null) {
+            refreshCells();
             return;
         }
+        if (shown.getContentVersion() == contentVersion) return;
+        int generation = loadGeneration;
+        repository.loadCell(cellId, cell -> {
+            // Пока ячейка читалась, страницу могли перечитать целиком
+            if (generation != loadGeneration || !isAdded() || getView() == null) return;
+            if (cell == null) {
+                refreshCells();
+                return;
+            }
+            List<Cell> cells = new ArrayList<>(shownCells);
+            for (int i = 0; i < cells.size(); i++) {
+                if (cells.get(i).getId() == cellId) cells.set(i, cell);
+            }
+            ComicGraph graph = comicGraph();
+            if (graph != null) graph.setCells(pageId, cells);
+            showCells(cells);
+        }, e -> {
+            if (!isAdded() || getContext() == null) return;
+            Toast.makeText(getContext(), "Не удалось обновить ячейку", Toast.LENGTH_SHORT).show();
+        });
+    }
 
+    /**
+     * Сверяет виды страницы с новым списком ячеек по id: новые ячейки получают
+     * вид, исчезнувшие теряют его, у остальных меняется только то, что
+     * изменилось, - положение или рисунок. Пока миниатюра нового рисунка
+     * грузится, ячейка закрашена его средним цветом.
+     */
+    private void showCells(List<Cell> cells) {
         if (isGridMode) {
             int gridSize = cells.size() < 17 ? GRID_4X4 : GRID_6X6;
             for (int i = 0; i < cells.size(); i++) {
@@ -435,46 +448,100 @@ public class PageFragment extends Fragment {
             }
         }
 
+        shownCells = cells;
+        Set<Long> shown = new HashSet<>();
+        int added = 0, moved = 0, redrawn = 0;
         for (Cell cell : cells) {
-            ImageView imageView = new ImageView(context);
-            RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(CELL_SIZE, CELL_SIZE);
-            params.leftMargin = (int) cell.getX();
-            params.topMargin = (int) cell.getY();
-            imageView.setLayoutParams(params);
-            imageView.setScaleType(ImageView.ScaleType.FIT_XY);
-            imageView.setBackgroundResource(R.drawable.cell_border);
-
-            String path = cell.getDrawingPath();
-            if (path != null && !path.isEmpty() && new File(path).exists()) {
-                try {
-                    Bitmap bitmap = BitmapFactory.decodeFile(path);
-                    if (bitmap != null) {
-                        bitmap = Bitmap.createScaledBitmap(bitmap, CELL_SIZE, CELL_SIZE, true);
-                        imageView.setImageBitmap(bitmap);
-                    } else {
-                        Log.w(TAG, "Битмап null для ячейки " + cell.getId() + " по пути " + path);
-                        imageView.setImageResource(android.R.color.white);
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Не удалось загрузить рисунок для ячейки " + cell.getId() + ": " + e.getMessage(), e);
-                    imageView.setImageResource(android.R.color.white);
-                }
-            } else {
-                imageView.setImageResource(android.R.color.white);
+            long cellId = cell.getId();
+            shown.add(cellId);
+            ImageView imageView = cellViews.get(cellId);
+            if (imageView == null) {
+                imageView = createCellView();
+                pageLayout.addView(imageView);
+                cellViews.put(cellId, imageView);
+                added++;
             }
+            // Слушатели берут ячейку из тега, так что вид переживает обновления списка
+            imageView.setTag(cell);
+            if (placeCellView(imageView, cell)) moved++;
+            String contentKey = CellBitmapCache.keyOf(cell);
+            if (!contentKey.equals(cellContentKeys.get(cellId))) {
+                cellContentKeys.put(cellId, contentKey);
+                showCellContent(imageView, cell, contentKey);
+                redrawn++;
+            }
+        }
 
-            imageView.setOnClickListener(v -> openDrawingActivity(cell));
-            imageView.setOnLongClickListener(v -> {
-                if (!isGridMode) {
-                    draggedCell = imageView;
-                    imageView.setTag(cell);
-                    return true;
-                }
-                return false;
-            });
-            pageLayout.addView(imageView);
-            cellViews.put(cell.getId(), imageView);
+        Iterator<Map.Entry<Long, ImageView>> iterator = cellViews.entrySet().iterator();
+        int removed = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<Long, ImageView> entry = iterator.next();
+            if (shown.contains(entry.getKey())) continue;
+            pageLayout.removeView(entry.getValue());
+            if (draggedCell == entry.getValue()) draggedCell = null;
+            iterator.remove();
+            cellContentKeys.remove(entry.getKey());
+            Bitmap bitmap = cellBitmaps.remove(entry.getKey());
+            if (bitmap != null) repository.releaseCellThumbnail(bitmap);
+            removed++;
         }
-        Log.d(TAG, "Обновлено " + cells.size() + " ячеек для страницы " + pageId);
+        Log.d(TAG, "Ячейки страницы " + pageId + ": добавлено " + added + ", удалено " + removed
+                + ", перемещено " + moved + ", перерисовано " + redrawn + " из " + cells.size());
+    }
+
+    private ImageView createCellView() {
+        ImageView imageView = new ImageView(getContext());
+        imageView.setLayoutParams(new RelativeLayout.LayoutParams(CELL_SIZE, CELL_SIZE));
+        imageView.setScaleType(ImageView.ScaleType.FIT_XY);
+        imageView.setBackgroundResource(R.drawable.cell_border);
+        imageView.setOnClickListener(v -> openDrawingActivity((Cell) v.getTag()));
+        imageView.setOnLongClickListener(v -> {
+            if (!isGridMode) {
+                draggedCell = (ImageView) v;
+                return true;
+            }
+            return false;
+        });
+        return imageView;
+    }
+
+    // Ставит вид в координаты ячейки; true - он стоял не там. Сдвиг от перетаскивания переносится в отступы
+    private boolean placeCellView(ImageView imageView, Cell cell) {
+        RelativeLayout.LayoutParams params = (RelativeLayout.LayoutParams) imageView.getLayoutParams();
+        int left = (int) cell.getX();
+        int top = (int) cell.getY();
+        if (params.leftMargin == left && params.topMargin == top
+                && imageView.getTranslationX() == 0 && imageView.getTranslationY() == 0) {
+            return false;
+        }
+        params.leftMargin = left;
+        params.topMargin = top;
+        imageView.setTranslationX(0);
+        imageView.setTranslationY(0);
+        imageView.setLayoutParams(params);
+        return true;
+    }
+
+    private void showCellContent(ImageView imageView, Cell cell, String contentKey) {
+        long cellId = cell.getId();
+        Bitmap previous = cellBitmaps.remove(cellId);
+        if (cell.getPlaceholderColor() != 0) {
+            imageView.setImageDrawable(new ColorDrawable(cell.getPlaceholderColor()));
+        } else {
+            imageView.setImageResource(android.R.color.white);
+        }
+        if (previous != null) repository.releaseCellThumbnail(previous);
+        // Миниатюра из общего кэша приходит сразу, иначе после декодирования
+        repository.loadCellThumbnail(cell, bitmap -> {
+            if (bitmap == null) return;
+            // Вид могли убрать или сменить ему рисунок, пока шло декодирование
+            if (cellViews.get(cellId) != imageView || !contentKey.equals(cellContentKeys.get(cellId))) {
+                repository.releaseCellThumbnail(bitmap);
+                return;
+            }
+            imageView.setImageBitmap(bitmap);
+            Bitmap replaced = cellBitmaps.put(cellId, bitmap);
+            if (replaced != null) repository.releaseCellThumbnail(replaced);
+        });
     }
-}
\ No newline at end of file
+}
@@ -2,8 +2,6 @@ package com.example.ad;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.widget.Button;
 import android.widget.EditText;
@@ -29,7 +27,7 @@ public class ProfileActivity extends AppCompatActivity {
         saveButton = findViewById(R.id.saveButton);
         logoutButton = findViewById(R.id.logoutButton);
         backButton = findViewById(R.id.backButton);
-        dbHelper = new DatabaseHelper(this);
+        dbHelper = DatabaseHelper.getInstance(this);
         prefs = getSharedPreferences("ComicSketchPrefs", MODE_PRIVATE);
 
         userId = getIntent().getLongExtra("user_id", -1);
@@ -70,14 +68,11 @@ public class ProfileActivity extends AppCompatActivity {
     }
 
     private void loadUserProfile() {
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT username, email, password FROM users WHERE id = ?", new String[]{String.valueOf(userId)});
-        if (cursor.moveToFirst()) {
-            usernameEditText.setText(cursor.getString(0));
-            emailEditText.setText(cursor.getString(1));
-            passwordEditText.setText(cursor.getString(2));
+        User user = dbHelper.getUser(userId);
+        if (user != null) {
+            usernameEditText.setText(user.getUsername());
+            emailEditText.setText(user.getEmail());
+            passwordEditText.setText(user.getPassword());
         }
-        cursor.close();
-        db.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+package com.example.ad;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Статистика запросов DatabaseHelper по именам операций: число вызовов (в том
+ * числе из главного потока), число строк и гистограмма времени с корзинами по
+ * степеням двойки микросекунд. Вызовы дольше порога попадают в журнал
+ * медленных запросов, где хранятся последние SLOW_LOG_SIZE записей.
+ * Потокобезопасна: запросы идут из пула чтения и потока записи.
+ */
+public class QueryStats {
+    public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 16; // один кадр
+    static final int BUCKETS = 24; // корзина i: до 2^i мкс, последняя - все остальное
+    static final int SLOW_LOG_SIZE = 100;
+
+    private static final class Entry {
+        long calls;
+        long mainThreadCalls;
+        long rows;
+        long totalNanos;
+        long maxNanos;
+        final long[] histogram = new long[BUCKETS];
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private final ArrayDeque<String> slowLog = new ArrayDeque<>();
+    private volatile long slowThresholdNanos = DEFAULT_SLOW_THRESHOLD_MILLIS * 1_000_000L;
+
+    public void setSlowThresholdMillis(long millis) {
+        slowThresholdNanos = millis * 1_000_000L;
+    }
+
+    public long getSlowThresholdMillis() {
+        return slowThresholdNanos / 1_000_000L;
+    }
+
+    /** Учитывает один вызов; true, если он медленнее порога. */
+    public boolean record(String statement, long nanos, int rows, boolean mainThread) {
+        boolean slow = nanos >= slowThresholdNanos;
+        synchronized (this) {
+            Entry entry = entries.get(statement);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(statement, entry);
+            }
+            entry.calls++;
+            if (mainThread) entry.mainThreadCalls++;
+            if (rows > 0) entry.rows += rows;
+            entry.totalNanos += nanos;
+            entry.maxNanos = Math.max(entry.maxNanos, nanos);
+            entry.histogram[bucketOf(nanos)]++;
+            if (slow) {
+                if (slowLog.size() == SLOW_LOG_SIZE) slowLog.removeFirst();
+                slowLog.addLast(String.format(Locale.ROOT, "%tF %<tT %s: %.1f мс, строк %d%s",
+                        System.currentTimeMillis(), statement, nanos / 1e6, rows,
+                        mainThread ? ", главный поток" : ""));
+            }
+        }
+        return slow;
+    }
+
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && micros > (1L << bucket)) bucket++;
+        return bucket;
+    }
+
+    public synchronized long getCalls(String statement) {
+        Entry entry = entries.get(statement);
+        return entry != null ? entry.calls : 0;
+    }
+
+    public synchronized long getMainThreadCalls(String statement) {
+        Entry entry = entries.get(statement);
+        return entry != null ? entry.mainThreadCalls : 0;
+    }
+
+    public synchronized long getRows(String statement) {
+        Entry entry = entries.get(statement);
+        return entry != null ? entry.rows : 0;
+    }
+
+    /** Верхняя граница корзины, в которую попадает доля fraction вызовов, в микросекундах. */
+    public synchronized long getPercentileMicros(String statement, double fraction) {
+        Entry entry = entries.get(statement);
+        if (entry == null || entry.calls == 0) return 0;
+        return percentileMicros(entry, fraction);
+    }
+
+    private static long percentileMicros(Entry entry, double fraction) {
+        long target = (long) Math.ceil(entry.calls * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += entry.histogram[i];
+            if (seen >= target && seen > 0) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public synchronized List<String> getSlowQueries() {
+        return new ArrayList<>(slowLog);
+    }
+
+    public synchronized void reset() {
+        entries.clear();
+        slowLog.clear();
+    }
+
+    /** Текстовый отчет: сводка по операциям, от самой затратной, и журнал медленных вызовов. */
+    public synchronized String dump() {
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue().totalNanos, a.getValue().totalNanos));
+        StringBuilder out = new StringBuilder();
+        out.append("операция: вызовов (из главного потока), строк, всего мс, среднее/p50/p95/max мкс\n");
+        for (Map.Entry<String, Entry> item : sorted) {
+            Entry entry = item.getValue();
+            out.append(String.format(Locale.ROOT, "%s: %d (%d), %d, %.1f, %d/%d/%d/%d\n", item.getKey(),
+                    entry.calls, entry.mainThreadCalls, entry.rows, entry.totalNanos / 1e6,
+                    entry.totalNanos / entry.calls / 1000, percentileMicros(entry, 0.5),
+                    percentileMicros(entry, 0.95), entry.maxNanos / 1000));
+            out.append("  гистограмма:");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (entry.histogram[i] > 0) out.append(" <=").append(1L << i).append("мкс:").append(entry.histogram[i]);
+            }
+            out.append('\n');
+        }
+        out.append("медленные вызовы (порог ").append(getSlowThresholdMillis()).append(" мс):\n");
+        for (String line : slowLog) {
+            out.append("  ").append(line).append('\n');
+        }
+        return out.toString();
+    }
+}
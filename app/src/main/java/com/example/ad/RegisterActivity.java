@@ -23,7 +23,7 @@ public class RegisterActivity extends AppCompatActivity {
         passwordEditText = findViewById(R.id.passwordEditText);
         registerButton = findViewById(R.id.registerButton);
         loginButton = findViewById(R.id.loginButton);
-        dbHelper = new DatabaseHelper(this);
+        dbHelper = DatabaseHelper.getInstance(this);
 
         registerButton.setOnClickListener(v -> {
             String username = usernameEditText.getText().toString().trim();
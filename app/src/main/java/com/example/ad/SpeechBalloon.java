@@ -0,0 +1,135 @@
+package com.example.ad;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+import java.util.Random;
+
+/**
+ * Реплика ячейки: текст с "облаком" из случайных штрихов вокруг него.
+ * Хранится объектом поверх слоев рисунка, а не пикселями, поэтому ее можно
+ * править и двигать. Раскладка текста и штрихи облака считаются один раз
+ * и переиспользуются в каждом кадре, пока не изменится текст.
+ * (x, y) - базовая линия первой строки, как у прежнего drawText.
+ */
+public class SpeechBalloon {
+    private static final float PADDING = 20f;
+    private static final int LINE_COUNT = 20;
+    private static final float MAX_LINE_LENGTH = 30f;
+    private static final float CLOUD_STROKE_WIDTH = 2f;
+    private static final int MAX_LAYOUT_WIDTH = 600;
+
+    private final long seed;
+    private String text;
+    private float x, y;
+    private final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint cloudPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    // Кэш раскладки в координатах относительно (x, y)
+    private StaticLayout layout;
+    private float baseline;
+    private final float[] cloudLines = new float[LINE_COUNT * 4];
+    private final RectF localBounds = new RectF();
+    private final RectF bounds = new RectF();
+
+    public SpeechBalloon(long seed, String text, float x, float y, int color, float textSize) {
+        this.seed = seed;
+        this.text = text;
+        this.x = x;
+        this.y = y;
+        textPaint.setColor(color);
+        textPaint.setTextSize(textSize);
+        cloudPaint.setColor(color);
+        cloudPaint.setStyle(Paint.Style.STROKE);
+        cloudPaint.setStrokeWidth(CLOUD_STROKE_WIDTH);
+    }
+
+    public long getSeed() { return seed; }
+    public String getText() { return text; }
+    public float getX() { return x; }
+    public float getY() { return y; }
+
+    /** Меняет текст; раскладка пересчитывается при следующем обращении. */
+    public void setText(String text) {
+        if (text.equals(this.text)) return;
+        this.text = text;
+        layout = null;
+    }
+
+    public void setPosition(float x, float y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    /** Границы вместе с облаком, в координатах холста. */
+    public RectF getBounds() {
+        ensureLayout();
+        bounds.set(localBounds);
+        bounds.offset(x, y);
+        return bounds;
+    }
+
+    public boolean contains(float px, float py) {
+        return getBounds().contains(px, py);
+    }
+
+    public void draw(Canvas canvas) {
+        ensureLayout();
+        canvas.save();
+        canvas.translate(x, y);
+        canvas.drawLines(cloudLines, cloudPaint);
+        canvas.translate(0, -baseline);
+        layout.draw(canvas);
+        canvas.restore();
+    }
+
+    private void ensureLayout() {
+        if (layout != null) return;
+        int width = (int) Math.ceil(Math.min(Layout.getDesiredWidth(text, textPaint), MAX_LAYOUT_WIDTH));
+        layout = StaticLayout.Builder.obtain(text, 0, text.length(), textPaint, Math.max(1, width))
+                .setIncludePad(false)
+                .build();
+        baseline = layout.getLineBaseline(0);
+
+        float left = -PADDING;
+        float top = -baseline - PADDING;
+        float right = layout.getWidth() + PADDING;
+        float bottom = layout.getHeight() - baseline + PADDING;
+
+        // Облако воспроизводимо: штрихи зависят только от seed и размеров текста
+        Random random = new Random(seed);
+        for (int i = 0; i < LINE_COUNT; i++) {
+            float startX, startY;
+            switch (random.nextInt(4)) {
+                case 0: // Top
+                    startX = left + random.nextFloat() * (right - left);
+                    startY = top;
+                    break;
+                case 1: // Right
+                    startX = right;
+                    startY = top + random.nextFloat() * (bottom - top);
+                    break;
+                case 2: // Bottom
+                    startX = left + random.nextFloat() * (right - left);
+                    startY = bottom;
+                    break;
+                default: // Left
+                    startX = left;
+                    startY = top + random.nextFloat() * (bottom - top);
+                    break;
+            }
+            float angle = random.nextFloat() * 2 * (float) Math.PI;
+            float length = random.nextFloat() * MAX_LINE_LENGTH;
+            cloudLines[i * 4] = startX;
+            cloudLines[i * 4 + 1] = startY;
+            cloudLines[i * 4 + 2] = startX + (float) Math.cos(angle) * length;
+            cloudLines[i * 4 + 3] = startY + (float) Math.sin(angle) * length;
+        }
+        float reach = MAX_LINE_LENGTH + CLOUD_STROKE_WIDTH;
+        localBounds.set(left - reach, top - reach, right + reach, bottom + reach);
+    }
+}
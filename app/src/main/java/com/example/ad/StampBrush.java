@@ -0,0 +1,86 @@
+package com.example.ad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Штамповая кисть: отпечатки BrushStroke рисуются заранее подготовленными
+ * круглыми кончиками (ALPHA_8, окрашиваются цветом кисти). Кончики лежат
+ * набором размеров через степень двойки, отпечаток берет ближайший не меньший
+ * и уменьшает его с фильтрацией. Рисование идет без Path и без выделений.
+ */
+public class StampBrush {
+    private static final int MIN_TIP_SIZE = 4;
+    private static final int MAX_TIP_SIZE = 128;
+
+    private final BrushStroke stroke = new BrushStroke();
+    private final Bitmap[] tips;
+    private final Paint stampPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+    private final RectF stampRect = new RectF();
+    // Ссылка на метод создается один раз, а не на каждое событие
+    private final TiledCanvas.Painter stampPainter = this::drawStamps;
+
+    public StampBrush() {
+        int count = 0;
+        for (int size = MIN_TIP_SIZE; size <= MAX_TIP_SIZE; size *= 2) count++;
+        tips = new Bitmap[count];
+        Paint tipPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        for (int i = 0, size = MIN_TIP_SIZE; i < count; i++, size *= 2) {
+            tips[i] = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+            new Canvas(tips[i]).drawCircle(size / 2f, size / 2f, size / 2f, tipPaint);
+        }
+    }
+
+    public BrushStroke getStroke() { return stroke; }
+
+    public void setColor(int color) {
+        stampPaint.setColor(color);
+    }
+
+    public void setSize(float size) {
+        stroke.setSize(size);
+    }
+
+    /**
+     * Рисует накопленные отпечатки в холст, предварительно сохранив его плитки
+     * в истории (history может быть null). Границы нарисованного добавляются в dirty.
+     * Возвращает false, если рисовать было нечего.
+     */
+    public boolean flush(TiledCanvas target, TileHistory history, RectF dirty) {
+        if (stroke.getStampCount() == 0) return false;
+        float left = stroke.getDirtyLeft() - 1;
+        float top = stroke.getDirtyTop() - 1;
+        float right = stroke.getDirtyRight() + 1;
+        float bottom = stroke.getDirtyBottom() + 1;
+        if (history != null) {
+            history.capture(target, (int) Math.floor(left), (int) Math.floor(top),
+                    (int) Math.ceil(right), (int) Math.ceil(bottom));
+        }
+        target.draw(left, top, right, bottom, stampPainter);
+        stroke.clearStamps();
+        dirty.union(left, top, right, bottom);
+        return true;
+    }
+
+    private void drawStamps(Canvas canvas) {
+        float[] stamps = stroke.getStamps();
+        int count = stroke.getStampCount() * 3;
+        for (int i = 0; i < count; i += 3) {
+            float radius = stamps[i + 2] / 2;
+            stampRect.set(stamps[i] - radius, stamps[i + 1] - radius, stamps[i] + radius, stamps[i + 1] + radius);
+            canvas.drawBitmap(tipFor(stamps[i + 2]), null, stampRect, stampPaint);
+        }
+    }
+
+    private Bitmap tipFor(float diameter) {
+        int index = 0;
+        int size = MIN_TIP_SIZE;
+        while (size < diameter && index < tips.length - 1) {
+            size *= 2;
+            index++;
+        }
+        return tips[index];
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.ad;
+
+import android.graphics.Rect;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * История undo/redo, хранящая только плитки холста, измененные операцией.
+ * Перед изменением области вызывается capture(): плитки, еще не сохраненные
+ * в текущей операции, копируются в состоянии "до". Отмена меняет местами
+ * сохраненные пиксели и текущие, поэтому каждая запись занимает одну копию
+ * затронутых плиток и для undo, и для redo. Плитка, лежащая в еще не выделенной
+ * области TiledCanvas, запоминается как пустая и не хранит пикселей.
+ * Запись помнит свой холст, поэтому одна история обслуживает все слои рисунка.
+ * Операции без пикселей (например, правка реплики) хранятся как Action.
+ */
+public class TileHistory {
+    public static final int TILE_SIZE = 64;
+    public static final long DEFAULT_BUDGET_BYTES = 8L * 1024 * 1024;
+
+    private final ArrayDeque<Entry> undoStack = new ArrayDeque<>();
+    private final ArrayDeque<Entry> redoStack = new ArrayDeque<>();
+    private long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private long usedBytes;
+    private boolean compressed = true;
+
+    private Entry pending;
+    private boolean[] capturedTiles = new boolean[0];
+    private int tilesX, tilesY;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] packBuffer = new byte[0];
+    private byte[] deflateBuffer = new byte[0];
+    private int[] swapBuffer = new int[TILE_SIZE * TILE_SIZE];
+
+    /** Обратимая операция, которая не меняет пиксели холста. */
+    public interface Action {
+        void undo();
+        void redo();
+    }
+
+    public interface Listener {
+        /** Пиксели холста в границах bounds восстановлены из истории. */
+        void onCanvasRestored(TiledCanvas canvas, Rect bounds);
+    }
+
+    private static final long ACTION_SIZE_BYTES = 64;
+
+    private Listener listener;
+    private final Rect restoredBounds = new Rect();
+
+    private static class Tile {
+        final int x, y, width, height;
+        int[] pixels;   // без сжатия
+        byte[] packed;  // со сжатием
+        boolean blank;  // область была пустой (фон без выделенной памяти)
+
+        Tile(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        long sizeBytes() {
+            if (blank) return 0;
+            return packed != null ? packed.length : (long) pixels.length * 4;
+        }
+    }
+
+    private static class Entry {
+        final TiledCanvas canvas;
+        final Action action;
+        final List<Tile> tiles = new ArrayList<>();
+        long sizeBytes;
+
+        Entry(TiledCanvas canvas, Action action) {
+            this.canvas = canvas;
+            this.action = action;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = Math.max(0, budgetBytes);
+        trimToBudget();
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public void beginOperation(TiledCanvas bitmap) {
+        // Незавершенная операция (например, жест ушел за край холста) фиксируется как есть
+        if (pending != null) commitOperation();
+        tilesX = (bitmap.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (bitmap.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        if (capturedTiles.length < tilesX * tilesY) {
+            capturedTiles = new boolean[tilesX * tilesY];
+        } else {
+            Arrays.fill(capturedTiles, false);
+        }
+        pending = new Entry(bitmap, null);
+    }
+
+    /** Сохраняет состояние плиток, пересекающих прямоугольник, до их изменения. */
+    public void capture(TiledCanvas bitmap, int left, int top, int right, int bottom) {
+        if (pending == null) return;
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(bitmap.getWidth() - 1, right);
+        bottom = Math.min(bitmap.getHeight() - 1, bottom);
+        if (left > right || top > bottom) return;
+
+        for (int ty = top / TILE_SIZE; ty <= bottom / TILE_SIZE; ty++) {
+            for (int tx = left / TILE_SIZE; tx <= right / TILE_SIZE; tx++) {
+                int index = ty * tilesX + tx;
+                if (capturedTiles[index]) continue;
+                capturedTiles[index] = true;
+
+                int x = tx * TILE_SIZE;
+                int y = ty * TILE_SIZE;
+                Tile tile = new Tile(x, y, Math.min(TILE_SIZE, bitmap.getWidth() - x),
+                        Math.min(TILE_SIZE, bitmap.getHeight() - y));
+                if (bitmap.isTileAllocated(x, y)) {
+                    int[] pixels = new int[tile.width * tile.height];
+                    bitmap.getPixels(pixels, 0, tile.width, x, y, tile.width, tile.height);
+                    store(tile, pixels);
+                } else {
+                    tile.blank = true;
+                }
+                pending.tiles.add(tile);
+                pending.sizeBytes += tile.sizeBytes();
+            }
+        }
+    }
+
+    public void captureAll(TiledCanvas bitmap) {
+        capture(bitmap, 0, 0, bitmap.getWidth() - 1, bitmap.getHeight() - 1);
+    }
+
+    /** Завершает операцию; возвращает true, если она попала в историю. */
+    public boolean commitOperation() {
+        Entry entry = pending;
+        pending = null;
+        if (entry == null || entry.tiles.isEmpty()) return false;
+        clearRedo();
+        undoStack.push(entry);
+        usedBytes += entry.sizeBytes;
+        trimToBudget();
+        return true;
+    }
+
+    /** Добавляет уже выполненную операцию без пикселей как отдельный шаг истории. */
+    public void pushAction(Action action) {
+        if (pending != null) commitOperation();
+        clearRedo();
+        Entry entry = new Entry(null, action);
+        entry.sizeBytes = ACTION_SIZE_BYTES;
+        undoStack.push(entry);
+        usedBytes += entry.sizeBytes;
+        trimToBudget();
+    }
+
+    /** Откатывает незавершенную операцию на холсте, не оставляя следа в истории. */
+    public void cancelOperation() {
+        Entry entry = pending;
+        pending = null;
+        if (entry == null) return;
+        // Незавершенная запись еще не учтена в usedBytes, а swap() ее учитывает
+        usedBytes += entry.sizeBytes;
+        restore(entry);
+        usedBytes -= entry.sizeBytes;
+    }
+
+    public boolean undo() {
+        if (undoStack.isEmpty()) return false;
+        Entry entry = undoStack.pop();
+        if (entry.action != null) {
+            entry.action.undo();
+        } else {
+            restore(entry);
+        }
+        redoStack.push(entry);
+        trimToBudget();
+        return true;
+    }
+
+    public boolean redo() {
+        if (redoStack.isEmpty()) return false;
+        Entry entry = redoStack.pop();
+        if (entry.action != null) {
+            entry.action.redo();
+        } else {
+            restore(entry);
+        }
+        undoStack.push(entry);
+        trimToBudget();
+        return true;
+    }
+
+    private void restore(Entry entry) {
+        swap(entry.canvas, entry);
+        if (listener == null) return;
+        restoredBounds.setEmpty();
+        for (Tile tile : entry.tiles) {
+            restoredBounds.union(tile.x, tile.y, tile.x + tile.width, tile.y + tile.height);
+        }
+        listener.onCanvasRestored(entry.canvas, restoredBounds);
+    }
+
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        pending = null;
+        usedBytes = 0;
+    }
+
+    // Меняет местами пиксели записи и текущее содержимое холста
+    private void swap(TiledCanvas bitmap, Entry entry) {
+        usedBytes -= entry.sizeBytes;
+        entry.sizeBytes = 0;
+        for (Tile tile : entry.tiles) {
+            int count = tile.width * tile.height;
+            boolean currentBlank = !bitmap.isTileAllocated(tile.x, tile.y);
+            int[] saved = tile.blank ? null : load(tile);
+            int[] current = null;
+            if (!currentBlank) {
+                current = saved != null ? saved : new int[count];
+                if (swapBuffer.length < count) swapBuffer = new int[count];
+                bitmap.getPixels(swapBuffer, 0, tile.width, tile.x, tile.y, tile.width, tile.height);
+            }
+            if (saved != null) {
+                bitmap.setPixels(saved, 0, tile.width, tile.x, tile.y, tile.width, tile.height);
+            } else {
+                bitmap.clearRect(tile.x, tile.y, tile.width, tile.height);
+            }
+            if (current != null) {
+                // saved больше не нужен холсту, переиспользуем его под текущие пиксели
+                System.arraycopy(swapBuffer, 0, current, 0, count);
+                tile.blank = false;
+                store(tile, current);
+            } else {
+                tile.blank = true;
+                tile.pixels = null;
+                tile.packed = null;
+            }
+            entry.sizeBytes += tile.sizeBytes();
+        }
+        usedBytes += entry.sizeBytes;
+    }
+
+    private void clearRedo() {
+        for (Entry entry : redoStack) usedBytes -= entry.sizeBytes;
+        redoStack.clear();
+    }
+
+    // Сначала вытесняются самые старые шаги undo, затем самые дальние redo.
+    // Последний шаг undo сохраняется, даже если он один больше бюджета.
+    private void trimToBudget() {
+        while (usedBytes > budgetBytes && undoStack.size() > 1) {
+            usedBytes -= undoStack.removeLast().sizeBytes;
+        }
+        while (usedBytes > budgetBytes && !redoStack.isEmpty()) {
+            usedBytes -= redoStack.removeLast().sizeBytes;
+        }
+    }
+
+    private void store(Tile tile, int[] pixels) {
+        if (!compressed) {
+            tile.pixels = pixels;
+            tile.packed = null;
+            return;
+        }
+        int byteCount = pixels.length * 4;
+        if (packBuffer.length < byteCount) packBuffer = new byte[byteCount];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+            int p = pixels[i];
+            packBuffer[j] = (byte) (p >>> 24);
+            packBuffer[j + 1] = (byte) (p >>> 16);
+            packBuffer[j + 2] = (byte) (p >>> 8);
+            packBuffer[j + 3] = (byte) p;
+        }
+        deflater.reset();
+        deflater.setInput(packBuffer, 0, byteCount);
+        deflater.finish();
+        if (deflateBuffer.length < byteCount + 64) deflateBuffer = new byte[byteCount + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflateBuffer.length) deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+            length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+        }
+        tile.packed = Arrays.copyOf(deflateBuffer, length);
+        tile.pixels = null;
+    }
+
+    private int[] load(Tile tile) {
+        if (tile.packed == null) return tile.pixels;
+        int count = tile.width * tile.height;
+        int byteCount = count * 4;
+        if (packBuffer.length < byteCount) packBuffer = new byte[byteCount];
+        inflater.reset();
+        inflater.setInput(tile.packed);
+        try {
+            int read = 0;
+            while (read < byteCount && !inflater.finished()) {
+                read += inflater.inflate(packBuffer, read, byteCount - read);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Поврежденная плитка истории", e);
+        }
+        int[] pixels = new int[count];
+        for (int i = 0, j = 0; i < count; i++, j += 4) {
+            pixels[i] = ((packBuffer[j] & 0xFF) << 24) | ((packBuffer[j + 1] & 0xFF) << 16)
+                    | ((packBuffer[j + 2] & 0xFF) << 8) | (packBuffer[j + 3] & 0xFF);
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,389 @@
+package com.example.ad;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Холст из плиток 256x256, которые выделяются только при первом рисовании.
+ * Невыделенная плитка считается залитой фоновым цветом и не занимает памяти,
+ * поэтому большие холсты (например, 2400x3200) почти ничего не стоят, пока пусты.
+ * Для показа в уменьшенном масштабе у плиток есть копии в 1/2 и 1/4 размера,
+ * которые пересчитываются лениво после изменения плитки.
+ */
+public class TiledCanvas {
+    public static final int TILE_SIZE = 256;
+    public static final int MIP_LEVELS = 2;
+    private static final int MAGIC = 0x544D544C; // "TMTL"
+
+    private final int width, height;
+    private final int tilesX, tilesY;
+    private final int background;
+    private final Bitmap[] tiles;
+    private final Canvas[] tileCanvases;
+    private final Bitmap[][] mips;    // [уровень - 1][плитка]
+    private final boolean[] mipStale;
+    private final Paint mipPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Canvas mipCanvas = new Canvas();
+    private final Rect mipRect = new Rect();
+    private final Rect dstRect = new Rect();
+    private int[] rowBuffer = new int[TILE_SIZE];
+
+    public interface Painter {
+        void paint(Canvas canvas);
+    }
+
+    public TiledCanvas(int width, int height, int background) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Bitmap[tilesX * tilesY];
+        tileCanvases = new Canvas[tilesX * tilesY];
+        mips = new Bitmap[MIP_LEVELS][tilesX * tilesY];
+        mipStale = new boolean[tilesX * tilesY];
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getBackground() { return background; }
+    public int getTilesX() { return tilesX; }
+    public int getTileCount() { return tiles.length; }
+
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (Bitmap tile : tiles) if (tile != null) count++;
+        return count;
+    }
+
+    public boolean isTileAllocated(int x, int y) {
+        return tiles[(y / TILE_SIZE) * tilesX + x / TILE_SIZE] != null;
+    }
+
+    // Доступ к плитке для записи: выделяет ее при необходимости и помечает копии устаревшими
+    private Canvas tileCanvas(int tx, int ty) {
+        int index = ty * tilesX + tx;
+        if (tiles[index] == null) {
+            Bitmap tile = Bitmap.createBitmap(tileWidth(tx), tileHeight(ty), Bitmap.Config.ARGB_8888);
+            tile.eraseColor(background);
+            tiles[index] = tile;
+            tileCanvases[index] = new Canvas(tile);
+        }
+        mipStale[index] = true;
+        return tileCanvases[index];
+    }
+
+    // Уменьшенная копия плитки; уровень строится из предыдущего, а не из оригинала
+    private Bitmap mip(int index, int level) {
+        if (level == 0) return tiles[index];
+        if (mipStale[index]) {
+            for (int l = 1; l <= MIP_LEVELS; l++) {
+                Bitmap source = l == 1 ? tiles[index] : mips[l - 2][index];
+                Bitmap target = mips[l - 1][index];
+                if (target == null) {
+                    int tx = index % tilesX;
+                    int ty = index / tilesX;
+                    target = Bitmap.createBitmap(Math.max(1, tileWidth(tx) >> l), Math.max(1, tileHeight(ty) >> l),
+                            Bitmap.Config.ARGB_8888);
+                    mips[l - 1][index] = target;
+                }
+                target.eraseColor(0);
+                mipRect.set(0, 0, target.getWidth(), target.getHeight());
+                mipCanvas.setBitmap(target);
+                mipCanvas.drawBitmap(source, null, mipRect, mipPaint);
+            }
+            mipCanvas.setBitmap(null);
+            mipStale[index] = false;
+        }
+        return mips[level - 1][index];
+    }
+
+    private void releaseTile(int index) {
+        if (tiles[index] != null) tiles[index].recycle();
+        tiles[index] = null;
+        tileCanvases[index] = null;
+        releaseMips(index);
+    }
+
+    private void releaseMips(int index) {
+        for (Bitmap[] level : mips) {
+            if (level[index] != null) level[index].recycle();
+            level[index] = null;
+        }
+        mipStale[index] = false;
+    }
+
+    private int tileWidth(int tx) {
+        return Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+    }
+
+    private int tileHeight(int ty) {
+        return Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+    }
+
+    /** Рисует на всех плитках, пересекающих прямоугольник (в координатах холста). */
+    public void draw(float left, float top, float right, float bottom, Painter painter) {
+        int fromX = Math.max(0, (int) Math.floor(left) / TILE_SIZE);
+        int fromY = Math.max(0, (int) Math.floor(top) / TILE_SIZE);
+        int toX = Math.min(tilesX - 1, (int) Math.ceil(right) / TILE_SIZE);
+        int toY = Math.min(tilesY - 1, (int) Math.ceil(bottom) / TILE_SIZE);
+        for (int ty = fromY; ty <= toY; ty++) {
+            for (int tx = fromX; tx <= toX; tx++) {
+                Canvas canvas = tileCanvas(tx, ty);
+                canvas.save();
+                canvas.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+                painter.paint(canvas);
+                canvas.restore();
+            }
+        }
+    }
+
+    // Отдельный метод для штрихов, чтобы горячий путь обходился без лямбды
+    public void drawPath(Path path, Paint paint, float left, float top, float right, float bottom) {
+        int fromX = Math.max(0, (int) Math.floor(left) / TILE_SIZE);
+        int fromY = Math.max(0, (int) Math.floor(top) / TILE_SIZE);
+        int toX = Math.min(tilesX - 1, (int) Math.ceil(right) / TILE_SIZE);
+        int toY = Math.min(tilesY - 1, (int) Math.ceil(bottom) / TILE_SIZE);
+        for (int ty = fromY; ty <= toY; ty++) {
+            for (int tx = fromX; tx <= toX; tx++) {
+                Canvas canvas = tileCanvas(tx, ty);
+                canvas.save();
+                canvas.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+                canvas.drawPath(path, paint);
+                canvas.restore();
+            }
+        }
+    }
+
+    public void drawAll(Painter painter) {
+        draw(0, 0, width - 1, height - 1, painter);
+    }
+
+    /** Читает прямоугольник пикселей; пустые плитки отдаются фоновым цветом. */
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+        for (int ty = y / TILE_SIZE; ty <= (y + h - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + w - 1) / TILE_SIZE; tx++) {
+                int left = Math.max(x, tx * TILE_SIZE);
+                int top = Math.max(y, ty * TILE_SIZE);
+                int right = Math.min(x + w, tx * TILE_SIZE + tileWidth(tx));
+                int bottom = Math.min(y + h, ty * TILE_SIZE + tileHeight(ty));
+                int start = offset + (top - y) * stride + (left - x);
+                Bitmap tile = tiles[ty * tilesX + tx];
+                if (tile == null) {
+                    for (int row = 0; row < bottom - top; row++) {
+                        Arrays.fill(pixels, start + row * stride, start + row * stride + right - left, background);
+                    }
+                } else {
+                    tile.getPixels(pixels, start, stride, left - tx * TILE_SIZE, top - ty * TILE_SIZE,
+                            right - left, bottom - top);
+                }
+            }
+        }
+    }
+
+    /** Записывает прямоугольник пикселей; фон в пустую плитку не пишется. */
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+        for (int ty = y / TILE_SIZE; ty <= (y + h - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + w - 1) / TILE_SIZE; tx++) {
+                int left = Math.max(x, tx * TILE_SIZE);
+                int top = Math.max(y, ty * TILE_SIZE);
+                int right = Math.min(x + w, tx * TILE_SIZE + tileWidth(tx));
+                int bottom = Math.min(y + h, ty * TILE_SIZE + tileHeight(ty));
+                int start = offset + (top - y) * stride + (left - x);
+                if (tiles[ty * tilesX + tx] == null
+                        && isBackground(pixels, start, stride, right - left, bottom - top)) {
+                    continue;
+                }
+                tileCanvas(tx, ty);
+                tiles[ty * tilesX + tx].setPixels(pixels, start, stride, left - tx * TILE_SIZE,
+                        top - ty * TILE_SIZE, right - left, bottom - top);
+            }
+        }
+    }
+
+    private boolean isBackground(int[] pixels, int start, int stride, int w, int h) {
+        for (int row = 0; row < h; row++) {
+            int rowStart = start + row * stride;
+            for (int i = rowStart; i < rowStart + w; i++) {
+                if (pixels[i] != background) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Заливает прямоугольник фоном, не выделяя пустые плитки. */
+    public void clearRect(int x, int y, int w, int h) {
+        if (rowBuffer.length < w) rowBuffer = new int[w];
+        Arrays.fill(rowBuffer, 0, w, background);
+        for (int row = y; row < y + h; row++) {
+            setPixels(rowBuffer, 0, w, x, row, w, 1);
+        }
+    }
+
+    /** Освобождает все плитки: холст снова пуст. */
+    public void clear() {
+        for (int i = 0; i < tiles.length; i++) {
+            releaseTile(i);
+        }
+    }
+
+    /** Рисует холст на canvas в координатах холста; пустые плитки закрашиваются фоном. */
+    public void drawTo(Canvas canvas, Paint paint, Paint backgroundPaint) {
+        drawTo(canvas, paint, backgroundPaint, 0, 0, width, height, 0);
+    }
+
+    /**
+     * Рисует только плитки, пересекающие видимый прямоугольник (в координатах холста).
+     * При level > 0 вместо плитки растягивается ее уменьшенная копия.
+     */
+    public void drawTo(Canvas canvas, Paint paint, Paint backgroundPaint,
+                       int left, int top, int right, int bottom, int level) {
+        level = Math.max(0, Math.min(MIP_LEVELS, level));
+        int fromX = Math.max(0, left / TILE_SIZE);
+        int fromY = Math.max(0, top / TILE_SIZE);
+        int toX = Math.min(tilesX - 1, (right - 1) / TILE_SIZE);
+        int toY = Math.min(tilesY - 1, (bottom - 1) / TILE_SIZE);
+        for (int ty = fromY; ty <= toY; ty++) {
+            for (int tx = fromX; tx <= toX; tx++) {
+                int index = ty * tilesX + tx;
+                int x = tx * TILE_SIZE;
+                int y = ty * TILE_SIZE;
+                if (tiles[index] == null) {
+                    if (backgroundPaint != null) {
+                        canvas.drawRect(x, y, x + tileWidth(tx), y + tileHeight(ty), backgroundPaint);
+                    }
+                } else if (level == 0) {
+                    canvas.drawBitmap(tiles[index], x, y, paint);
+                } else {
+                    dstRect.set(x, y, x + tileWidth(tx), y + tileHeight(ty));
+                    canvas.drawBitmap(mip(index, level), null, dstRect, paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Собирает плитку index из тех же плиток слоев sources[from..to) поверх фона.
+     * Если ни один слой там ничего не содержит, плитка освобождается.
+     */
+    public void compositeTile(int index, TiledCanvas[] sources, int from, int to) {
+        boolean empty = true;
+        for (int i = from; i < to && empty; i++) {
+            empty = sources[i].tiles[index] == null;
+        }
+        if (empty) {
+            releaseTile(index);
+            return;
+        }
+        Canvas canvas = tileCanvas(index % tilesX, index / tilesX);
+        tiles[index].eraseColor(background);
+        for (int i = from; i < to; i++) {
+            Bitmap source = sources[i].tiles[index];
+            if (source != null) canvas.drawBitmap(source, 0, 0, null);
+        }
+    }
+
+    /** Сводит слои одинакового размера поверх фона в массив пикселей всего холста. */
+    public static void flatten(TiledCanvas[] layers, int background, int[] pixels) {
+        TiledCanvas first = layers[0];
+        Bitmap scratch = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(scratch);
+        for (int index = 0; index < first.tiles.length; index++) {
+            int tx = index % first.tilesX;
+            int ty = index / first.tilesX;
+            int x = tx * TILE_SIZE;
+            int y = ty * TILE_SIZE;
+            int w = first.tileWidth(tx);
+            int h = first.tileHeight(ty);
+            boolean empty = true;
+            for (TiledCanvas layer : layers) {
+                if (layer.tiles[index] == null) continue;
+                if (empty) scratch.eraseColor(background);
+                empty = false;
+                canvas.drawBitmap(layer.tiles[index], 0, 0, null);
+            }
+            if (empty) {
+                for (int row = y; row < y + h; row++) {
+                    Arrays.fill(pixels, row * first.width + x, row * first.width + x + w, background);
+                }
+            } else {
+                scratch.getPixels(pixels, y * first.width + x, first.width, 0, 0, w, h);
+            }
+        }
+        scratch.recycle();
+    }
+
+    /** Копия холста в уменьшенном виде, например для превью ячейки. */
+    public Bitmap renderScaled(int maxSide) {
+        float scale = Math.min(1f, (float) maxSide / Math.max(width, height));
+        int outWidth = Math.max(1, Math.round(width * scale));
+        int outHeight = Math.max(1, Math.round(height * scale));
+        Bitmap result = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        result.eraseColor(background);
+        Canvas canvas = new Canvas(result);
+        canvas.scale(scale, scale);
+        drawTo(canvas, new Paint(Paint.FILTER_BITMAP_FLAG), null);
+        return result;
+    }
+
+    // Формат файла: заголовок и только выделенные плитки, каждая сжата в PNG
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(background);
+        out.writeInt(getAllocatedTileCount());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] == null) continue;
+            buffer.reset();
+            if (!tiles[i].compress(Bitmap.CompressFormat.PNG, 100, buffer)) {
+                throw new IOException("Не удалось сжать плитку " + i);
+            }
+            out.writeShort(i % tilesX);
+            out.writeShort(i / tilesX);
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /** Читает плитки в этот холст; false, если файл записан для холста другого размера. */
+    public boolean readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) throw new IOException("Неверный формат файла плиток");
+        if (in.readInt() != width || in.readInt() != height || in.readInt() != background) {
+            return false;
+        }
+        clear();
+        int count = in.readInt();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        for (int i = 0; i < count; i++) {
+            int tx = in.readUnsignedShort();
+            int ty = in.readUnsignedShort();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            if (tx >= tilesX || ty >= tilesY) throw new IOException("Плитка вне холста: " + tx + "," + ty);
+            Bitmap tile = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (tile == null) throw new IOException("Не удалось декодировать плитку " + tx + "," + ty);
+            tiles[ty * tilesX + tx] = tile;
+            tileCanvases[ty * tilesX + tx] = new Canvas(tile);
+            mipStale[ty * tilesX + tx] = true;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.ad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+    private File root;
+    private BlobStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("blobs").toFile();
+        store = new BlobStore(root);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void equalContentIsStoredOnce() throws IOException {
+        byte[] data = "рисунок".getBytes(StandardCharsets.UTF_8);
+        String first = store.put(data);
+        String second = store.put(data.clone());
+        String other = store.put("другой".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(first, second);
+        assertNotEquals(first, other);
+        assertEquals(64, first.length());
+        File file = store.fileFor(first);
+        assertEquals(first.substring(0, 2), file.getParentFile().getName());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    @Test
+    public void collectorDeletesOnlyStaleConfirmedFiles() throws IOException {
+        String hash = store.put(new byte[]{4, 5, 6});
+        File file = store.fileFor(hash);
+        long cutoff = System.currentTimeMillis() - 1000;
+
+        // Свежий файл и файл, на который нашлась ссылка, остаются
+        assertEquals(-1, store.deleteIfOlderThan(hash, cutoff, () -> true));
+        assertTrue(file.setLastModified(cutoff - 60 * 1000));
+        assertEquals(-1, store.deleteIfOlderThan(hash, cutoff, () -> false));
+        assertTrue(file.exists());
+
+        // put освежает старый файл, и сборщик его уже не трогает
+        assertEquals(hash, store.put(new byte[]{4, 5, 6}));
+        assertEquals(-1, store.deleteIfOlderThan(hash, cutoff, () -> true));
+
+        assertTrue(file.setLastModified(cutoff - 60 * 1000));
+        assertEquals(3, store.deleteIfOlderThan(hash, cutoff, () -> true));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void hashIsSha256Hex() {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                BlobStore.hashOf(new byte[0]));
+    }
+
+    @Test
+    public void repeatedPutRefreshesOldFile() throws IOException {
+        byte[] data = {1, 2, 3};
+        String hash = store.put(data);
+        File file = store.fileFor(hash);
+        long old = System.currentTimeMillis() - 60 * 60 * 1000;
+        assertTrue(file.setLastModified(old));
+        assertEquals(1, store.listOlderThan(System.currentTimeMillis() - 1000).size());
+
+        store.put(data);
+        assertTrue(store.listOlderThan(System.currentTimeMillis() - 1000).isEmpty());
+    }
+
+    @Test
+    public void listingSkipsFreshFilesAndRemovesStaleTemps() throws IOException {
+        String fresh = store.put(new byte[]{1});
+        String stale = store.put(new byte[]{2});
+        long old = System.currentTimeMillis() - 60 * 60 * 1000;
+        assertTrue(store.fileFor(stale).setLastModified(old));
+        File temp = new File(store.fileFor(stale).getParentFile(), stale + ".tmp1");
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            os.write(7);
+        }
+        assertTrue(temp.setLastModified(old));
+
+        List<String> listed = store.listOlderThan(System.currentTimeMillis() - 1000);
+        assertEquals(1, listed.size());
+        assertEquals(stale, listed.get(0));
+        assertFalse(listed.contains(fresh));
+        assertFalse(temp.exists());
+
+        assertTrue(store.delete(stale));
+        assertFalse(store.fileFor(stale).exists());
+        // Повторное удаление не ошибка
+        assertTrue(store.delete(stale));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
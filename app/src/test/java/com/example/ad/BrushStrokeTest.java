@@ -0,0 +1,109 @@
+package com.example.ad;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+public class BrushStrokeTest {
+    private static final float EPS = 1e-3f;
+
+    @Test
+    public void stampsAreEvenlySpaced() {
+        BrushStroke stroke = new BrushStroke();
+        stroke.setSize(10f);
+        stroke.setVelocityTaper(0f);
+        stroke.begin(0, 0, 1f, 0);
+        stroke.add(50, 0, 1f, 10);
+        stroke.add(100, 0, 1f, 20);
+        stroke.end(100, 0, 1f, 20);
+
+        float[] stamps = stroke.getStamps();
+        int count = stroke.getStampCount();
+        // Шаг 0.15 диаметра: 100 px / 1.5 px
+        assertEquals(67, count);
+        for (int i = 1; i < count; i++) {
+            assertEquals(1.5f, stamps[i * 3] - stamps[(i - 1) * 3], 0.01f);
+            assertEquals(0f, stamps[i * 3 + 1], EPS);
+            assertEquals(10f, stamps[i * 3 + 2], EPS);
+        }
+        assertEquals(-5f, stroke.getDirtyLeft(), EPS);
+        assertEquals(5f, stroke.getDirtyBottom(), EPS);
+    }
+
+    @Test
+    public void pressureAndVelocityThinTheLine() {
+        BrushStroke stroke = new BrushStroke();
+        stroke.setSize(10f);
+        float full = stroke.widthFor(1f, 0);
+        assertEquals(10f, full, EPS);
+        assertTrue(stroke.widthFor(0.2f, 0) < full);
+        assertTrue(stroke.widthFor(1f, 3f) < full);
+        assertEquals(10f * BrushStroke.DEFAULT_MIN_RATIO, stroke.widthFor(0f, 0), EPS);
+    }
+
+    @Test
+    public void replayWithRecordedWidthsReproducesStamps() {
+        BrushStroke live = new BrushStroke();
+        live.setSize(12f);
+        live.begin(5, 5, 0.3f, 0);
+        for (int i = 1; i <= 40; i++) {
+            live.add(5 + i * 7, 5 + (float) Math.sin(i / 3.0) * 30, 0.3f + i / 60f, i * 8);
+        }
+        live.end(285, 40, 1f, 330);
+        float[] points = live.copyPoints();
+        float[] widths = live.copyWidths();
+        float[] expected = java.util.Arrays.copyOf(live.getStamps(), live.getStampCount() * 3);
+
+        BrushStroke replay = new BrushStroke();
+        replay.beginWithWidth(points[0], points[1], widths[0]);
+        for (int i = 1; i < widths.length; i++) {
+            replay.addWithWidth(points[i * 2], points[i * 2 + 1], widths[i]);
+        }
+        replay.finish();
+        assertEquals(live.getStampCount(), replay.getStampCount());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], replay.getStamps()[i], EPS);
+        }
+    }
+
+    @Test
+    public void scribbleDoesNotAllocateAfterWarmUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        BrushStroke stroke = new BrushStroke();
+        stroke.setSize(8f);
+        scribble(stroke, 1);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        scribble(stroke, 10);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertEquals(0L, allocated);
+    }
+
+    // Мазки по 0.5 с при 120 событиях в секунду; отпечатки сбрасываются после каждого события
+    private static void scribble(BrushStroke stroke, int seconds) {
+        long time = 0;
+        for (int s = 0; s < seconds * 2; s++) {
+            stroke.begin(100, 100, 0.5f, time);
+            stroke.clearStamps();
+            for (int i = 1; i < 60; i++) {
+                time += 8;
+                float x = 100 + i * 9;
+                float y = 100 + (float) Math.sin(i * 0.4) * 80;
+                stroke.add(x, y, 0.5f + (i % 10) / 20f, time);
+                stroke.clearStamps();
+            }
+            stroke.end(640, 100, 0.2f, time + 8);
+            stroke.clearStamps();
+            time += 100;
+        }
+    }
+}
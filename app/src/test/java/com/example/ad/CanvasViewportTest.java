@@ -0,0 +1,73 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CanvasViewportTest {
+    private static final float EPS = 1e-3f;
+
+    @Test
+    public void fitCentersCanvasInView() {
+        CanvasViewport viewport = new CanvasViewport();
+        viewport.fit(900, 900, 1080, 1800);
+        assertEquals(1.2f, viewport.getScale(), EPS);
+        assertEquals(0f, viewport.toViewX(0), EPS);
+        assertEquals(1800 / 2f, viewport.toViewY(450), EPS);
+    }
+
+    @Test
+    public void largeCanvasLowersMinimumScale() {
+        CanvasViewport viewport = new CanvasViewport();
+        viewport.fit(2400, 3200, 1080, 1600);
+        assertEquals(0.45f, viewport.getScale(), EPS);
+        assertEquals(0.45f, viewport.getMinScale(), EPS);
+        assertFalse(viewport.zoomBy(0.5f, 0, 0));
+    }
+
+    @Test
+    public void zoomKeepsFocusPointFixed() {
+        CanvasViewport viewport = new CanvasViewport();
+        viewport.fit(900, 900, 900, 900);
+        viewport.panBy(37, -12);
+        float canvasX = viewport.toCanvasX(300);
+        float canvasY = viewport.toCanvasY(500);
+        assertTrue(viewport.zoomBy(2.5f, 300, 500));
+        assertEquals(canvasX, viewport.toCanvasX(300), EPS);
+        assertEquals(canvasY, viewport.toCanvasY(500), EPS);
+    }
+
+    @Test
+    public void inverseMappingIsExactAtAnyZoom() {
+        CanvasViewport viewport = new CanvasViewport();
+        viewport.fit(1200, 1600, 1080, 1920);
+        float[] factors = {1.7f, 0.6f, 3f, 0.9f, 1.1f};
+        for (float factor : factors) {
+            viewport.zoomBy(factor, 123, 456);
+            viewport.panBy(-31, 17);
+            for (float x = 0; x <= 1200; x += 150) {
+                assertEquals(x, viewport.toCanvasX(viewport.toViewX(x)), EPS);
+                assertEquals(x, viewport.toCanvasY(viewport.toViewY(x)), EPS);
+            }
+        }
+    }
+
+    @Test
+    public void scaleIsClampedToMaximum() {
+        CanvasViewport viewport = new CanvasViewport();
+        viewport.fit(900, 900, 900, 900);
+        viewport.zoomBy(10f, 0, 0);
+        assertEquals(CanvasViewport.MAX_SCALE, viewport.getScale(), EPS);
+    }
+
+    @Test
+    public void mipLevelFollowsScale() {
+        CanvasViewport viewport = new CanvasViewport();
+        viewport.fit(900, 900, 900, 900);
+        assertEquals(0, viewport.getMipLevel());
+        viewport.fit(2400, 3200, 1000, 1000); // 0.3125
+        assertEquals(1, viewport.getMipLevel());
+        viewport.fit(4000, 4000, 1000, 1000); // 0.25
+        assertEquals(2, viewport.getMipLevel());
+    }
+}
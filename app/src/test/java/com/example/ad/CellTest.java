@@ -0,0 +1,32 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CellTest {
+    private static Cell cell(float width, float height) {
+        Cell cell = new Cell();
+        cell.setWidth(width);
+        cell.setHeight(height);
+        return cell;
+    }
+
+    @Test
+    public void squareCellGetsSquareCanvas() {
+        Cell cell = cell(300, 300);
+        assertEquals(1200, cell.getCanvasWidth(1200, 1600));
+        assertEquals(1200, cell.getCanvasHeight(1200, 1600));
+    }
+
+    @Test
+    public void canvasKeepsCellProportionsWithinPage() {
+        Cell wide = cell(600, 300);
+        assertEquals(1200, wide.getCanvasWidth(1200, 1600));
+        assertEquals(600, wide.getCanvasHeight(1200, 1600));
+
+        Cell tall = cell(300, 1600);
+        assertEquals(300, tall.getCanvasWidth(1200, 1600));
+        assertEquals(1600, tall.getCanvasHeight(1200, 1600));
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class CellWriteQueueTest {
+
+    private static class RecordingWriter implements CellWriteQueue.Writer {
+        final List<List<CellWriteQueue.Update>> batches = new ArrayList<>();
+        boolean fail;
+
+        @Override
+        public void writeCells(List<CellWriteQueue.Update> updates) throws Exception {
+            if (fail) throw new Exception("disk full");
+            batches.add(new ArrayList<>(updates));
+        }
+    }
+
+    private static Cell cell(long id, float x, float y) {
+        Cell cell = new Cell();
+        cell.setId(id);
+        cell.setX(x);
+        cell.setY(y);
+        cell.setWidth(100);
+        cell.setHeight(100);
+        cell.setDrawingPath("cell_" + id + ".png");
+        return cell;
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "cell-writer-test");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Test
+    public void keepsOnlyLastValuePerCell() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        CellWriteQueue queue = new CellWriteQueue(writer, executor);
+        for (int i = 0; i < 50; i++) {
+            queue.put(1, i, i, 100, 100, "cell_1.png");
+        }
+        queue.put(2, 5, 5, 100, 100, "cell_2.png");
+        assertEquals(2, queue.getPendingCount());
+
+        assertEquals(Integer.valueOf(2), queue.flush().get());
+        assertEquals(1, writer.batches.size());
+        List<CellWriteQueue.Update> batch = writer.batches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(1, batch.get(0).cellId);
+        assertEquals(49f, batch.get(0).x, 0f);
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void skipsRowsThatDidNotChange() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        CellWriteQueue queue = new CellWriteQueue(writer, executor);
+        queue.remember(cell(1, 10, 20));
+        queue.put(1, 10, 20, 100, 100, "cell_1.png");
+        assertEquals(0, queue.getPendingCount());
+
+        // Ячейку подвинули и вернули на место до записи
+        queue.put(1, 30, 20, 100, 100, "cell_1.png");
+        queue.put(1, 10, 20, 100, 100, "cell_1.png");
+        assertEquals(Integer.valueOf(0), queue.flush().get());
+        assertTrue(writer.batches.isEmpty());
+
+        // Записанное значение тоже считается известным
+        queue.put(1, 30, 20, 100, 100, "cell_1.png");
+        queue.flush().get();
+        queue.put(1, 30, 20, 100, 100, "cell_1.png");
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(1, writer.batches.size());
+    }
+
+    @Test
+    public void forgottenRowIsWrittenAgain() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        CellWriteQueue queue = new CellWriteQueue(writer, executor);
+        queue.remember(cell(1, 10, 20));
+        queue.forget(1);
+        queue.put(1, 10, 20, 100, 100, "cell_1.png");
+        assertEquals(1, queue.getPendingCount());
+    }
+
+    @Test
+    public void pendingValuesOverlayReadRows() {
+        CellWriteQueue queue = new CellWriteQueue(new RecordingWriter(), executor);
+        queue.put(1, 70, 80, 100, 100, "cell_1.png");
+        Cell fromDb = cell(1, 10, 20);
+        queue.remember(fromDb);
+        queue.applyPending(fromDb);
+        assertEquals(70f, fromDb.getX(), 0f);
+        assertEquals(80f, fromDb.getY(), 0f);
+
+        Cell other = cell(2, 10, 20);
+        queue.applyPending(other);
+        assertEquals(10f, other.getX(), 0f);
+    }
+
+    @Test
+    public void failedBatchReturnsToQueueWithoutOverwritingNewerValues() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        CellWriteQueue queue = new CellWriteQueue(writer, executor);
+        queue.put(1, 10, 10, 100, 100, "cell_1.png");
+        queue.put(2, 20, 20, 100, 100, "cell_2.png");
+        writer.fail = true;
+        try {
+            queue.flush().get();
+            fail("flush should report the write error");
+        } catch (ExecutionException expected) {
+            assertEquals("disk full", expected.getCause().getMessage());
+        }
+        assertEquals(2, queue.getPendingCount());
+
+        queue.put(1, 15, 15, 100, 100, "cell_1.png");
+        writer.fail = false;
+        queue.flush().get();
+        List<CellWriteQueue.Update> batch = writer.batches.get(0);
+        assertEquals(2, batch.size());
+        for (CellWriteQueue.Update update : batch) {
+            if (update.cellId == 1) assertEquals(15f, update.x, 0f);
+        }
+    }
+
+    @Test
+    public void remembersOnlyRecentCells() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        CellWriteQueue queue = new CellWriteQueue(writer, executor);
+        queue.remember(cell(1, 10, 20));
+        for (long id = 2; id <= CellWriteQueue.MAX_PERSISTED; id++) {
+            queue.remember(cell(id, 0, 0));
+        }
+        // Обращение освежает ячейку 1, вытесняется следующая по давности
+        queue.put(1, 10, 20, 100, 100, "cell_1.png");
+        queue.remember(cell(CellWriteQueue.MAX_PERSISTED + 1, 0, 0));
+        queue.put(1, 10, 20, 100, 100, "cell_1.png");
+        queue.put(2, 0, 0, 100, 100, "cell_2.png");
+
+        // Значение ячейки 2 забыто, и она пишется еще раз
+        assertEquals(1, queue.getPendingCount());
+        assertEquals(Integer.valueOf(1), queue.flush().get());
+        assertEquals(2, writer.batches.get(0).get(0).cellId);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ComicGraphTest {
+
+    @Test
+    public void pagesAndCellsKeepInsertionOrder() {
+        ComicGraph graph = new ComicGraph(7);
+        for (int p = 0; p < 6; p++) {
+            assertEquals(p, graph.addPage(100 + p, p + 1, 1200, 1600));
+        }
+        // Больше начальной емкости, чтобы массивы выросли
+        for (int i = 0; i < 20; i++) {
+            assertTrue(graph.addCell(103, 1000 + i, i * 300, 0, 300, 300, "cell_" + i + ".png"));
+        }
+
+        assertEquals(6, graph.getPageCount());
+        assertEquals(4, graph.getPageNumber(3));
+        assertEquals(5, graph.indexOfPage(105));
+        assertEquals(20, graph.getCellCount(103));
+        assertEquals(0, graph.getCellCount(100));
+
+        List<Cell> cells = graph.getCells(103);
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            assertEquals(1000 + i, cell.getId());
+            assertEquals(103, cell.getPageId());
+            assertEquals(i, cell.getPosition());
+            assertEquals(i * 300f, cell.getX(), 0f);
+            assertEquals("cell_" + i + ".png", cell.getDrawingPath());
+        }
+    }
+
+    @Test
+    public void updatesAreAppliedInPlace() {
+        ComicGraph graph = new ComicGraph(1);
+        graph.addPage(10, 1, 1200, 1600);
+        graph.addCell(10, 5, 0, 0, 300, 300, "a.png");
+        graph.addCell(10, 6, 300, 0, 300, 300, "b.png");
+
+        assertTrue(graph.updateCell(10, 6, 40, 50, 300, 300, "c.png"));
+        assertFalse(graph.updateCell(10, 99, 0, 0, 1, 1, null));
+        assertFalse(graph.updateCell(11, 5, 0, 0, 1, 1, null));
+        assertFalse(graph.addCell(11, 7, 0, 0, 1, 1, null));
+
+        Cell updated = graph.getCells(10).get(1);
+        assertEquals(40f, updated.getX(), 0f);
+        assertEquals(50f, updated.getY(), 0f);
+        assertEquals("c.png", updated.getDrawingPath());
+        // Выданные ячейки - копии: их изменение граф не трогает
+        updated.setX(-1);
+        assertEquals(40f, graph.getCells(10).get(1).getX(), 0f);
+    }
+
+    @Test
+    public void setCellsReplacesOnePage() {
+        ComicGraph graph = new ComicGraph(1);
+        graph.addPage(10, 1, 1200, 1600);
+        graph.addPage(11, 2, 1200, 1600);
+        graph.addCell(10, 1, 0, 0, 300, 300, null);
+        graph.addCell(11, 2, 0, 0, 300, 300, null);
+
+        List<Cell> reread = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Cell cell = new Cell();
+            cell.setId(20 + i);
+            reread.add(cell);
+        }
+        graph.setCells(10, reread);
+
+        assertEquals(3, graph.getCellCount(10));
+        assertEquals(21, graph.getCells(10).get(1).getId());
+        assertEquals(1, graph.getCellCount(11));
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class ComicSearchTest {
+
+    // matchinfo 'pcx': число фраз, число столбцов, затем по 3 числа на пару (фраза, столбец)
+    private static byte[] matchinfo(int phrases, int columns, int... hits) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (2 + hits.length)).order(ByteOrder.nativeOrder());
+        buffer.putInt(phrases).putInt(columns);
+        for (int value : hits) buffer.putInt(value);
+        return buffer.array();
+    }
+
+    @Test
+    public void queryIsPrefixTermsWithoutOperators() {
+        assertEquals("кот* в* сапогах*", ComicSearch.toMatchQuery("  Кот в \"сапогах\"! "));
+        assertEquals("a* or* b*", ComicSearch.toMatchQuery("a OR b"));
+        assertEquals("part2* x*", ComicSearch.toMatchQuery("part2 -x*"));
+        assertNull(ComicSearch.toMatchQuery(" ?! "));
+        assertNull(ComicSearch.toMatchQuery(null));
+        assertEquals("1* 2* 3* 4* 5* 6* 7* 8*", ComicSearch.toMatchQuery("1 2 3 4 5 6 7 8 9 10"));
+    }
+
+    @Test
+    public void titleHitsOutrankBalloonHits() {
+        // Слово в названии: 1 совпадение из 10 по индексу
+        double inTitle = ComicSearch.score(matchinfo(1, 2, 1, 10, 10, 0, 5, 5));
+        // То же слово только в реплике
+        double inBalloon = ComicSearch.score(matchinfo(1, 2, 0, 10, 10, 1, 5, 5));
+        assertTrue(inTitle > inBalloon);
+        assertTrue(inBalloon > 0);
+    }
+
+    @Test
+    public void rareTermsWeighMore() {
+        double rare = ComicSearch.score(matchinfo(1, 2, 1, 1, 1, 0, 0, 0));
+        double common = ComicSearch.score(matchinfo(1, 2, 1, 100, 80, 0, 0, 0));
+        assertTrue(rare > common);
+        assertEquals(0.0, ComicSearch.score(matchinfo(2, 2, 0, 3, 3, 0, 0, 0, 0, 1, 1, 0, 0, 0)), 0.0);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DrawingCommandLogTest {
+
+    private static DrawingCommandLog roundTrip(DrawingCommandLog log) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.writeTo(out);
+        return DrawingCommandLog.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void roundTripPreservesAllCommandTypes() throws IOException {
+        DrawingCommandLog log = new DrawingCommandLog(900, 900);
+        log.append(DrawingCommandLog.Command.image("cell_1_base.png"));
+        log.append(DrawingCommandLog.Command.stroke(1, 0xFF112233, 5f, new float[]{10f, 20f, 10.5f, 21.25f, 300f, 0f}));
+        log.append(DrawingCommandLog.Command.fill(450, 451, 0xFFFF0000, 32));
+        log.append(DrawingCommandLog.Command.text(100f, 200f, 0xFF000000, 20f, 42L, "Привет!"));
+
+        DrawingCommandLog read = roundTrip(log);
+        assertEquals(900, read.getWidth());
+        assertEquals(900, read.getHeight());
+        List<DrawingCommandLog.Command> commands = read.getActiveCommands();
+        assertEquals(4, commands.size());
+
+        assertEquals("cell_1_base.png", commands.get(0).text);
+
+        DrawingCommandLog.Command stroke = commands.get(1);
+        assertEquals(DrawingCommandLog.TYPE_STROKE, stroke.type);
+        assertEquals(1, stroke.tool);
+        assertEquals(0xFF112233, stroke.color);
+        assertEquals(5f, stroke.size, 0f);
+        assertArrayEquals(new float[]{10f, 20f, 10.5f, 21.25f, 300f, 0f}, stroke.points, 0.125f);
+
+        DrawingCommandLog.Command fill = commands.get(2);
+        assertEquals(450f, fill.points[0], 0f);
+        assertEquals(451f, fill.points[1], 0f);
+        assertEquals(32, fill.tolerance);
+
+        DrawingCommandLog.Command text = commands.get(3);
+        assertEquals("Привет!", text.text);
+        assertEquals(42L, text.seed);
+        assertEquals(20f, text.size, 0f);
+    }
+
+    @Test
+    public void balloonEditsAndMovesRoundTrip() throws IOException {
+        DrawingCommandLog log = new DrawingCommandLog(900, 900);
+        log.append(DrawingCommandLog.Command.text(100f, 200f, 0xFF000000, 20f, 7L, "Эй"));
+        log.append(DrawingCommandLog.Command.balloonEdit(7L, "Эй, ты!"));
+        log.append(DrawingCommandLog.Command.balloonMove(7L, 300.5f, 120f));
+
+        List<DrawingCommandLog.Command> commands = roundTrip(log).rescaledTo(1800, 1800).getActiveCommands();
+        assertEquals(DrawingCommandLog.TYPE_BALLOON_EDIT, commands.get(1).type);
+        assertEquals(7L, commands.get(1).seed);
+        assertEquals("Эй, ты!", commands.get(1).text);
+        DrawingCommandLog.Command move = commands.get(2);
+        assertEquals(DrawingCommandLog.TYPE_BALLOON_MOVE, move.type);
+        assertEquals(7L, move.seed);
+        assertEquals(601f, move.points[0], 0f);
+        assertEquals(240f, move.points[1], 0f);
+    }
+
+    @Test
+    public void balloonTextsFollowEditsDeletesAndUndo() {
+        DrawingCommandLog log = new DrawingCommandLog(900, 900);
+        log.append(DrawingCommandLog.Command.text(10f, 10f, 0xFF000000, 20f, 1L, "Привет"));
+        log.append(DrawingCommandLog.Command.text(50f, 50f, 0xFF000000, 20f, 2L, "Пока"));
+        log.append(DrawingCommandLog.Command.balloonEdit(1L, "Здравствуй"));
+        log.append(DrawingCommandLog.Command.balloonMove(2L, 60f, 60f));
+        assertEquals(List.of("Здравствуй", "Пока"), log.getBalloonTexts());
+
+        log.append(DrawingCommandLog.Command.balloonEdit(2L, ""));
+        assertEquals(List.of("Здравствуй"), log.getBalloonTexts());
+
+        // Отмененные операции не учитываются
+        log.undo();
+        log.undo();
+        log.undo();
+        assertEquals(List.of("Привет", "Пока"), log.getBalloonTexts());
+    }
+
+    @Test
+    public void brushWidthsRoundTripAndRescale() throws IOException {
+        DrawingCommandLog log = new DrawingCommandLog(900, 900);
+        float[] points = {10f, 10f, 14.5f, 11f, 20f, 13.25f};
+        float[] widths = {2f, 3.375f, 5.5f};
+        log.append(DrawingCommandLog.Command.brush(0xFF000000, 6f, points, widths));
+
+        DrawingCommandLog.Command brush = roundTrip(log).getActiveCommands().get(0);
+        assertEquals(DrawingCommandLog.TYPE_BRUSH, brush.type);
+        assertEquals(6f, brush.size, 0f);
+        assertArrayEquals(points, brush.points, 0.125f);
+        assertArrayEquals(widths, brush.widths, 0.125f);
+
+        DrawingCommandLog.Command scaled = log.rescaledTo(1800, 1800).getActiveCommands().get(0);
+        assertArrayEquals(new float[]{4f, 6.75f, 11f}, scaled.widths, 0f);
+    }
+
+    @Test
+    public void undoneCommandsAreDroppedOnAppendAndNotSaved() throws IOException {
+        DrawingCommandLog log = new DrawingCommandLog(100, 100);
+        log.append(DrawingCommandLog.Command.fill(1, 1, 0xFF000000, 0));
+        log.append(DrawingCommandLog.Command.fill(2, 2, 0xFF000000, 0));
+        assertTrue(log.undo());
+        assertEquals(1, roundTrip(log).getActiveCommands().size());
+
+        assertTrue(log.redo());
+        assertFalse(log.redo());
+        assertTrue(log.undo());
+        log.append(DrawingCommandLog.Command.fill(3, 3, 0xFF000000, 0));
+        assertFalse(log.redo());
+        assertEquals(3f, log.getActiveCommands().get(1).points[0], 0f);
+    }
+
+    @Test
+    public void longStrokeIsCompact() throws IOException {
+        DrawingCommandLog log = new DrawingCommandLog(900, 900);
+        float[] points = new float[2000];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = 100 + i * 0.3f;
+            points[i + 1] = 100 + (float) Math.sin(i / 50.0) * 40;
+        }
+        log.append(DrawingCommandLog.Command.stroke(1, 0xFF000000, 5f, points));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.writeTo(out);
+        // Разности укладываются в 1-2 байта на координату вместо 4 у float
+        assertTrue(out.size() < points.length * 2);
+    }
+
+    @Test
+    public void rescaleMapsCoordinatesAndSizes() {
+        DrawingCommandLog log = new DrawingCommandLog(900, 900);
+        log.append(DrawingCommandLog.Command.stroke(1, 0xFF000000, 6f, new float[]{90f, 450f}));
+        log.append(DrawingCommandLog.Command.fill(10, 20, 0xFF000000, 0));
+        log.undo();
+
+        DrawingCommandLog scaled = log.rescaledTo(1800, 1800);
+        assertEquals(1, scaled.getActiveCommands().size());
+        DrawingCommandLog.Command stroke = scaled.getActiveCommands().get(0);
+        assertEquals(180f, stroke.points[0], 0f);
+        assertEquals(900f, stroke.points[1], 0f);
+        assertEquals(12f, stroke.size, 0f);
+        assertTrue(scaled.redo());
+        assertSame(log, log.rescaledTo(900, 900));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignData() throws IOException {
+        DrawingCommandLog.readFrom(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6}));
+    }
+
+    @Test
+    public void copyIsIndependentOfLiveLog() {
+        DrawingCommandLog log = new DrawingCommandLog(1200, 1200);
+        log.append(DrawingCommandLog.Command.image("cell_1.png"));
+        log.append(DrawingCommandLog.Command.fill(10, 20, 0xFF000000, 0));
+        log.undo();
+
+        DrawingCommandLog copy = log.copy();
+        copy.renameImage("cell_1.png", "cell_1_base_1.png");
+        log.append(DrawingCommandLog.Command.fill(30, 40, 0xFFFF0000, 0));
+
+        assertEquals(1, copy.getActiveCommands().size());
+        assertTrue(copy.referencesImage("cell_1_base_1.png"));
+        assertTrue(log.referencesImage("cell_1.png"));
+        assertEquals(2, log.getActiveCommands().size());
+        assertTrue(copy.redo());
+        assertEquals(10f, copy.getActiveCommands().get(1).points[0], 0f);
+    }
+
+    @Test
+    public void imageNamesMatchSavedCommands() throws IOException {
+        DrawingCommandLog log = new DrawingCommandLog(1200, 1200);
+        log.append(DrawingCommandLog.Command.image("cell_1_base_1.png"));
+        log.append(DrawingCommandLog.Command.image("cell_1_img_2.png"));
+        log.undo();
+
+        assertFalse(log.referencesImage("cell_1_img_2.png"));
+        assertEquals(Collections.singleton("cell_1_base_1.png"), log.getImageNames());
+
+        assertEquals(log.getImageNames(), roundTrip(log).getImageNames());
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FloodFillerTest {
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int BLACK = 0xFF000000;
+    private static final int RED = 0xFFFF0000;
+
+    private static int[] blank(int width, int height) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, WHITE);
+        return pixels;
+    }
+
+    @Test
+    public void fillsWholeBlankCanvas() {
+        int[] pixels = blank(50, 40);
+        FloodFiller filler = new FloodFiller();
+        assertTrue(filler.fill(pixels, 50, 40, 10, 10, RED, 0));
+        for (int p : pixels) assertEquals(RED, p);
+        assertEquals(0, filler.getDirtyLeft());
+        assertEquals(0, filler.getDirtyTop());
+        assertEquals(49, filler.getDirtyRight());
+        assertEquals(39, filler.getDirtyBottom());
+    }
+
+    @Test
+    public void stopsAtClosedOutline() {
+        int width = 20, height = 20;
+        int[] pixels = blank(width, height);
+        // Квадрат 5..14 с черным контуром
+        for (int i = 5; i <= 14; i++) {
+            pixels[5 * width + i] = BLACK;
+            pixels[14 * width + i] = BLACK;
+            pixels[i * width + 5] = BLACK;
+            pixels[i * width + 14] = BLACK;
+        }
+        FloodFiller filler = new FloodFiller();
+        assertTrue(filler.fill(pixels, width, height, 10, 10, RED, 0));
+
+        assertEquals(RED, pixels[6 * width + 6]);
+        assertEquals(RED, pixels[13 * width + 13]);
+        assertEquals(BLACK, pixels[5 * width + 10]);
+        assertEquals(WHITE, pixels[0]);
+        assertEquals(WHITE, pixels[15 * width + 15]);
+        assertEquals(6, filler.getDirtyLeft());
+        assertEquals(13, filler.getDirtyBottom());
+    }
+
+    @Test
+    public void fillsConcaveRegionAroundObstacles() {
+        int width = 30, height = 10;
+        int[] pixels = blank(width, height);
+        // Вертикальные стенки с проходами попеременно сверху и снизу (змейка)
+        for (int wall = 5; wall < width; wall += 5) {
+            boolean gapAtTop = (wall / 5) % 2 == 0;
+            for (int y = 0; y < height; y++) {
+                if (gapAtTop ? y == 0 : y == height - 1) continue;
+                pixels[y * width + wall] = BLACK;
+            }
+        }
+        new FloodFiller().fill(pixels, width, height, 0, 0, RED, 0);
+        for (int i = 0; i < pixels.length; i++) {
+            assertNotEquals("pixel " + i, WHITE, pixels[i]);
+        }
+    }
+
+    @Test
+    public void toleranceCoversAntiAliasedEdges() {
+        int width = 10, height = 1;
+        int[] pixels = blank(width, height);
+        pixels[3] = 0xFFF0F0F0; // Светло-серый край сглаживания
+        pixels[6] = 0xFF808080; // Сама линия
+
+        int[] exact = pixels.clone();
+        new FloodFiller().fill(exact, width, height, 0, 0, RED, 0);
+        assertEquals(0xFFF0F0F0, exact[3]);
+        assertEquals(WHITE, exact[4]);
+
+        new FloodFiller().fill(pixels, width, height, 0, 0, RED, 32);
+        assertEquals(RED, pixels[3]);
+        assertEquals(RED, pixels[5]);
+        assertEquals(0xFF808080, pixels[6]);
+        assertEquals(WHITE, pixels[7]);
+    }
+
+    @Test
+    public void sameColorWithoutToleranceIsNoOp() {
+        int[] pixels = blank(4, 4);
+        assertFalse(new FloodFiller().fill(pixels, 4, 4, 1, 1, WHITE, 0));
+    }
+
+    @Test
+    public void replacementWithinToleranceTerminates() {
+        int[] pixels = blank(64, 64);
+        FloodFiller filler = new FloodFiller();
+        assertTrue(filler.fill(pixels, 64, 64, 0, 0, 0xFFFEFEFE, 16));
+        for (int p : pixels) assertEquals(0xFFFEFEFE, p);
+    }
+
+    @Test
+    public void reusesBuffersAcrossCalls() {
+        FloodFiller filler = new FloodFiller();
+        int[] large = blank(100, 100);
+        filler.fill(large, 100, 100, 0, 0, RED, 0);
+        int[] small = blank(10, 10);
+        small[55] = BLACK;
+        assertTrue(filler.fill(small, 10, 10, 0, 0, RED, 0));
+        assertEquals(BLACK, small[55]);
+        assertEquals(RED, small[99]);
+    }
+
+    @Test
+    public void reportsFilledPixels() {
+        int width = 10, height = 1;
+        int[] pixels = blank(width, height);
+        pixels[4] = BLACK;
+        FloodFiller filler = new FloodFiller();
+        filler.fill(pixels, width, height, 0, 0, RED, 0);
+        assertTrue(filler.isFilled(0));
+        assertTrue(filler.isFilled(3));
+        assertFalse(filler.isFilled(4));
+        assertFalse(filler.isFilled(5));
+    }
+
+    @Test
+    public void ignoresSeedOutsideCanvas() {
+        int[] pixels = blank(4, 4);
+        assertFalse(new FloodFiller().fill(pixels, 4, 4, -1, 2, RED, 0));
+        assertFalse(new FloodFiller().fill(pixels, 4, 4, 2, 4, RED, 0));
+    }
+}
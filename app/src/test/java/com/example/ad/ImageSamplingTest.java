@@ -0,0 +1,27 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageSamplingTest {
+
+    @Test
+    public void largePhotoIsSampledDownToCoverTarget() {
+        // 12 Мп фото в карточку 540x413: 4000/4 = 1000, 3000/4 = 750, следующий шаг уже меньше
+        assertEquals(4, ImageSampling.sampleSizeFor(4000, 3000, 540, 413));
+        // Вертикальное фото ограничено шириной
+        assertEquals(4, ImageSampling.sampleSizeFor(3000, 4000, 540, 413));
+        assertEquals(32, ImageSampling.sampleSizeFor(8192, 8192, 256, 256));
+    }
+
+    @Test
+    public void smallOrUnknownSizesAreNotSampled() {
+        assertEquals(1, ImageSampling.sampleSizeFor(600, 450, 540, 413));
+        assertEquals(1, ImageSampling.sampleSizeFor(100, 100, 540, 413));
+        assertEquals(1, ImageSampling.sampleSizeFor(-1, -1, 540, 413));
+        assertEquals(1, ImageSampling.sampleSizeFor(4000, 3000, 0, 0));
+        // Ровно вдвое больше цели - уменьшение в два раза
+        assertEquals(2, ImageSampling.sampleSizeFor(1080, 826, 540, 413));
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.ad;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryStatsTest {
+
+    @Test
+    public void countsCallsRowsAndMainThread() {
+        QueryStats stats = new QueryStats();
+        stats.record("getCellsForPage", 300_000, 12, true);
+        stats.record("getCellsForPage", 500_000, 8, false);
+        stats.record("getCellsForPage", 700_000, -1, false); // исключение
+
+        assertEquals(3, stats.getCalls("getCellsForPage"));
+        assertEquals(1, stats.getMainThreadCalls("getCellsForPage"));
+        assertEquals(20, stats.getRows("getCellsForPage"));
+        assertEquals(0, stats.getCalls("insertCell"));
+    }
+
+    @Test
+    public void percentilesComeFromPowerOfTwoBuckets() {
+        assertEquals(0, QueryStats.bucketOf(500));
+        assertEquals(0, QueryStats.bucketOf(1_000));
+        assertEquals(1, QueryStats.bucketOf(2_000));
+        assertEquals(2, QueryStats.bucketOf(3_000));
+        assertEquals(QueryStats.BUCKETS - 1, QueryStats.bucketOf(Long.MAX_VALUE));
+
+        QueryStats stats = new QueryStats();
+        for (int i = 0; i < 95; i++) stats.record("q", 100_000, 1, false); // 100 мкс -> корзина 128
+        for (int i = 0; i < 5; i++) stats.record("q", 5_000_000, 1, false); // 5 мс -> корзина 8192
+        assertEquals(128, stats.getPercentileMicros("q", 0.5));
+        assertEquals(128, stats.getPercentileMicros("q", 0.95));
+        assertEquals(8192, stats.getPercentileMicros("q", 0.99));
+    }
+
+    @Test
+    public void slowLogUsesThresholdAndKeepsLatest() {
+        QueryStats stats = new QueryStats();
+        stats.setSlowThresholdMillis(5);
+        assertFalse(stats.record("fast", 4_999_999, 1, false));
+        assertTrue(stats.record("slow", 5_000_000, 3, true));
+        List<String> slow = stats.getSlowQueries();
+        assertEquals(1, slow.size());
+        assertTrue(slow.get(0).contains("slow: 5.0 мс, строк 3, главный поток"));
+
+        for (int i = 0; i < QueryStats.SLOW_LOG_SIZE + 10; i++) {
+            stats.record("slow" + i, 10_000_000, 0, false);
+        }
+        slow = stats.getSlowQueries();
+        assertEquals(QueryStats.SLOW_LOG_SIZE, slow.size());
+        assertTrue(slow.get(slow.size() - 1).contains("slow" + (QueryStats.SLOW_LOG_SIZE + 9) + ":"));
+    }
+
+    @Test
+    public void dumpListsCostliestStatementFirst() {
+        QueryStats stats = new QueryStats();
+        stats.record("cheap", 1_000, 1, false);
+        stats.record("costly", 50_000_000, 100, true);
+        String dump = stats.dump();
+        assertTrue(dump.indexOf("costly:") < dump.indexOf("cheap:"));
+        assertTrue(dump.contains("costly: 1 (1), 100"));
+        assertTrue(dump.contains("медленные вызовы (порог 16 мс)"));
+
+        stats.reset();
+        assertEquals(0, stats.getCalls("costly"));
+        assertTrue(stats.getSlowQueries().isEmpty());
+    }
+}